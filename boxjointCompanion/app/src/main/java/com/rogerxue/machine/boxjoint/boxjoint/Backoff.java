@@ -0,0 +1,47 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts: doubling from {@code initialMs} up to {@code maxMs}, each
+ * picked at random from the upper half of its range so a jig and the phone coming back at the
+ * same time don't keep missing each other in lockstep.
+ *
+ * Not thread safe.
+ */
+final class Backoff {
+    private final long mInitialMs;
+    private final long mMaxMs;
+    private final Random mRandom;
+    private int mAttempts;
+
+    Backoff(long initialMs, long maxMs, Random random) {
+        mInitialMs = initialMs;
+        mMaxMs = maxMs;
+        mRandom = random;
+    }
+
+    /**
+     * @return the delay before the next attempt.
+     */
+    long nextDelayMs() {
+        long ceiling = mInitialMs << Math.min(mAttempts, 30);
+        if (ceiling <= 0 || ceiling > mMaxMs) {
+            ceiling = mMaxMs;
+        }
+        ++mAttempts;
+        long half = ceiling / 2;
+        return ceiling - half + (long) (mRandom.nextDouble() * (half + 1));
+    }
+
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * Starts over from {@code initialMs}, after a successful attempt.
+     */
+    void reset() {
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,83 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Plans a whole project of {@link CutJob}s on a fork join pool.
+ *
+ * Jobs are split in halves down to a few jobs per task, each task plans with its own
+ * {@link MoveCalculator}, so nothing mutable is shared and any number of batches can run at
+ * once.
+ */
+public class BatchPlanner {
+    // small enough to balance uneven jobs, large enough to reuse the gap cache of a calculator
+    private static final int JOBS_PER_TASK = 4;
+
+    private final ForkJoinPool mPool;
+
+    public BatchPlanner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BatchPlanner(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Plans all jobs, blocking until done.
+     */
+    public CutList plan(List<CutJob> jobs) {
+        CutJob[] array = jobs.toArray(new CutJob[jobs.size()]);
+        CutList.Entry[] entries = new CutList.Entry[array.length];
+        mPool.invoke(new PlanTask(array, entries, 0, array.length));
+        return new CutList(Arrays.asList(entries));
+    }
+
+    /**
+     * Plans all jobs on the calling thread, for comparison.
+     */
+    public static CutList planSequentially(List<CutJob> jobs) {
+        CutJob[] array = jobs.toArray(new CutJob[jobs.size()]);
+        CutList.Entry[] entries = new CutList.Entry[array.length];
+        planRange(array, entries, 0, array.length);
+        return new CutList(Arrays.asList(entries));
+    }
+
+    private static void planRange(CutJob[] jobs, CutList.Entry[] entries, int from, int to) {
+        MoveCalculator calculator = new MoveCalculator();
+        for (int i = from; i < to; ++i) {
+            MovePlan plan = jobs[i].calculate(calculator);
+            entries[i] = new CutList.Entry(
+                    jobs[i], plan, plan == null ? calculator.getLastError() : null);
+        }
+    }
+
+    private static class PlanTask extends RecursiveAction {
+        private final CutJob[] mJobs;
+        private final CutList.Entry[] mEntries;
+        private final int mFrom;
+        private final int mTo;
+
+        PlanTask(CutJob[] jobs, CutList.Entry[] entries, int from, int to) {
+            mJobs = jobs;
+            mEntries = entries;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= JOBS_PER_TASK) {
+                planRange(mJobs, mEntries, mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(
+                    new PlanTask(mJobs, mEntries, mFrom, middle),
+                    new PlanTask(mJobs, mEntries, middle, mTo));
+        }
+    }
+}
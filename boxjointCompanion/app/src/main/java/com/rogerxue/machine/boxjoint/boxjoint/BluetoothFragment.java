@@ -16,17 +16,31 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.EditText;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.ProgressBar;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 public class BluetoothFragment extends Fragment {
     String TAG = "BluetoothFragment";
+    // how often the status of the jig is sampled for the view
+    private static final long STATUS_REFRESH_MS = 100;
 
     BluetoothSerialUtil.BtSerialListener mListener;
+    // the jig shown, the current one of JigConnectionManager
+    @Nullable
+    BluetoothSerialUtil mJig;
+    private final Handler mHandler = new Handler();
+    private final JigStatus mStatus = new JigStatus();
+    // sequence of the status shown, -1 to show the next one whatever it is
+    private long mShownSequence = -1;
+    private Runnable mStatusRefresh;
 
     @Nullable
     @Override
@@ -37,8 +51,11 @@ public class BluetoothFragment extends Fragment {
         final Button indicator = root.findViewById(R.id.indicator);
         final TextView label = root.findViewById(R.id.label);
         final EditText deviceName = root.findViewById(R.id.entry);
+        final CheckBox binaryProtocol = root.findViewById(R.id.binary_protocol);
+        final TextView status = root.findViewById(R.id.jig_status);
+        final ProgressBar progress = root.findViewById(R.id.jig_progress);
 
-        mListener = new BluetoothSerialUtil.BtSerialListener() {
+        mListener = new BluetoothSerialUtil.BtSerialBatchListener() {
             @Override
             public void onConnect(boolean connected) {
                 indicator.setBackgroundColor(
@@ -49,22 +66,103 @@ public class BluetoothFragment extends Fragment {
             public void onDataRead(String data) {
                 label.setText("Data received: " + data);
             }
+
+            @Override
+            public void onDataRead(List<String> lines) {
+                // only the latest line is shown, no need to set the text for each
+                if (!lines.isEmpty()) {
+                    onDataRead(lines.get(lines.size() - 1));
+                }
+            }
         };
 
-        BluetoothSerialUtil.getInstance().addListener(mListener);
+        mStatusRefresh = new Runnable() {
+            @Override
+            public void run() {
+                showStatus(status, progress);
+                mHandler.postDelayed(this, STATUS_REFRESH_MS);
+            }
+        };
+        mHandler.post(mStatusRefresh);
+
+        final JigConnectionManager jigs = JigConnectionManager.getInstance();
+        showJig(jigs.getCurrentJig(), indicator, binaryProtocol);
+        String lastDevice = mJig != null ? mJig.getDeviceName() : jigs.getLastDeviceName();
+        if (lastDevice != null && deviceName.getText().length() == 0) {
+            deviceName.setText(lastDevice);
+        }
+
+        binaryProtocol.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (mJig != null) {
+                    mJig.setBinaryProtocol(isChecked);
+                }
+            }
+        });
 
         connectBtn.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                BluetoothSerialUtil.getInstance().connect(deviceName.getText().toString());
+                // the jig becomes the one plans go to, other jigs stay connected
+                BluetoothSerialUtil jig = jigs.setCurrentJig(deviceName.getText().toString());
+                showJig(jig, indicator, binaryProtocol);
+                if (!jig.isConnected()) {
+                    // connects in the background, onConnect tells how it went
+                    indicator.setBackgroundColor(Color.YELLOW);
+                    jig.connect();
+                }
             }
         });
         return root;
     }
 
+    /**
+     * Listens to {@code jig} instead of the jig shown so far.
+     */
+    private void showJig(@Nullable BluetoothSerialUtil jig, Button indicator,
+            CheckBox binaryProtocol) {
+        if (mJig != null) {
+            mJig.removeListener(mListener);
+        }
+        mJig = jig;
+        mShownSequence = -1;
+        if (jig == null) {
+            indicator.setBackgroundColor(Color.RED);
+            return;
+        }
+        jig.addListener(mListener);
+        indicator.setBackgroundColor(jig.isConnected() ? Color.GREEN : Color.RED);
+        binaryProtocol.setChecked(jig.isBinaryProtocol());
+    }
+
+    /**
+     * Shows where the jig is and how far into the plan, if it reported anything new.
+     */
+    private void showStatus(TextView status, ProgressBar progress) {
+        if (mJig == null || !mJig.getStatus(mStatus)) {
+            if (mShownSequence != 0) {
+                status.setText("No status from the jig");
+                progress.setProgress(0);
+                mShownSequence = 0;
+            }
+            return;
+        }
+        if (mStatus.getSequence() == mShownSequence) {
+            return;
+        }
+        mShownSequence = mStatus.getSequence();
+        status.setText(mStatus.toString());
+        progress.setMax((int) Math.min(Integer.MAX_VALUE, mStatus.getMoveCount()));
+        progress.setProgress((int) Math.min(Integer.MAX_VALUE, mStatus.getMove()));
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        BluetoothSerialUtil.getInstance().removeListener(mListener);
-
+        mHandler.removeCallbacks(mStatusRefresh);
+        if (mJig != null) {
+            mJig.removeListener(mListener);
+            mJig = null;
+        }
     }
 }
\ No newline at end of file
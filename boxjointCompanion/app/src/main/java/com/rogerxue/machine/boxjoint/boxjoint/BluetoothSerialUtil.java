@@ -2,40 +2,130 @@ package com.rogerxue.machine.boxjoint.boxjoint;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.content.SharedPreferences;
 import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+/**
+ * The serial session with one jig: its link, reconnects, uploads and listeners. Sessions are
+ * made and kept by {@link JigConnectionManager}, one per jig, and share its threads.
+ */
 public class BluetoothSerialUtil implements Serializable {
     private static final String TAG = "BluetoothSerialUtil";
-    private static final UUID SERIAL_UUID =
-        UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private static final String ASCII_ENCODE = "US-ASCII";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // longest line expected from the jig, longer ones are dropped
+    private static final int MAX_LINE_LENGTH = 256;
+    private static final int MAX_RETRANSMITS = 3;
+    // MAX_MOVES of the firmware, longer plans are streamed
+    static final int JIG_MAX_MOVES = 200;
+    private static final Metrics.Counter LINES_READ =
+            Metrics.getInstance().counter("serial.lines_read");
+    private static final Metrics.Counter TELEMETRY_RECORDS =
+            Metrics.getInstance().counter("telemetry.records");
+    private static final Metrics.Counter TELEMETRY_ERRORS =
+            Metrics.getInstance().counter("telemetry.errors");
+    // handling of a batch of lines on the main thread
+    private static final Metrics.Timer DISPATCH_TIME =
+            Metrics.getInstance().timer("serial.dispatch");
+    private static final Metrics.Histogram DISPATCH_LINES =
+            Metrics.getInstance().histogram("serial.dispatch_lines", "");
+    // from sendMoves until the jig has all the moves, see uploadStart
+    private static final Metrics.Timer UPLOAD_TIME = Metrics.getInstance().timer("upload");
+    // from starting to open a link until it's up
+    private static final Metrics.Timer CONNECT_TIME = Metrics.getInstance().timer("connect");
+    private static final Metrics.Counter LINK_DROPS = Metrics.getInstance().counter("link.drops");
+    private static final long RECONNECT_INITIAL_MS = 250;
+    private static final long RECONNECT_MAX_MS = 30000;
 
-    private static BluetoothSerialUtil mInstance;
+    private final String mDeviceName;
+    // the link is opened, reconnected and closed on the connect thread, one at a time. The
+    // thread is any of the connect pool of the manager, taking the tasks of this jig in turn
+    private final Executor mConnectExecutor;
+    // times the reconnects, which then run on mConnectExecutor
+    private final ScheduledExecutorService mScheduler;
+    private final SerialPoller mPoller;
+    // only touched on the connect thread
+    private final Backoff mBackoff =
+            new Backoff(RECONNECT_INITIAL_MS, RECONNECT_MAX_MS, new Random());
+    private ScheduledFuture<?> mReconnect;
+    // reconnect when the link drops, until stop()
+    private volatile boolean mAutoReconnect;
+    // nulled when the jig is removed, while a connect may still be running
+    @Nullable
+    private volatile SharedPreferences mPreferences;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothSocket mmSocket;
-    private BluetoothDevice mmDevice;
+    // the link, or the one to reconnect to
+    private SerialTransport mTransport;
     private OutputStream mmOutputStream;
+    private volatile SerialWriter mWriter;
     private InputStream mmInputStream;
-    private Thread workerThread;
-    private byte[] readBuffer;
-    private int readBufferPosition;
-    private volatile boolean stopWorker;
+    @Nullable
+    private SerialPoller.Poll mPoll;
 
-    private boolean connected = false;
+    private volatile boolean connected = false;
 
-    private final List<BtSerialListener> mListeners = new ArrayList<>();
+    private boolean binaryProtocol = false;
+    // seqs of every frame, moves single or streamed and the profile, drawn from one counter
+    private final MoveFrameCodec.SeqCounter frameSeqs = new MoveFrameCodec.SeqCounter(1);
+    // last frame sent, kept until the jig ACKs it
+    private byte[] pendingFrame;
+    private int pendingSeq;
+    private int retransmits;
+    // plan being streamed, if any
+    private MoveStreamer streamer;
+    // when the upload in flight started, 0 if none
+    private long uploadStart;
+    // step timing for the jig, sent ahead of binary uploads until it made it over the link
+    @Nullable
+    private MotionProfile mMotionProfile;
+    private boolean profileSent;
+    // profile frame sent last, kept until the jig ACKs it
+    private byte[] profileFrame;
+    private int profileSeq;
+    private int profileRetransmits;
+
+    // iterated on the main thread while fragments come and go
+    private final List<BtSerialListener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LineBatcher mLineBatcher = new LineBatcher(
+            new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mMainHandler.post(command);
+                }
+            },
+            new LineBatcher.Sink() {
+                @Override
+                public void onLines(List<String> lines) {
+                    dispatchLines(lines);
+                }
+            });
+    private UploadListener mUploadListener;
+    private MoveListener mMoveListener;
+    // status records of the jig are decoded into it on the poller, the UI samples it, guarded
+    // by itself
+    private final JigStatus mStatus = new JigStatus();
 
 
     public interface BtSerialListener {
@@ -43,14 +133,53 @@ public class BluetoothSerialUtil implements Serializable {
         void onDataRead(String data);
     }
 
-    public static BluetoothSerialUtil getInstance() {
-        if (mInstance == null) {
-            mInstance = new BluetoothSerialUtil();
-        }
-        return mInstance;
+    /**
+     * A listener that takes every line received since the last dispatch at once, instead of
+     * one {@link #onDataRead(String)} per line.
+     */
+    public interface BtSerialBatchListener extends BtSerialListener {
+        /**
+         * @param lines only valid during the call, copy to keep.
+         */
+        void onDataRead(List<String> lines);
     }
 
-    private BluetoothSerialUtil() {
+    public interface UploadListener {
+        /**
+         * Called on the main thread as moves of the plan are written to the link.
+         */
+        void onUploadProgress(int sentMoves, int totalMoves);
+
+        /**
+         * Called on the main thread if the upload couldn't be written.
+         */
+        void onUploadFailed(String reason);
+    }
+
+    public interface MoveListener {
+        /**
+         * Called on the main thread as the jig starts executing move {@code index} of the plan.
+         */
+        void onMoveExecuting(int index);
+    }
+
+    /**
+     * @param connectPool opens and closes links, tasks of this jig run on it one at a time.
+     * @param poller reads the link.
+     */
+    BluetoothSerialUtil(String deviceName, ScheduledExecutorService connectPool,
+            SerialPoller poller) {
+        mDeviceName = deviceName;
+        mConnectExecutor = new SerialExecutor(connectPool);
+        mScheduler = connectPool;
+        mPoller = poller;
+    }
+
+    /**
+     * Name of the paired device of the jig, what {@link JigConnectionManager} keeps it by.
+     */
+    public String getDeviceName() {
+        return mDeviceName;
     }
 
     public void addListener(BtSerialListener listener) {
@@ -61,141 +190,624 @@ public class BluetoothSerialUtil implements Serializable {
         mListeners.remove(listener);
     }
 
+    public void setUploadListener(@Nullable UploadListener listener) {
+        mUploadListener = listener;
+    }
+
+    public void setMoveListener(@Nullable MoveListener listener) {
+        mMoveListener = listener;
+    }
+
     public boolean isConnected() {
         return connected;
     }
 
     /**
-     * @return true if connected
+     * Copies the status the jig reported last into {@code status}, for the UI to sample at its
+     * own pace rather than handle every record.
+     *
+     * @return false if the jig sent no status over the link open, if any.
+     */
+    public boolean getStatus(JigStatus status) {
+        synchronized (mStatus) {
+            status.set(mStatus);
+        }
+        return status.isReported();
+    }
+
+    /**
+     * Whether moves are sent as binary frames, see {@link MoveFrameCodec}, instead of ASCII.
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * Times the moves of binary uploads by {@code profile} from now on, null leaves them to the
+     * speed pot of the jig. Goes to the jig with the next upload, ASCII moves can't carry it.
+     */
+    public void setMotionProfile(@Nullable MotionProfile profile) {
+        if (profile == null ? mMotionProfile != null : !profile.equals(mMotionProfile)) {
+            mMotionProfile = profile;
+            profileSent = false;
+        }
+    }
+
+    @Nullable
+    public MotionProfile getMotionProfile() {
+        return mMotionProfile;
+    }
+
+    /**
+     * Keeps the address of the device once connected to in {@code preferences}, so later
+     * connects skip looking the device up among the paired ones, and the device among those
+     * {@link JigConnectionManager#connectToLastDevices()} connects to.
+     */
+    void setPreferences(@Nullable SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Connects to the paired device of the jig in the background, listeners are told the
+     * outcome with {@link BtSerialListener#onConnect}. Until {@link #stop()}, a link that can't
+     * be made or drops is retried with an exponential backoff, and an upload in progress is
+     * resumed once the link is back.
+     */
+    public void connect() {
+        mAutoReconnect = true;
+        mConnectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectToDevice(mDeviceName);
+            }
+        });
+    }
+
+    /**
+     * Connects over any link to the jig, e.g. a simulator for testing, the same way as
+     * {@link #connect()}.
      */
-    public boolean connect(String btDeviceName) {
+    public void connect(final SerialTransport transport) {
+        mAutoReconnect = true;
+        mConnectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                closeLink();
+                if (!openLink(transport)) {
+                    notifyConnect(false);
+                    scheduleReconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on the connect thread.
+     */
+    private void connectToDevice(String name) {
+        cancelReconnect();
+        closeLink();
+        mTransport = null;
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        if(mBluetoothAdapter == null) {
+        if (mBluetoothAdapter == null) {
             Log.w(TAG, "No bluetooth adapter available");
-            for (BtSerialListener listener : mListeners) {
-                listener.onConnect(false);
-            }
-            connected = false;
-            return isConnected();
+            notifyConnect(false);
+            return;
         }
-
-        if(!mBluetoothAdapter.isEnabled()) {
+        if (!mBluetoothAdapter.isEnabled()) {
             Log.w(TAG, "BT not enabled");
-            for (BtSerialListener listener : mListeners) {
-                listener.onConnect(false);
+            notifyConnect(false);
+            return;
+        }
+        // an ongoing discovery slows RFCOMM connects down a lot
+        mBluetoothAdapter.cancelDiscovery();
+
+        SharedPreferences preferences = mPreferences;
+        String cachedAddress = preferences != null
+                ? preferences.getString(JigConnectionManager.PREF_ADDRESS_PREFIX + name, null)
+                : null;
+        if (cachedAddress != null && BluetoothAdapter.checkBluetoothAddress(cachedAddress)) {
+            Log.d(TAG, "connecting to " + name + " at cached " + cachedAddress);
+            if (openLink(new RfcommTransport(
+                    mBluetoothAdapter.getRemoteDevice(cachedAddress)))) {
+                rememberDevice(name, cachedAddress);
+                return;
             }
-            connected = false;
-            return isConnected();
         }
 
+        BluetoothDevice device = null;
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
-        if(pairedDevices.size() > 0) {
-            for(BluetoothDevice device : pairedDevices) {
-                if(device.getName().equals(btDeviceName)) {
-                    mmDevice = device;
-                    Log.d(TAG, "Bluetooth Device Found " + btDeviceName);
-                    try {
-                        mmSocket = mmDevice.createRfcommSocketToServiceRecord(SERIAL_UUID);
-                        mmSocket.connect();
-                        mmOutputStream = mmSocket.getOutputStream();
-                        mmInputStream = mmSocket.getInputStream();
-                    } catch (IOException e) {
-                        Log.e(TAG, "unable to connect to bt.", e);
-                        connected = false;
-                        return isConnected();
-                    }
-                    for (BtSerialListener listener : mListeners) {
-                        listener.onConnect(true);
-                    }
-                    connected = true;
-                    listenForData();
-                    return isConnected();
+        if (pairedDevices != null) {
+            for (BluetoothDevice paired : pairedDevices) {
+                if (name.equals(paired.getName())) {
+                    device = paired;
+                    break;
                 }
             }
-            Log.d(TAG, "Bluetooth Device NOT Found " + btDeviceName);
-            for (BtSerialListener listener : mListeners) {
-                listener.onConnect(false);
+        }
+        if (device == null) {
+            Log.d(TAG, "Bluetooth Device NOT Found " + name);
+            notifyConnect(false);
+            return;
+        }
+        Log.d(TAG, "Bluetooth Device Found " + name);
+        // the cached address is the device, it's just not answering
+        if (!device.getAddress().equals(cachedAddress) && openLink(new RfcommTransport(device))) {
+            rememberDevice(name, device.getAddress());
+            return;
+        }
+        mTransport = new RfcommTransport(device);
+        notifyConnect(false);
+        scheduleReconnect();
+    }
+
+    private void rememberDevice(String name, String address) {
+        SharedPreferences preferences = mPreferences;
+        if (preferences != null) {
+            // the set handed out mustn't be changed
+            Set<String> devices = new HashSet<>(preferences.getStringSet(
+                    JigConnectionManager.PREF_DEVICES, Collections.<String>emptySet()));
+            devices.add(name);
+            preferences.edit()
+                    .putString(JigConnectionManager.PREF_LAST_DEVICE, name)
+                    .putStringSet(JigConnectionManager.PREF_DEVICES, devices)
+                    .putString(JigConnectionManager.PREF_ADDRESS_PREFIX + name, address)
+                    .apply();
+        }
+    }
+
+    /**
+     * Opens {@code transport} and starts reading, runs on the connect thread.
+     *
+     * @return false if the link couldn't be made, {@code transport} is kept to retry.
+     */
+    private boolean openLink(final SerialTransport transport) {
+        mTransport = transport;
+        long start = CONNECT_TIME.start();
+        try {
+            transport.open();
+            mmOutputStream = transport.getOutputStream();
+            mmInputStream = transport.getInputStream();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to connect to " + transport.getName(), e);
+            try {
+                transport.close();
+            } catch (IOException closeError) {
+                Log.w(TAG, "can't close " + transport.getName(), closeError);
             }
-            connected = true;
-            return isConnected();
+            return false;
         }
-        return isConnected();
+        CONNECT_TIME.stop(start);
+        mBackoff.reset();
+        // the poller can't tell a link gone quiet from a dead one, a failed write can
+        mWriter = new SerialWriter(mmOutputStream, TAG + "-" + mDeviceName + "-writer",
+                new SerialWriter.FailureListener() {
+                    @Override
+                    public void onWriteFailed(IOException error) {
+                        Log.w(TAG, "write failed", error);
+                        onLinkLost(transport);
+                    }
+                });
+        mWriter.start();
+        connected = true;
+        listenForData(transport);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (BtSerialListener listener : mListeners) {
+                    listener.onConnect(true);
+                }
+                // the jig may have been reset while the link was down
+                profileSent = false;
+                resumeUpload();
+            }
+        });
+        return true;
     }
 
-    private void listenForData() {
-        final Handler handler = new Handler();
-        final byte delimiter = 10; //This is the ASCII code for a newline character
+    private void notifyConnect(final boolean connected) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (BtSerialListener listener : mListeners) {
+                    listener.onConnect(connected);
+                }
+            }
+        });
+    }
 
-        stopWorker = false;
-        readBufferPosition = 0;
-        readBuffer = new byte[1024];
-        workerThread = new Thread(new Runnable() {
+    /**
+     * Called from the poller or the writer when the link of {@code transport} went away on its
+     * own.
+     */
+    private void onLinkLost(final SerialTransport transport) {
+        mConnectExecutor.execute(new Runnable() {
+            @Override
             public void run() {
-                while(!Thread.currentThread().isInterrupted() && !stopWorker) {
-                    try {
-                        int bytesAvailable = mmInputStream.available();
-                        if(bytesAvailable > 0) {
-                            byte[] packetBytes = new byte[bytesAvailable];
-                            mmInputStream.read(packetBytes);
-                            for(int i=0; i < bytesAvailable; i++) {
-                                byte b = packetBytes[i];
-                                if(b == delimiter) {
-                                    byte[] encodedBytes = new byte[readBufferPosition];
-                                    System.arraycopy(readBuffer, 0, encodedBytes, 0, encodedBytes.length);
-                                    final String data = new String(encodedBytes, ASCII_ENCODE);
-                                    readBufferPosition = 0;
-
-                                    handler.post(new Runnable() {
-                                        public void run() {
-                                        for (BtSerialListener listener : mListeners) {
-                                            listener.onDataRead(data);
-                                        }
-                                        }
-                                    });
-                                } else {
-                                    readBuffer[readBufferPosition++] = b;
-                                }
-                            }
-                        }
-                    } catch (IOException ex) {
-                        stopWorker = true;
+                if (transport != mTransport || !connected) {
+                    // replaced or stopped meanwhile
+                    return;
+                }
+                Log.w(TAG, "link to " + transport.getName() + " lost");
+                LINK_DROPS.increment();
+                closeLink();
+                notifyConnect(false);
+                scheduleReconnect();
+            }
+        });
+    }
+
+    /**
+     * Runs on the connect thread.
+     */
+    private void scheduleReconnect() {
+        final SerialTransport transport = mTransport;
+        if (!mAutoReconnect || transport == null) {
+            return;
+        }
+        long delay = mBackoff.nextDelayMs();
+        Log.d(TAG, "reconnecting to " + transport.getName() + " in " + delay + " ms, attempt "
+                + mBackoff.getAttempts());
+        final Runnable reconnect = new Runnable() {
+            @Override
+            public void run() {
+                mReconnect = null;
+                if (!mAutoReconnect || transport != mTransport) {
+                    return;
+                }
+                if (!openLink(transport)) {
+                    scheduleReconnect();
+                }
+            }
+        };
+        mReconnect = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mConnectExecutor.execute(reconnect);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelReconnect() {
+        if (mReconnect != null) {
+            mReconnect.cancel(false);
+            mReconnect = null;
+        }
+        mBackoff.reset();
+    }
+
+    /**
+     * Picks the upload the link dropped during up where the jig left it. Only binary uploads,
+     * the jig doesn't acknowledge ASCII moves so there's no telling what it got.
+     */
+    private void resumeUpload() {
+        if (streamer != null) {
+            if (!streamer.isDelivered()) {
+                sendProfile();
+                streamer.onReconnect();
+            }
+        } else if (pendingFrame != null) {
+            Log.d(TAG, "resending frame " + pendingSeq + " after reconnect");
+            sendProfile();
+            retransmits = 0;
+            write(pendingFrame);
+        }
+    }
+
+    private void listenForData(final SerialTransport transport) {
+        mPoll = mPoller.start(mmInputStream, MAX_LINE_LENGTH, new SerialPoller.Listener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                LINES_READ.increment();
+                if (TelemetryDecoder.isRecord(buffer, offset, length)) {
+                    // only the latest status matters, no need to hand each to the listeners
+                    boolean decoded;
+                    synchronized (mStatus) {
+                        decoded = TelemetryDecoder.decode(buffer, offset, length, mStatus);
+                    }
+                    if (decoded) {
+                        TELEMETRY_RECORDS.increment();
+                    } else {
+                        TELEMETRY_ERRORS.increment();
                     }
+                    return;
+                }
+                mLineBatcher.add(new String(buffer, offset, length, ASCII));
+            }
+
+            @Override
+            public void onClosed(@Nullable IOException error) {
+                if (error != null) {
+                    Log.w(TAG, "read failed", error);
                 }
+                onLinkLost(transport);
             }
         });
+    }
 
-        workerThread.start();
+    /**
+     * Runs on the main thread with the lines received since the last dispatch.
+     */
+    private void dispatchLines(List<String> lines) {
+        long start = DISPATCH_TIME.start();
+        DISPATCH_LINES.record(lines.size());
+        for (int i = 0; i < lines.size(); ++i) {
+            handleJigReply(lines.get(i));
+        }
+        for (BtSerialListener listener : mListeners) {
+            if (listener instanceof BtSerialBatchListener) {
+                ((BtSerialBatchListener) listener).onDataRead(lines);
+            } else {
+                for (int i = 0; i < lines.size(); ++i) {
+                    listener.onDataRead(lines.get(i));
+                }
+            }
+        }
+        DISPATCH_TIME.stop(start);
     }
 
     public boolean sendData(String data) {
-        if (!isConnected()) {
+        data += "\n";
+        return write(data.getBytes());
+    }
+
+    /**
+     * Sends the moves to the jig, as binary frames if {@link #isBinaryProtocol()}, otherwise
+     * as comma separated ASCII. In binary plans longer than the jig can hold are streamed, see
+     * {@link #streamMoves}, and the motion profile goes first if the jig may not have it.
+     */
+    public boolean sendMoves(MovePlan plan) {
+        if (!binaryProtocol) {
+            StringBuilder sb = new StringBuilder(plan.size() * 4);
+            for (int i = 0; i < plan.size(); ++i) {
+                sb.append(plan.get(i));
+                sb.append(",");
+            }
+            sb.append("\n");
+            uploadStart = 0;
+            // the jig drops its profile for ASCII moves, the next binary upload sends it again
+            profileSent = false;
+            // the jig doesn't answer ASCII moves, they are uploaded once written
+            final long start = UPLOAD_TIME.start();
+            CompletableFuture<Integer> future = writeAsync(sb.toString().getBytes(ASCII));
+            if (future != null) {
+                future.thenRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        UPLOAD_TIME.stop(start);
+                    }
+                });
+            }
+            return reportProgress(future, plan.size(), plan.size());
+        }
+        if (plan.size() > JIG_MAX_MOVES) {
+            return streamMoves(plan);
+        }
+        sendProfile();
+        streamer = null;
+        pendingSeq = frameSeqs.next();
+        pendingFrame = MoveFrameCodec.encodeMoves(pendingSeq, plan.array(), 0, plan.size());
+        retransmits = 0;
+        uploadStart = UPLOAD_TIME.start();
+        return reportProgress(writeAsync(pendingFrame), plan.size(), plan.size());
+    }
+
+    /**
+     * Streams a plan of any length, windows are sent as the jig grants credit while it
+     * executes moves, see {@link MoveStreamer}.
+     */
+    public boolean streamMoves(MovePlan plan) {
+        sendProfile();
+        pendingFrame = null;
+        uploadStart = UPLOAD_TIME.start();
+        final int total = plan.size();
+        streamer = new MoveStreamer(new MoveStreamer.FrameSink() {
+            @Override
+            public boolean write(byte[] frame, int sentMoves) {
+                return reportProgress(writeAsync(frame), sentMoves, total);
+            }
+        }, plan, frameSeqs);
+        return streamer.start();
+    }
+
+    /**
+     * Sends the motion profile unless the jig has it already.
+     */
+    private void sendProfile() {
+        if (profileSent) {
+            return;
+        }
+        // off the counter of the stream too, resumeUpload() sends it while one is live
+        profileSeq = frameSeqs.next();
+        profileFrame = MoveFrameCodec.encodeProfile(profileSeq, mMotionProfile);
+        profileRetransmits = 0;
+        profileSent = write(profileFrame);
+    }
+
+    /**
+     * Feeds credit to the streamer and resends the pending and profile frames on NAK, gives up
+     * after {@link #MAX_RETRANSMITS}.
+     */
+    private void handleJigReply(String line) {
+        int index = MoveFrameCodec.parseMove(line);
+        if (index >= 0) {
+            if (mMoveListener != null) {
+                mMoveListener.onMoveExecuting(index);
+            }
+            return;
+        }
+        if (streamer != null) {
+            int limit = MoveFrameCodec.parseCredit(line);
+            if (limit >= 0) {
+                streamer.onCredit(limit);
+                return;
+            }
+            int received = MoveFrameCodec.parseResume(line);
+            if (received >= 0) {
+                streamer.onResume(received);
+                return;
+            }
+            if (MoveFrameCodec.isRewind(line)) {
+                streamer.onRewind();
+                return;
+            }
+        }
+        MoveFrameCodec.Reply reply = MoveFrameCodec.parseReply(line);
+        if (reply != null && profileFrame != null && reply.seq == profileSeq) {
+            if (reply.ack) {
+                profileFrame = null;
+            } else if (profileRetransmits < MAX_RETRANSMITS) {
+                profileRetransmits++;
+                Log.w(TAG, "profile NAKed, retransmit " + profileRetransmits);
+                write(profileFrame);
+            } else {
+                // the jig runs at the speed pot, try again with the next upload
+                Log.w(TAG, "profile NAKed, giving up");
+                profileFrame = null;
+                profileSent = false;
+            }
+            return;
+        }
+        if (reply != null && streamer != null) {
+            streamer.onReply(reply);
+            // the last window of the plan made it
+            if (reply.ack && streamer.isDelivered()) {
+                finishUpload();
+            }
+            return;
+        }
+        if (reply == null || pendingFrame == null || reply.seq != pendingSeq) {
+            return;
+        }
+        if (reply.ack) {
+            pendingFrame = null;
+            finishUpload();
+        } else if (retransmits < MAX_RETRANSMITS) {
+            retransmits++;
+            Log.w(TAG, "frame " + reply.seq + " NAKed, retransmit " + retransmits);
+            write(pendingFrame);
+        } else {
+            Log.w(TAG, "frame " + reply.seq + " NAKed, giving up");
+            pendingFrame = null;
+            uploadStart = 0;
+        }
+    }
+
+    private void finishUpload() {
+        if (uploadStart != 0) {
+            UPLOAD_TIME.stop(uploadStart);
+            uploadStart = 0;
+        }
+    }
+
+    private boolean write(byte[] bytes) {
+        return writeAsync(bytes) != null;
+    }
+
+    /**
+     * Queues the bytes on the writer thread.
+     *
+     * @return null if not connected or the link is saturated.
+     */
+    @Nullable
+    private CompletableFuture<Integer> writeAsync(byte[] bytes) {
+        // read once, the connect thread nulls it when the link closes
+        SerialWriter writer = mWriter;
+        if (!isConnected() || writer == null) {
             Log.d(TAG, "not connected");
-            return false;
+            return null;
         }
-        data += "\n";
-        try {
-            mmOutputStream.write(data.getBytes());
-        } catch (IOException e) {
-            Log.d(TAG, "can't send data." + e);
+        CompletableFuture<Integer> future = writer.write(bytes);
+        if (future.isCompletedExceptionally()) {
+            Log.w(TAG, "can't send data, write queue full");
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * Tells the upload listener once {@code future} is written.
+     *
+     * @return false if nothing got queued.
+     */
+    private boolean reportProgress(
+            @Nullable CompletableFuture<Integer> future, final int sentMoves, final int totalMoves) {
+        if (future == null) {
             return false;
         }
-        Log.d(TAG, "Data Sent");
+        future.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer length, final Throwable error) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mUploadListener == null) {
+                            return;
+                        }
+                        if (error != null) {
+                            mUploadListener.onUploadFailed(error.getMessage());
+                        } else {
+                            mUploadListener.onUploadProgress(sentMoves, totalMoves);
+                        }
+                    }
+                });
+            }
+        });
         return true;
     }
 
+    /**
+     * Disconnects, and stops reconnecting.
+     */
     public void stop() {
+        mAutoReconnect = false;
+        mConnectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                closeLink();
+                mTransport = null;
+            }
+        });
+    }
+
+    /**
+     * Closes the link, runs on the connect thread. {@link #mTransport} is kept to reconnect.
+     */
+    private void closeLink() {
+        connected = false;
+        // no more lines from this link once stopped
+        if (mPoll != null) {
+            mPoll.stop();
+            mPoll = null;
+        }
+        // not what the jig is doing any more, whatever it was
+        synchronized (mStatus) {
+            mStatus.clear();
+        }
+        if (mWriter != null) {
+            mWriter.stop();
+            mWriter = null;
+        }
         try {
             if (mmOutputStream != null) {
                 mmOutputStream.close();
+                mmOutputStream = null;
             }
             if (mmInputStream != null) {
                 mmInputStream.close();
+                mmInputStream = null;
             }
-            if (mmSocket != null) {
-                mmSocket.close();
+            if (mTransport != null) {
+                mTransport.close();
             }
         } catch (IOException e) {
             Log.e(TAG, "can't close bt properly." + e);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,8 +1,13 @@
 package com.rogerxue.machine.boxjoint.boxjoint;
 
+import android.app.AlertDialog;
 import android.app.Fragment;
+import android.content.DialogInterface;
+import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
@@ -11,12 +16,17 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class BoxJointCalculationFragment extends Fragment {
     private static final String TAG = "boxjoint-fragment";
@@ -26,9 +36,16 @@ public class BoxJointCalculationFragment extends Fragment {
     private static final String TOLERANCE_KEY = "tolerance";
     private static final String STOCK_WIDTH_KEY = "stockWidth";
     private static final String SMOOTHNESS_KEY = "smoothness";
+    private static final String STEP_DELAY_KEY = "stepDelay";
+    private static final String PLAN_STORE_FILE = "plans.bin";
+    // speed pot in the middle
+    private static final int DEFAULT_STEP_DELAY = CycleTimeEstimator.stepDelayForPot(512);
+    // patterns a search looks through, and how many of the best it shows
+    private static final int SEARCH_CANDIDATES = 4096;
+    private static final int SEARCH_TOP = 10;
 
-    private List<Integer> gapFirstMoves;
-    private List<Integer> fingerFirstMoves;
+    private MovePlan gapFirstMoves;
+    private MovePlan fingerFirstMoves;
     private TextView mFingerPattern;
     private TextView mGapFirstOutput;
     private TextView mFingerFirstOutput;
@@ -37,17 +54,56 @@ public class BoxJointCalculationFragment extends Fragment {
     private TextView mStockWidth;
     private TextView mSmoothness;
     private TextView mMessage;
+    private TextView mStepDelay;
+    private TextView mGapFirstTime;
+    private TextView mFingerFirstTime;
+    private final MovePlanAdapter mGapFirstAdapter = new MovePlanAdapter();
+    private final MovePlanAdapter mFingerFirstAdapter = new MovePlanAdapter();
+    private RecyclerView mGapFirstMoves;
+    private RecyclerView mFingerFirstMoves;
+    // the plan last sent to the jig, gets the move the jig is on highlighted
+    @Nullable
+    private MovePlan mSentPlan;
+    private CycleTimeEstimator mEstimator = new CycleTimeEstimator(DEFAULT_STEP_DELAY);
 
     // random generator
     private TextView mMinWidth;
     private TextView mMaxWidth;
     private TextView mNumOfPairs;
     private Button mRandomBtn;
+    // empty for a new pattern each time
+    private TextView mSeed;
+    private CheckBox mExactFit;
+    // runs one pattern search at a time, each on the common fork join pool
+    private final ExecutorService mSearchExecutor = Executors.newSingleThreadExecutor();
 
-    private BluetoothSerialUtil mBluetoothSerialUtil;
+    // the jig plans were sent to last, has the upload and move listeners, see currentJig()
+    @Nullable
+    private BluetoothSerialUtil mJig;
+    private BluetoothSerialUtil.UploadListener mUploadListener;
+    private BluetoothSerialUtil.MoveListener mMoveListener;
+    // step timing for the jig, null for its speed pot
+    @Nullable
+    private MotionProfile mMotionProfile;
 
     private final MoveCalculator mMoveCalculator =
             new MoveCalculator();
+    private PlanCalculationScheduler mPlanScheduler;
+    // follows the edits of mFingerPattern
+    private final IncrementalPatternParser mPatternParser = new IncrementalPatternParser();
+    // plans and the job they are for, as last calculated or loaded
+    @Nullable
+    private PlanCalculationScheduler.Result mLastResult;
+
+    // saved jobs, opened, read and written on mStoreExecutor only: a load or a save may wait on
+    // the fsync of the one before
+    @Nullable
+    private PlanStore mPlanStore;
+    private final ExecutorService mStoreExecutor = Executors.newSingleThreadExecutor();
+    private TextView mJobName;
+    private CheckBox mEvenPasses;
+    // ramps long moves up from SPD to full speed, see MotionProfile
+    private CheckBox mAccelerate;
 
     @Override
     public void onSaveInstanceState(Bundle outState) {
@@ -57,12 +113,65 @@ public class BoxJointCalculationFragment extends Fragment {
         outState.putCharSequence(TOLERANCE_KEY, mTolerance.getText());
         outState.putCharSequence(STOCK_WIDTH_KEY, mStockWidth.getText());
         outState.putCharSequence(SMOOTHNESS_KEY, mSmoothness.getText());
+        outState.putCharSequence(STEP_DELAY_KEY, mStepDelay.getText());
     }
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mBluetoothSerialUtil = BluetoothSerialUtil.getInstance();
+        mPlanScheduler = new PlanCalculationScheduler(
+                new PlanCalculationScheduler.Listener() {
+                    @Override
+                    public void onPlansCalculated(PlanCalculationScheduler.Result result) {
+                        showPlans(result);
+                    }
+                });
+        final File file = new File(getActivity().getFilesDir(), PLAN_STORE_FILE);
+        mStoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPlanStore = PlanStore.open(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "can't open saved jobs", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mPlanScheduler.cancel();
+        if (mJig != null) {
+            mJig.setUploadListener(null);
+            mJig.setMoveListener(null);
+            mJig = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mPlanScheduler.shutdown();
+        // after the saves still queued
+        mStoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PlanStore store = mPlanStore;
+                mPlanStore = null;
+                if (store == null) {
+                    return;
+                }
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "can't close saved jobs", e);
+                }
+            }
+        });
+        mStoreExecutor.shutdown();
+        mSearchExecutor.shutdownNow();
     }
 
     @Nullable
@@ -79,6 +188,9 @@ public class BoxJointCalculationFragment extends Fragment {
         mMaxWidth = root.findViewById(R.id.maxWidth);
         mNumOfPairs = root.findViewById(R.id.numOfPairs);
         mRandomBtn = root.findViewById(R.id.random_btn);
+        mSeed = root.findViewById(R.id.seed);
+        mExactFit = root.findViewById(R.id.exact_fit);
+        Button searchBtn = root.findViewById(R.id.search_btn);
 
         mGapFirstOutput = root.findViewById(R.id.gap_first_output);
         mFingerFirstOutput = root.findViewById(R.id.finger_first_output);
@@ -88,10 +200,49 @@ public class BoxJointCalculationFragment extends Fragment {
         mStockWidth = root.findViewById(R.id.stock_width);
         mFingerPattern = root.findViewById(R.id.finger_pattern);
         mMessage = root.findViewById(R.id.message);
+        mStepDelay = root.findViewById(R.id.step_delay);
+        mGapFirstTime = root.findViewById(R.id.gap_first_time);
+        mFingerFirstTime = root.findViewById(R.id.finger_first_time);
         Button sendGapBtn = root.findViewById(R.id.send_gap_first);
         Button sendFingerBtn = root.findViewById(R.id.send_finger_first);
+        mEvenPasses = root.findViewById(R.id.even_passes);
+        mAccelerate = root.findViewById(R.id.accelerate);
+        mJobName = root.findViewById(R.id.job_name);
+        Button saveJobBtn = root.findViewById(R.id.save_job);
+        Button loadJobBtn = root.findViewById(R.id.load_job);
+        Button showMetricsBtn = root.findViewById(R.id.show_metrics);
+        mGapFirstMoves = setUpMoveList(root, R.id.gap_first_moves, mGapFirstAdapter);
+        mFingerFirstMoves = setUpMoveList(root, R.id.finger_first_moves, mFingerFirstAdapter);
+
+        mUploadListener = new BluetoothSerialUtil.UploadListener() {
+            @Override
+            public void onUploadProgress(int sentMoves, int totalMoves) {
+                mMessage.setText(sentMoves < totalMoves
+                        ? "Uploading " + sentMoves + "/" + totalMoves
+                        : "" + totalMoves + " Data send.");
+            }
 
+            @Override
+            public void onUploadFailed(String reason) {
+                mMessage.setText("Data not send: " + reason);
+            }
+        };
+
+        mMoveListener = new BluetoothSerialUtil.MoveListener() {
+            @Override
+            public void onMoveExecuting(int index) {
+                showCurrentMove(index);
+            }
+        };
+        currentJig();
+
+        mPatternParser.reset(mFingerPattern.getText());
         mFingerPattern.addTextChangedListener(new SimpleTextWather() {
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mPatternParser.onTextChanged(s, start, before, count);
+            }
+
             @Override
             public void afterTextChanged(Editable s) {
                 tryCalculateMoves();
@@ -104,11 +255,13 @@ public class BoxJointCalculationFragment extends Fragment {
             mTolerance.setText(savedInstanceState.getCharSequence(TOLERANCE_KEY));
             mStockWidth.setText(savedInstanceState.getCharSequence(STOCK_WIDTH_KEY));
             mSmoothness.setText(savedInstanceState.getCharSequence(SMOOTHNESS_KEY));
+            mStepDelay.setText(savedInstanceState.getCharSequence(STEP_DELAY_KEY));
         } else {
             mKerf.setText(String.valueOf(mMoveCalculator.getKerf()));
             mTolerance.setText(String.valueOf(mMoveCalculator.getTolerance()));
             mSmoothness.setText(String.valueOf(mMoveCalculator.getSmoothness()));
             mStockWidth.setText(String.valueOf(mMoveCalculator.getStockWidth()));
+            mStepDelay.setText(String.valueOf(mEstimator.getStepDelay()));
         }
 
         mRandomBtn.setOnClickListener(new View.OnClickListener() {
@@ -121,9 +274,7 @@ public class BoxJointCalculationFragment extends Fragment {
                         int minWidth = Integer.parseInt(mMinWidth.getText().toString());
                         int maxWidth = Integer.parseInt(mMaxWidth.getText().toString());
                         int numOfpairs = Integer.parseInt(mNumOfPairs.getText().toString());
-                        List<Integer> pattern =
-                                RandomPatternGenerator.generate(minWidth, maxWidth, numOfpairs);
-                        mFingerPattern.setText(TextUtils.join(",", pattern));
+                        generatePattern(minWidth, maxWidth, numOfpairs);
                     } catch (NumberFormatException ex) {
                         Log.w(TAG, "input wrong", ex);
                     }
@@ -131,24 +282,38 @@ public class BoxJointCalculationFragment extends Fragment {
             }
         });
 
+        searchBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                try {
+                    int minWidth = Integer.parseInt(mMinWidth.getText().toString());
+                    int maxWidth = Integer.parseInt(mMaxWidth.getText().toString());
+                    int numOfpairs = Integer.parseInt(mNumOfPairs.getText().toString());
+                    chooseSearchObjective(minWidth, maxWidth, numOfpairs);
+                } catch (NumberFormatException ex) {
+                    mMessage.setText("Set min, max and number of pairs to search");
+                }
+            }
+        });
+
         sendGapBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 if (gapFirstMoves == null || gapFirstMoves.isEmpty()) {
                     Log.w(TAG, "no gapFirstMoves to send");
                     mMessage.setText("No gapFirstMoves to send");
-                } else if (mBluetoothSerialUtil == null) {
-                    Log.w(TAG, "sender not set");
-                    mMessage.setText("sender not set");
+                } else if (currentJig() == null) {
+                    Log.w(TAG, "no jig to send to");
+                    mMessage.setText("Connect to a jig first");
                 } else {
-                    StringBuilder sb = new StringBuilder();
-                    for (int num : gapFirstMoves) {
-                        sb.append(num);
-                        sb.append(",");
-                    }
-                    mMessage.setText(mBluetoothSerialUtil.sendData(sb.toString())
-                            ? "" + gapFirstMoves.size() + " Data send."
+                    // the upload listener reports once the moves are written
+                    boolean sent = mJig.sendMoves(gapFirstMoves);
+                    mMessage.setText(sent
+                            ? "Uploading 0/" + gapFirstMoves.size()
                             : "Data not send");
+                    if (sent) {
+                        onPlanSent(gapFirstMoves);
+                    }
                 }
             }
         });
@@ -159,18 +324,18 @@ public class BoxJointCalculationFragment extends Fragment {
                 if (fingerFirstMoves == null || fingerFirstMoves.isEmpty()) {
                     Log.w(TAG, "no fingerFirstMoves to send");
                     mMessage.setText("No fingerFirstMoves to send");
-                } else if (mBluetoothSerialUtil == null) {
-                    Log.w(TAG, "sender not set");
-                    mMessage.setText("sender not set");
+                } else if (currentJig() == null) {
+                    Log.w(TAG, "no jig to send to");
+                    mMessage.setText("Connect to a jig first");
                 } else {
-                    StringBuilder sb = new StringBuilder();
-                    for (int num : fingerFirstMoves) {
-                        sb.append(num);
-                        sb.append(",");
-                    }
-                    mMessage.setText(mBluetoothSerialUtil.sendData(sb.toString())
-                            ? "" + fingerFirstMoves.size() + " Data send."
+                    // the upload listener reports once the moves are written
+                    boolean sent = mJig.sendMoves(fingerFirstMoves);
+                    mMessage.setText(sent
+                            ? "Uploading 0/" + fingerFirstMoves.size()
                             : "Data not send");
+                    if (sent) {
+                        onPlanSent(fingerFirstMoves);
+                    }
                 }
             }
         });
@@ -184,6 +349,7 @@ public class BoxJointCalculationFragment extends Fragment {
                     tryCalculateMoves();
                 } catch (NumberFormatException e) {
                     mMoveCalculator.setKerf(null);
+                    mPlanScheduler.cancel();
                     mGapFirstOutput.setText("kerf invalid");
                 }
             }
@@ -198,6 +364,7 @@ public class BoxJointCalculationFragment extends Fragment {
                     tryCalculateMoves();
                 } catch (NumberFormatException e) {
                     mMoveCalculator.setTolerance(null);
+                    mPlanScheduler.cancel();
                     mGapFirstOutput.setText("tolerance invalid");
                 }
             }
@@ -212,6 +379,7 @@ public class BoxJointCalculationFragment extends Fragment {
                     tryCalculateMoves();
                 } catch (NumberFormatException e) {
                     mMoveCalculator.setStockWidth(null);
+                    mPlanScheduler.cancel();
                     mGapFirstOutput.setText("stock width invalid");
                 }
             }
@@ -224,6 +392,7 @@ public class BoxJointCalculationFragment extends Fragment {
                 try {
                     double smoothness = Double.parseDouble(s.toString());
                     if (smoothness <= 0 || smoothness >= 1) {
+                        mPlanScheduler.cancel();
                         mGapFirstOutput.setText("smoothness should be (0 - 1)");
                         mMoveCalculator.setSmoothness(null);
                     } else {
@@ -232,42 +401,459 @@ public class BoxJointCalculationFragment extends Fragment {
                         tryCalculateMoves();
                     }
                 } catch (NumberFormatException e) {
+                    mPlanScheduler.cancel();
                     mGapFirstOutput.setText("smoothness invalid");
                 }
             }
         });
+
+        mEvenPasses.setChecked(
+                mMoveCalculator.getGapClearing() == MoveCalculator.GapClearing.EVEN);
+        mEvenPasses.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                mMoveCalculator.setGapClearing(isChecked
+                        ? MoveCalculator.GapClearing.EVEN
+                        : MoveCalculator.GapClearing.FIXED_STEP);
+                tryCalculateMoves();
+            }
+        });
+
+        mStepDelay.addTextChangedListener(new SimpleTextWather() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateMotionProfile();
+            }
+        });
+
+        mAccelerate.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                updateMotionProfile();
+            }
+        });
+        updateMotionProfile();
+
+        saveJobBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                saveJob(mJobName.getText().toString().trim());
+            }
+        });
+
+        loadJobBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                String name = mJobName.getText().toString().trim();
+                loadJob(name.isEmpty() ? null : name);
+            }
+        });
+
+        showMetricsBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showMetrics();
+            }
+        });
+
+        if (savedInstanceState == null) {
+            // pick up where the last session left off
+            loadJob(null);
+        }
         return root;
     }
 
-    private void tryCalculateMoves() {
-        List<String> patternList = Arrays.asList(mFingerPattern.getText().toString().split(","));
-        gapFirstMoves = mMoveCalculator.calculate(toNumberList(patternList), false);
-        mGapFirstOutput.setText(gapFirstMoves != null
-                ? TextUtils.join(",", gapFirstMoves)
-                : "invalid pattern");
-        fingerFirstMoves = mMoveCalculator.calculate(toNumberList(patternList), true);
-        mFingerFirstOutput.setText(fingerFirstMoves != null
-                ? TextUtils.join(",", fingerFirstMoves)
-                : "invalid pattern");
+    private void showPlans(PlanCalculationScheduler.Result result) {
+        mLastResult = result;
+        gapFirstMoves = result.gapFirst;
+        fingerFirstMoves = result.fingerFirst;
+        mGapFirstOutput.setText(result.gapFirstText);
+        mFingerFirstOutput.setText(result.fingerFirstText);
+        mGapFirstAdapter.setPlan(gapFirstMoves);
+        mFingerFirstAdapter.setPlan(fingerFirstMoves);
+        showCycleTimes();
     }
 
     /**
-     * Number list alternate between gap width and finger width, start with gap width.
-     * It needs to be in even numbers.
+     * Shows the metrics dump, which can be shared as text for a closer look.
+     */
+    private void showMetrics() {
+        final String dump = Metrics.getInstance().dump();
+        new AlertDialog.Builder(getActivity())
+                .setTitle("Metrics")
+                .setMessage(dump)
+                .setPositiveButton("Share", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent send = new Intent(Intent.ACTION_SEND)
+                                .setType("text/plain")
+                                .putExtra(Intent.EXTRA_SUBJECT, "boxjoint metrics")
+                                .putExtra(Intent.EXTRA_TEXT, dump);
+                        startActivity(Intent.createChooser(send, "Share metrics"));
+                    }
+                })
+                .setNegativeButton("Reset", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Metrics.getInstance().reset();
+                    }
+                })
+                .show();
+    }
+
+    private void saveJob(final String name) {
+        if (name.isEmpty()) {
+            mMessage.setText("Name the job to save it");
+            return;
+        } else if (mLastResult == null || mLastResult.job == null) {
+            mMessage.setText("Nothing to save");
+            return;
+        }
+        CutJob job = mLastResult.job;
+        final PlanStore.Record record = new PlanStore.Record(name, System.currentTimeMillis(),
+                job.settings, job.stockWidth, job.getPattern(),
+                mLastResult.gapFirst, mLastResult.fingerFirst);
+        mStoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    if (mPlanStore == null) {
+                        throw new IOException("no saved jobs");
+                    }
+                    mPlanStore.save(record);
+                    message = "Saved " + name;
+                } catch (IOException e) {
+                    Log.w(TAG, "can't save " + name, e);
+                    message = "Not saved: " + e.getMessage();
+                }
+                final String text = message;
+                mMessage.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mMessage.setText(text);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Loads a saved job on the store thread, then shows it.
+     *
+     * @param name null for the one saved last.
+     */
+    private void loadJob(@Nullable final String name) {
+        mStoreExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PlanStore.Record record = null;
+                try {
+                    String toLoad = name == null && mPlanStore != null
+                            ? mPlanStore.getLatestName()
+                            : name;
+                    record = toLoad != null && mPlanStore != null
+                            ? mPlanStore.load(toLoad)
+                            : null;
+                } catch (IOException e) {
+                    Log.w(TAG, "can't load " + name, e);
+                }
+                final PlanStore.Record loaded = record;
+                mMessage.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded()) {
+                            showJob(name, loaded);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Restores the settings, pattern and plans of a saved job. The plans are taken as saved,
+     * nothing is recalculated.
+     */
+    private void showJob(@Nullable String name, @Nullable PlanStore.Record record) {
+        if (record == null) {
+            if (name != null) {
+                mMessage.setText("No saved job " + name);
+            }
+            return;
+        }
+        CutSettings settings = record.settings;
+        mJobName.setText(record.name);
+        mKerf.setText(String.valueOf(settings.kerf));
+        mTolerance.setText(String.valueOf(settings.tolerance));
+        mSmoothness.setText(String.valueOf(settings.smoothness));
+        mStockWidth.setText(String.valueOf(record.stockWidth));
+        mEvenPasses.setChecked(settings.gapClearing == MoveCalculator.GapClearing.EVEN);
+        setPattern(record.getPattern());
+        // the edits above asked for the plans we already have
+        mPlanScheduler.cancel();
+        showPlans(new PlanCalculationScheduler.Result(record.toJob(false),
+                record.gapFirst, null, record.fingerFirst, null));
+        mMessage.setText("Loaded " + record.name);
+    }
+
+    private RecyclerView setUpMoveList(View root, int id, MovePlanAdapter adapter) {
+        RecyclerView list = root.findViewById(id);
+        list.setLayoutManager(
+                new LinearLayoutManager(getActivity(), LinearLayoutManager.HORIZONTAL, false));
+        list.setHasFixedSize(true);
+        // the highlight moves every few seconds, no need to cross fade the rows
+        list.setItemAnimator(null);
+        list.setAdapter(adapter);
+        return list;
+    }
+
+    private void onPlanSent(MovePlan plan) {
+        mSentPlan = plan;
+        mGapFirstAdapter.setCurrentMove(RecyclerView.NO_POSITION);
+        mFingerFirstAdapter.setCurrentMove(RecyclerView.NO_POSITION);
+    }
+
+    private void showCurrentMove(int index) {
+        MovePlanAdapter adapter;
+        RecyclerView list;
+        if (mSentPlan != null && mSentPlan == mGapFirstAdapter.getPlan()) {
+            adapter = mGapFirstAdapter;
+            list = mGapFirstMoves;
+        } else if (mSentPlan != null && mSentPlan == mFingerFirstAdapter.getPlan()) {
+            adapter = mFingerFirstAdapter;
+            list = mFingerFirstMoves;
+        } else {
+            // recalculated since it was sent, the rows no longer match what the jig runs
+            return;
+        }
+        adapter.setCurrentMove(index);
+        if (adapter.getCurrentMove() != RecyclerView.NO_POSITION) {
+            list.scrollToPosition(index);
+        }
+    }
+
+    /**
+     * Plans the step timing of the jig from SPD, and whether to ramp up from it, for the
+     * estimates and the next upload. Only binary uploads take the profile, so the estimates only
+     * do when the jig gets them.
+     */
+    private void updateMotionProfile() {
+        int stepDelay;
+        try {
+            stepDelay = Integer.parseInt(mStepDelay.getText().toString());
+        } catch (NumberFormatException e) {
+            mGapFirstTime.setText("speed invalid");
+            mFingerFirstTime.setText("");
+            return;
+        }
+        mEstimator = new CycleTimeEstimator(stepDelay);
+        MotionProfile profile = null;
+        if (mAccelerate.isChecked()) {
+            profile = MotionProfile.trapezoid(mEstimator.getStepDelay(),
+                    MotionProfile.DEFAULT_CRUISE_DELAY_MICROS, MotionProfile.DEFAULT_ACCELERATION);
+        }
+        mMotionProfile = profile;
+        BluetoothSerialUtil jig = currentJig();
+        // the jig times ASCII plans by SPD whatever profile it got
+        if (profile != null && jig != null && jig.isBinaryProtocol()) {
+            mEstimator = new CycleTimeEstimator(profile);
+        }
+        showCycleTimes();
+    }
+
+    /**
+     * The jig to send plans to, the current one of {@link JigConnectionManager}. The listeners
+     * and the motion profile move over when another jig became current since.
      */
     @Nullable
-    private List<Integer> toNumberList(List<String> strings) {
-        List<Integer> numbers = new ArrayList<>();
-        int number;
-        for (String string : strings) {
-            try {
-                number = Integer.parseInt(string);
-            } catch (NumberFormatException e) {
-                return null;
+    private BluetoothSerialUtil currentJig() {
+        BluetoothSerialUtil jig = JigConnectionManager.getInstance().getCurrentJig();
+        if (jig != mJig) {
+            if (mJig != null) {
+                mJig.setUploadListener(null);
+                mJig.setMoveListener(null);
+            }
+            mJig = jig;
+            if (jig != null) {
+                jig.setUploadListener(mUploadListener);
+                jig.setMoveListener(mMoveListener);
             }
-            numbers.add(number);
         }
-        return numbers;
+        if (jig != null) {
+            jig.setMotionProfile(mMotionProfile);
+        }
+        return jig;
+    }
+
+    /**
+     * Fills in a random pattern the calculator takes as it is set up, from the seed if one is
+     * given, and tells the seed to get it again.
+     */
+    private void generatePattern(int minWidth, int maxWidth, int pairCount) {
+        String seed = mSeed.getText().toString().trim();
+        RandomPatternGenerator generator;
+        try {
+            generator = seed.isEmpty()
+                    ? new RandomPatternGenerator()
+                    : new RandomPatternGenerator(Long.parseLong(seed));
+        } catch (NumberFormatException e) {
+            mMessage.setText("Seed invalid");
+            return;
+        }
+        Integer kerf = mMoveCalculator.getKerf();
+        Integer tolerance = mMoveCalculator.getTolerance();
+        Integer stockWidth = mMoveCalculator.getStockWidth();
+        if (kerf == null || tolerance == null || (mExactFit.isChecked() && stockWidth == null)) {
+            mMessage.setText("Set up kerf, tolerance and stock width first");
+            return;
+        }
+        int[] pattern = generator.setWidths(minWidth, maxWidth)
+                .setNarrowest(kerf + tolerance)
+                .setFitWidth(mExactFit.isChecked() ? stockWidth : 0)
+                .generate(pairCount);
+        if (pattern == null) {
+            mMessage.setText(generator.getLastError());
+            return;
+        }
+        setPattern(pattern);
+        mMessage.setText("Pattern seed " + generator.getSeed());
+    }
+
+    private void chooseSearchObjective(
+            final int minWidth, final int maxWidth, final int maxPairs) {
+        final PatternSearch.Objective[] objectives = PatternSearch.Objective.values();
+        new AlertDialog.Builder(getActivity())
+                .setTitle("Search " + SEARCH_CANDIDATES + " patterns for")
+                .setItems(new String[] {"Fewest passes", "Shortest traverse", "Fastest on the jig"},
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                searchPatterns(objectives[which], minWidth, maxWidth, maxPairs);
+                            }
+                        })
+                .show();
+    }
+
+    /**
+     * Searches patterns of 1 to {@code maxPairs} pairs the calculator takes as it is set up, in
+     * the background, and offers the best.
+     */
+    private void searchPatterns(
+            PatternSearch.Objective objective, int minWidth, int maxWidth, int maxPairs) {
+        Integer kerf = mMoveCalculator.getKerf();
+        Integer tolerance = mMoveCalculator.getTolerance();
+        Double smoothness = mMoveCalculator.getSmoothness();
+        Integer stockWidth = mMoveCalculator.getStockWidth();
+        if (kerf == null || tolerance == null || smoothness == null || stockWidth == null) {
+            mMessage.setText("Set up kerf, tolerance, smoothness and stock width first");
+            return;
+        }
+        String seedText = mSeed.getText().toString().trim();
+        final long seed;
+        try {
+            seed = seedText.isEmpty()
+                    ? new SplittableRandom().nextLong()
+                    : Long.parseLong(seedText);
+        } catch (NumberFormatException e) {
+            mMessage.setText("Seed invalid");
+            return;
+        }
+        final PatternSearch search = new PatternSearch()
+                .setSettings(new CutSettings(kerf, tolerance, smoothness,
+                        mMoveCalculator.getGapClearing()), stockWidth)
+                .setWidths(minWidth, maxWidth)
+                .setPairs(1, maxPairs)
+                .setExactFit(mExactFit.isChecked())
+                .setObjective(objective)
+                .setEstimator(mEstimator);
+        mMessage.setText("Searching...");
+        mSearchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<PatternSearch.Candidate> found =
+                        search.search(SEARCH_CANDIDATES, SEARCH_TOP, seed);
+                mMessage.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded()) {
+                            showSearchResults(found, seed);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void showSearchResults(final List<PatternSearch.Candidate> found, long seed) {
+        if (found.isEmpty()) {
+            mMessage.setText("No pattern fits, try other widths or pairs");
+            return;
+        }
+        mMessage.setText("Search seed " + seed);
+        String[] items = new String[found.size()];
+        for (int i = 0; i < items.length; ++i) {
+            PatternSearch.Candidate candidate = found.get(i);
+            items[i] = candidate.passes + " passes, " + formatDuration(candidate.micros) + ": "
+                    + formatPattern(candidate.getPattern());
+        }
+        new AlertDialog.Builder(getActivity())
+                .setTitle("Best patterns")
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setPattern(found.get(which).getPattern());
+                    }
+                })
+                .show();
+    }
+
+    private void setPattern(int[] widths) {
+        mFingerPattern.setText(formatPattern(widths));
+    }
+
+    private static String formatPattern(int[] widths) {
+        StringBuilder pattern = new StringBuilder();
+        for (int width : widths) {
+            if (pattern.length() > 0) {
+                pattern.append(',');
+            }
+            pattern.append(width);
+        }
+        return pattern.toString();
+    }
+
+    private void showCycleTimes() {
+        mGapFirstTime.setText(formatCycleTime(gapFirstMoves));
+        mFingerFirstTime.setText(formatCycleTime(fingerFirstMoves));
+    }
+
+    private String formatCycleTime(@Nullable MovePlan plan) {
+        if (plan == null || plan.isEmpty()) {
+            return "";
+        }
+        CycleTimeEstimator.Estimate estimate = mEstimator.estimate(plan);
+        return "Jig time: " + formatDuration(estimate.getTotalMicros())
+                + " (traverse " + formatDuration(estimate.traverseMicros)
+                + ", dwell " + formatDuration(estimate.dwellMicros) + ")";
+    }
+
+    private static String formatDuration(long micros) {
+        long seconds = (micros + 500000) / 1000000;
+        return seconds >= 60
+                ? seconds / 60 + "m " + seconds % 60 + "s"
+                : seconds + "s";
+    }
+
+    private void tryCalculateMoves() {
+        if (!mPatternParser.isValid()) {
+            mPlanScheduler.cancel();
+            mGapFirstOutput.setText(
+                    "invalid number at " + mPatternParser.getErrorOffset());
+            mFingerFirstOutput.setText("");
+            return;
+        }
+        mPlanScheduler.request(mMoveCalculator, mPatternParser.toArray());
     }
 
     private abstract class SimpleTextWather implements TextWatcher {
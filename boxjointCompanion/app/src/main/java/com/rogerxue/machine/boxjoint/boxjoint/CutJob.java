@@ -0,0 +1,55 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.Arrays;
+
+/**
+ * One joint of a project: a board of {@code stockWidth} cut to {@code pattern}, immutable.
+ */
+public final class CutJob {
+    public final String name;
+    public final CutSettings settings;
+    public final int stockWidth;
+    public final boolean fingerFirst;
+    private final int[] pattern;
+
+    public CutJob(
+            String name,
+            CutSettings settings,
+            int stockWidth,
+            int[] pattern,
+            boolean fingerFirst) {
+        this.name = name;
+        this.settings = settings;
+        this.stockWidth = stockWidth;
+        this.pattern = pattern.clone();
+        this.fingerFirst = fingerFirst;
+    }
+
+    /**
+     * The two boards of a joint: the mating board cuts the same pattern the other way around.
+     */
+    public CutJob mate(String name) {
+        return new CutJob(name, settings, stockWidth, pattern, !fingerFirst);
+    }
+
+    public int[] getPattern() {
+        return pattern.clone();
+    }
+
+    /**
+     * The moves of this job, with {@code calculator} only touched by the calling thread.
+     *
+     * @return null if the job is invalid, see {@link MoveCalculator#getLastError()}.
+     */
+    MovePlan calculate(MoveCalculator calculator) {
+        return settings.applyTo(calculator, stockWidth)
+                .calculate(pattern, pattern.length, fingerFirst);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + Arrays.toString(pattern)
+                + (fingerFirst ? " finger first" : " gap first")
+                + " on " + stockWidth + ", " + settings;
+    }
+}
@@ -0,0 +1,68 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plans of a batch of {@link CutJob}s, in the order of the jobs. A job that can't be cut has an
+ * error instead of a plan, the others are planned regardless.
+ */
+public final class CutList {
+
+    public static final class Entry {
+        public final CutJob job;
+        @Nullable
+        public final MovePlan plan;
+        @Nullable
+        public final String error;
+
+        Entry(CutJob job, @Nullable MovePlan plan, @Nullable String error) {
+            this.job = job;
+            this.plan = plan;
+            this.error = error;
+        }
+
+        public boolean isValid() {
+            return plan != null;
+        }
+    }
+
+    private final List<Entry> mEntries;
+    private final int mTotalMoves;
+    private final int mErrors;
+
+    CutList(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(entries);
+        int totalMoves = 0;
+        int errors = 0;
+        for (Entry entry : entries) {
+            if (entry.isValid()) {
+                totalMoves += entry.plan.size();
+            } else {
+                ++errors;
+            }
+        }
+        mTotalMoves = totalMoves;
+        mErrors = errors;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Moves of all valid jobs.
+     */
+    public int getTotalMoves() {
+        return mTotalMoves;
+    }
+
+    /**
+     * Number of jobs that couldn't be planned.
+     */
+    public int getErrors() {
+        return mErrors;
+    }
+}
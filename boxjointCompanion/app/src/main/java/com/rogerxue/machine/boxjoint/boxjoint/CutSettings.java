@@ -0,0 +1,42 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+/**
+ * Immutable setup of the saw and jig for a {@link CutJob}, see {@link MoveCalculator} for what
+ * the values mean. All units in thou.
+ */
+public final class CutSettings {
+    public final int kerf;
+    public final int tolerance;
+    public final double smoothness;
+    public final MoveCalculator.GapClearing gapClearing;
+
+    public CutSettings(int kerf, int tolerance, double smoothness) {
+        this(kerf, tolerance, smoothness, MoveCalculator.GapClearing.FIXED_STEP);
+    }
+
+    public CutSettings(
+            int kerf, int tolerance, double smoothness, MoveCalculator.GapClearing gapClearing) {
+        this.kerf = kerf;
+        this.tolerance = tolerance;
+        this.smoothness = smoothness;
+        this.gapClearing = gapClearing;
+    }
+
+    /**
+     * Sets up {@code calculator} for these settings and {@code stockWidth}. The calculator keeps
+     * its gap cache if the settings didn't change.
+     */
+    MoveCalculator applyTo(MoveCalculator calculator, int stockWidth) {
+        return calculator.setKerf(kerf)
+                .setTolerance(tolerance)
+                .setSmoothness(smoothness)
+                .setGapClearing(gapClearing)
+                .setStockWidth(stockWidth);
+    }
+
+    @Override
+    public String toString() {
+        return "kerf " + kerf + ", tolerance " + tolerance + ", smoothness " + smoothness
+                + ", " + gapClearing;
+    }
+}
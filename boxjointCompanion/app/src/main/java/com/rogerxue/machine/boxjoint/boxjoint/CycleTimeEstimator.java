@@ -0,0 +1,106 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Predicts how long the jig takes to execute a plan, following the motion model of the
+ * firmware:
+ * <ul>
+ *   <li>a move of {@code thou} is {@code |thou| * STEP_PER_THOU} steps,
+ *   <li>each step takes {@code 2 * stepDelay} microseconds, stepDelay is set by the speed pot and
+ *   shown as SPD on the jig, or by the {@link MotionProfile} the jig was sent,
+ *   <li>after a move under {@link #SMALL_MOVE} thou the jig dwells 300 ms.
+ * </ul>
+ * Time at the saw between moves and LCD updates aren't counted.
+ */
+public class CycleTimeEstimator {
+    // stepsPerRevolution * microstep * TPI / 1000, integer division like the firmware
+    public static final int STEP_PER_THOU = 200 * 8 * 18 / 1000;
+    public static final int MIN_STEP_DELAY_MICROS = 45;
+    public static final int MAX_STEP_DELAY_MICROS = 400;
+    public static final int SMALL_MOVE = 100;
+    public static final long SMALL_MOVE_DWELL_MICROS = 300 * 1000L;
+    private static final int MAX_POT = 1023;
+
+    private final int stepDelay;
+    @Nullable
+    private final MotionProfile profile;
+
+    /**
+     * Time a plan takes, in microseconds.
+     */
+    public static class Estimate {
+        public final int moves;
+        public final long traverseMicros;
+        public final long dwellMicros;
+
+        Estimate(int moves, long traverseMicros, long dwellMicros) {
+            this.moves = moves;
+            this.traverseMicros = traverseMicros;
+            this.dwellMicros = dwellMicros;
+        }
+
+        public long getTotalMicros() {
+            return traverseMicros + dwellMicros;
+        }
+    }
+
+    /**
+     * @param stepDelay in microseconds, the SPD on the jig, clamped to the range of the pot.
+     */
+    public CycleTimeEstimator(int stepDelay) {
+        this.stepDelay =
+                Math.max(MIN_STEP_DELAY_MICROS, Math.min(MAX_STEP_DELAY_MICROS, stepDelay));
+        this.profile = null;
+    }
+
+    /**
+     * Times the moves by {@code profile}, its start delay is the step delay.
+     */
+    public CycleTimeEstimator(MotionProfile profile) {
+        this.stepDelay = profile.getStartDelay();
+        this.profile = profile;
+    }
+
+    /**
+     * The step delay the firmware sets for a reading of the speed pot, from 0 to 1023.
+     */
+    public static int stepDelayForPot(int reading) {
+        reading = Math.max(0, Math.min(MAX_POT, reading));
+        // map() of the Arduino
+        return MIN_STEP_DELAY_MICROS
+                + reading * (MAX_STEP_DELAY_MICROS - MIN_STEP_DELAY_MICROS) / MAX_POT;
+    }
+
+    public int getStepDelay() {
+        return stepDelay;
+    }
+
+    @Nullable
+    public MotionProfile getProfile() {
+        return profile;
+    }
+
+    public Estimate estimate(MovePlan plan) {
+        return estimate(plan.array(), 0, plan.size());
+    }
+
+    public Estimate estimate(int[] moves, int offset, int count) {
+        long steps = 0;
+        long traverseMicros = 0;
+        int smallMoves = 0;
+        for (int i = offset; i < offset + count; ++i) {
+            steps += Math.abs(moves[i]);
+            if (profile != null) {
+                traverseMicros += profile.getMoveMicros(Math.abs(moves[i]) * STEP_PER_THOU);
+            }
+            if (moves[i] < SMALL_MOVE) {
+                ++smallMoves;
+            }
+        }
+        if (profile == null) {
+            traverseMicros = steps * STEP_PER_THOU * 2 * stepDelay;
+        }
+        return new Estimate(count, traverseMicros, smallMoves * SMALL_MOVE_DWELL_MICROS);
+    }
+}
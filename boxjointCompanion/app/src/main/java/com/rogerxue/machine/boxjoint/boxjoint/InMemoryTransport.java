@@ -0,0 +1,49 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads canned bytes and records whatever is written, for tests. Reads hit end of stream once
+ * the canned bytes are consumed.
+ */
+public class InMemoryTransport implements SerialTransport {
+    private final ByteArrayInputStream mInput;
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    public InMemoryTransport(byte[] input) {
+        mInput = new ByteArrayInputStream(input);
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInput;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    /**
+     * Everything written so far.
+     */
+    public byte[] getWritten() {
+        return mOutput.toByteArray();
+    }
+
+    @Override
+    public String getName() {
+        return "in-memory";
+    }
+
+    @Override
+    public void close() {
+    }
+}
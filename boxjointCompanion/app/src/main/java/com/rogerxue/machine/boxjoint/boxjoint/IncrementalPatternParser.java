@@ -0,0 +1,208 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the numbers of a pattern being edited, re-parsing only the tokens an edit touches.
+ *
+ * Feed it every edit from {@link android.text.TextWatcher#onTextChanged}, the tokens before the
+ * edit are kept, the ones after it are only shifted. Numbers go into a primitive buffer, and a
+ * bad token is reported by its offset in the text. Same grammar as {@link PatternParser}.
+ *
+ * Not thread safe.
+ */
+public class IncrementalPatternParser {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // tokens between separators, an empty text is a single empty token
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+    private int[] mEnds = new int[INITIAL_CAPACITY];
+    private int[] mValues = new int[INITIAL_CAPACITY];
+    private boolean[] mBad = new boolean[INITIAL_CAPACITY];
+    private int mCount = 1;
+    private int mBadCount = 1;
+    // tokens of the edited range, reused
+    private int[] mNewStarts = new int[INITIAL_CAPACITY];
+    private int[] mNewEnds = new int[INITIAL_CAPACITY];
+    private int[] mNewValues = new int[INITIAL_CAPACITY];
+    private boolean[] mNewBad = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * Parses all of {@code text}.
+     */
+    public void reset(CharSequence text) {
+        mCount = 0;
+        mBadCount = 0;
+        splice(text, 0, 0, 0, text.length(), 0);
+    }
+
+    /**
+     * {@code before} characters at {@code start} were replaced by {@code count} characters,
+     * {@code text} is the text after the edit.
+     */
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        int delta = count - before;
+        if (mEnds[mCount - 1] + delta != text.length() || start + before > mEnds[mCount - 1]) {
+            // missed an edit
+            reset(text);
+            return;
+        }
+        // the first token ending at or after the edit, and the last one starting before its end
+        int first = firstEndingAtOrAfter(start);
+        int last = lastStartingAtOrBefore(start + before);
+        splice(text, first, last + 1, mStarts[first], mEnds[last] + delta, delta);
+    }
+
+    /**
+     * Replaces tokens {@code from} to {@code to} (excluding) with the tokens of {@code text}
+     * between {@code textFrom} and {@code textTo}, shifting the following ones by {@code delta}.
+     */
+    private void splice(
+            CharSequence text, int from, int to, int textFrom, int textTo, int delta) {
+        int newCount = 0;
+        int start = textFrom;
+        while (true) {
+            int end = PatternParser.nextSeparator(text, start, textTo);
+            long value = PatternParser.parseNumber(text, start, end);
+            if (newCount == mNewStarts.length) {
+                int capacity = newCount * 2;
+                mNewStarts = Arrays.copyOf(mNewStarts, capacity);
+                mNewEnds = Arrays.copyOf(mNewEnds, capacity);
+                mNewValues = Arrays.copyOf(mNewValues, capacity);
+                mNewBad = Arrays.copyOf(mNewBad, capacity);
+            }
+            mNewStarts[newCount] = start;
+            mNewEnds[newCount] = end;
+            mNewBad[newCount] = value == PatternParser.INVALID;
+            mNewValues[newCount] = (int) value;
+            ++newCount;
+            if (end == textTo) {
+                break;
+            }
+            start = end + 1;
+        }
+
+        for (int i = from; i < to; ++i) {
+            if (mBad[i]) {
+                --mBadCount;
+            }
+        }
+        int tail = mCount - to;
+        int count = from + newCount + tail;
+        ensureCapacity(count);
+        int newTo = from + newCount;
+        if (newTo != to) {
+            System.arraycopy(mStarts, to, mStarts, newTo, tail);
+            System.arraycopy(mEnds, to, mEnds, newTo, tail);
+            System.arraycopy(mValues, to, mValues, newTo, tail);
+            System.arraycopy(mBad, to, mBad, newTo, tail);
+        }
+        if (delta != 0) {
+            for (int i = newTo; i < count; ++i) {
+                mStarts[i] += delta;
+                mEnds[i] += delta;
+            }
+        }
+        System.arraycopy(mNewStarts, 0, mStarts, from, newCount);
+        System.arraycopy(mNewEnds, 0, mEnds, from, newCount);
+        System.arraycopy(mNewValues, 0, mValues, from, newCount);
+        System.arraycopy(mNewBad, 0, mBad, from, newCount);
+        for (int i = 0; i < newCount; ++i) {
+            if (mNewBad[i]) {
+                ++mBadCount;
+            }
+        }
+        mCount = count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mStarts.length < capacity) {
+            capacity = Math.max(capacity, mStarts.length * 2);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mEnds = Arrays.copyOf(mEnds, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mBad = Arrays.copyOf(mBad, capacity);
+        }
+    }
+
+    private int firstEndingAtOrAfter(int position) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mEnds[middle] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int lastStartingAtOrBefore(int position) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mStarts[middle] > position) {
+                high = middle - 1;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Trailing commas, and so empty tokens, are ignored. Not the token of an empty text, which
+     * isn't a number, as in {@link PatternParser#parse}.
+     */
+    private int trailingEmpty() {
+        if (mEnds[mCount - 1] == 0) {
+            return 0;
+        }
+        int empty = 0;
+        for (int i = mCount - 1; i >= 0 && mStarts[i] == mEnds[i]; --i) {
+            ++empty;
+        }
+        return empty;
+    }
+
+    /**
+     * Number of values in the pattern, only meaningful if {@link #isValid()}.
+     */
+    public int size() {
+        return mCount - trailingEmpty();
+    }
+
+    public boolean isValid() {
+        return mBadCount == trailingEmpty();
+    }
+
+    /**
+     * Offset in the text of the first token that isn't a number, -1 if none.
+     */
+    public int getErrorOffset() {
+        int size = size();
+        for (int i = 0; i < size; ++i) {
+            if (mBad[i]) {
+                return mStarts[i];
+            }
+        }
+        return -1;
+    }
+
+    public int get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Copy of the values, e.g. to hand over to another thread.
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(mValues, size());
+    }
+}
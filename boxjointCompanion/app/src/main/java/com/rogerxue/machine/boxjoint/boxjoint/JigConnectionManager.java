@@ -0,0 +1,212 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a serial session, a {@link BluetoothSerialUtil}, for each jig the app drives, by the
+ * name of its paired device, and the threads they share: a couple of threads polling every
+ * link for lines, see {@link SerialPoller}, and a couple opening and closing links, which
+ * block for seconds. Each session still has its own listeners and write queue.
+ *
+ * One jig at a time is current, the one plans are sent to from the UI.
+ */
+public class JigConnectionManager {
+    private static final String TAG = "JigConnectionManager";
+    static final int READER_THREADS = 2;
+    static final int CONNECT_THREADS = 2;
+    // preferences the sessions keep the jigs connected to in
+    static final String PREF_LAST_DEVICE = "lastDevice";
+    static final String PREF_DEVICES = "devices";
+    static final String PREF_ADDRESS_PREFIX = "address.";
+
+    private static final JigConnectionManager sInstance = new JigConnectionManager(
+            Executors.newScheduledThreadPool(READER_THREADS, threads(TAG + "-reader")),
+            Executors.newScheduledThreadPool(CONNECT_THREADS, threads(TAG + "-connect")));
+
+    private final ScheduledExecutorService mConnectPool;
+    private final SerialPoller mPoller;
+    // guarded by this, in the order they were added
+    private final Map<String, BluetoothSerialUtil> mJigs = new LinkedHashMap<>();
+    @Nullable
+    private String mCurrent;
+    @Nullable
+    private SharedPreferences mPreferences;
+
+    public static JigConnectionManager getInstance() {
+        return sInstance;
+    }
+
+    JigConnectionManager(ScheduledExecutorService readerPool,
+            ScheduledExecutorService connectPool) {
+        mPoller = new SerialPoller(readerPool);
+        mConnectPool = connectPool;
+    }
+
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * The session of the jig on {@code deviceName}, made if there's none yet. Not connected
+     * until {@link BluetoothSerialUtil#connect()}.
+     */
+    public synchronized BluetoothSerialUtil getJig(String deviceName) {
+        BluetoothSerialUtil jig = mJigs.get(deviceName);
+        if (jig == null) {
+            jig = new BluetoothSerialUtil(deviceName, mConnectPool, mPoller);
+            jig.setPreferences(mPreferences);
+            mJigs.put(deviceName, jig);
+        }
+        return jig;
+    }
+
+    /**
+     * Sessions of all the jigs, in the order they were added.
+     */
+    public synchronized List<BluetoothSerialUtil> getJigs() {
+        return new ArrayList<>(mJigs.values());
+    }
+
+    /**
+     * @return the jig plans are sent to, null if none was connected to yet.
+     */
+    @Nullable
+    public synchronized BluetoothSerialUtil getCurrentJig() {
+        return mCurrent != null ? mJigs.get(mCurrent) : null;
+    }
+
+    public synchronized BluetoothSerialUtil setCurrentJig(String deviceName) {
+        BluetoothSerialUtil jig = getJig(deviceName);
+        mCurrent = deviceName;
+        return jig;
+    }
+
+    /**
+     * Connects to the jig on {@code deviceName} in the background and makes it the current
+     * one, see {@link BluetoothSerialUtil#connect()}.
+     */
+    public BluetoothSerialUtil connect(String deviceName) {
+        BluetoothSerialUtil jig = setCurrentJig(deviceName);
+        jig.connect();
+        return jig;
+    }
+
+    /**
+     * Disconnects the jig on {@code deviceName} and forgets its session, and that it was
+     * connected to, so {@link #connectToLastDevices()} leaves it alone.
+     */
+    public void remove(String deviceName) {
+        BluetoothSerialUtil jig;
+        synchronized (this) {
+            jig = mJigs.remove(deviceName);
+            if (deviceName.equals(mCurrent)) {
+                mCurrent = null;
+            }
+        }
+        if (jig != null) {
+            // a connect still running doesn't remember it again
+            jig.setPreferences(null);
+            jig.stop();
+        }
+        forgetDevice(deviceName);
+    }
+
+    private synchronized void forgetDevice(String deviceName) {
+        if (mPreferences == null) {
+            return;
+        }
+        // the set handed out mustn't be changed
+        Set<String> devices = new HashSet<>(
+                mPreferences.getStringSet(PREF_DEVICES, Collections.<String>emptySet()));
+        devices.remove(deviceName);
+        SharedPreferences.Editor editor = mPreferences.edit()
+                .putStringSet(PREF_DEVICES, devices)
+                .remove(PREF_ADDRESS_PREFIX + deviceName);
+        if (deviceName.equals(mPreferences.getString(PREF_LAST_DEVICE, null))) {
+            editor.remove(PREF_LAST_DEVICE);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Disconnects all the jigs, they stop reconnecting.
+     */
+    public void stopAll() {
+        for (BluetoothSerialUtil jig : getJigs()) {
+            jig.stop();
+        }
+    }
+
+    /**
+     * Keeps the jigs connected to, and where to find them, in {@code preferences}, for
+     * {@link #connectToLastDevices()}.
+     */
+    public synchronized void setPreferences(@Nullable SharedPreferences preferences) {
+        mPreferences = preferences;
+        for (BluetoothSerialUtil jig : mJigs.values()) {
+            jig.setPreferences(preferences);
+        }
+    }
+
+    /**
+     * @return the name of the device connected to last, null if none.
+     */
+    @Nullable
+    public synchronized String getLastDeviceName() {
+        return mPreferences != null ? mPreferences.getString(PREF_LAST_DEVICE, null) : null;
+    }
+
+    /**
+     * Connects to every jig connected to before that isn't connected, the one connected to last
+     * becomes the current one.
+     *
+     * @return the number of jigs connecting.
+     */
+    public int connectToLastDevices() {
+        String last;
+        Set<String> devices;
+        synchronized (this) {
+            if (mPreferences == null) {
+                return 0;
+            }
+            last = mPreferences.getString(PREF_LAST_DEVICE, null);
+            devices = mPreferences.getStringSet(PREF_DEVICES, Collections.<String>emptySet());
+        }
+        int connecting = 0;
+        for (String deviceName : devices) {
+            if (!deviceName.equals(last) && !getJig(deviceName).isConnected()) {
+                getJig(deviceName).connect();
+                ++connecting;
+            }
+        }
+        // the set is newer, the last device may predate it
+        if (last != null) {
+            BluetoothSerialUtil jig = setCurrentJig(last);
+            if (!jig.isConnected()) {
+                jig.connect();
+                ++connecting;
+            }
+        }
+        return connecting;
+    }
+}
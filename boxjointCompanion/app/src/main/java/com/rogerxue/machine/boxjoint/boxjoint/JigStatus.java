@@ -0,0 +1,116 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+/**
+ * What the jig told about itself in its last status record, see {@link TelemetryDecoder}.
+ *
+ * Mutable, so records are decoded into the same status without allocating, {@link #set} copies
+ * one to keep.
+ */
+public final class JigStatus {
+    public static final int FLAG_HOMED = 1;
+    public static final int FLAG_TRIPPED = 2;
+    public static final int FLAG_MOVING = 4;
+
+    // in steps
+    long position;
+    long move;
+    long moveCount;
+    int flags;
+    int halfPeriod;
+    // whether a record was decoded since the last clear()
+    boolean reported;
+    // records decoded into this status, and clears
+    long sequence;
+
+    public void set(JigStatus other) {
+        position = other.position;
+        move = other.move;
+        moveCount = other.moveCount;
+        flags = other.flags;
+        halfPeriod = other.halfPeriod;
+        reported = other.reported;
+        sequence = other.sequence;
+    }
+
+    /**
+     * Forgets the last record, e.g. once the link it came over is gone.
+     */
+    public void clear() {
+        position = 0;
+        move = 0;
+        moveCount = 0;
+        flags = 0;
+        halfPeriod = 0;
+        reported = false;
+        sequence++;
+    }
+
+    /**
+     * Whether a record was decoded into this status since it was made or cleared.
+     */
+    public boolean isReported() {
+        return reported;
+    }
+
+    public long getPositionSteps() {
+        return position;
+    }
+
+    /**
+     * From home, like the LCD shows it.
+     */
+    public long getPositionThou() {
+        return position / CycleTimeEstimator.STEP_PER_THOU;
+    }
+
+    /**
+     * Index of the move executing while {@link #isMoving()}, otherwise of the next one. Either
+     * way the number of moves done.
+     */
+    public long getMove() {
+        return move;
+    }
+
+    /**
+     * Moves in the plan, streamed ones included.
+     */
+    public long getMoveCount() {
+        return moveCount;
+    }
+
+    public boolean isHomed() {
+        return (flags & FLAG_HOMED) != 0;
+    }
+
+    public boolean isTripped() {
+        return (flags & FLAG_TRIPPED) != 0;
+    }
+
+    public boolean isMoving() {
+        return (flags & FLAG_MOVING) != 0;
+    }
+
+    /**
+     * Half period of the steps in microseconds: the one stepping at while moving, otherwise the
+     * SPD, or the cruise speed of the motion profile.
+     */
+    public int getHalfPeriodMicros() {
+        return halfPeriod;
+    }
+
+    /**
+     * Goes up with every record and every {@link #clear()}, 0 before either.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return (isHomed() ? "POS:" : "POS*:") + getPositionThou()
+                + " move " + move + "/" + moveCount
+                + (isMoving() ? " moving" : "")
+                + (isTripped() ? " tripped" : "")
+                + " at " + halfPeriod + "us";
+    }
+}
@@ -0,0 +1,75 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects lines from the reader thread and hands them over in batches.
+ *
+ * At most one drain is scheduled on the executor at a time, every line added before it runs
+ * is delivered by it, so a chatty device costs one main thread message per batch rather than
+ * per line.
+ */
+final class LineBatcher {
+
+    interface Sink {
+        /**
+         * Called on the executor with every line received since the last call. The list is
+         * only valid during the call.
+         */
+        void onLines(List<String> lines);
+    }
+
+    private final Executor mExecutor;
+    private final Sink mSink;
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private List<String> mPending = new ArrayList<>();
+    private boolean mScheduled;
+    // only touched by the drain, swapped with mPending so neither is reallocated
+    private List<String> mDelivering = new ArrayList<>();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    LineBatcher(Executor executor, Sink sink) {
+        mExecutor = executor;
+        mSink = sink;
+    }
+
+    /**
+     * Queues a line, may be called from any thread.
+     */
+    void add(String line) {
+        boolean schedule;
+        synchronized (mLock) {
+            mPending.add(line);
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (schedule) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    private void drain() {
+        List<String> lines;
+        synchronized (mLock) {
+            lines = mPending;
+            mPending = mDelivering;
+            mDelivering = lines;
+            mScheduled = false;
+        }
+        try {
+            mSink.onLines(Collections.unmodifiableList(lines));
+        } finally {
+            lines.clear();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.view.MenuItem;
 
 public class MainActivity extends Activity {
     private static final String TAG = "boxjoint-main";
+    private static final String PREFERENCES = "bluetooth";
 
     private BluetoothFragment mBluetoothFragment;
     private BoxJointCalculationFragment mBoxjointFragment;
@@ -34,6 +35,11 @@ public class MainActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        JigConnectionManager jigs = JigConnectionManager.getInstance();
+        jigs.setPreferences(getSharedPreferences(PREFERENCES, MODE_PRIVATE));
+        // the jigs are usually the ones of the last session, have them ready by the time the
+        // first plan is
+        jigs.connectToLastDevices();
         mBluetoothFragment = new BluetoothFragment();
         mBoxjointFragment = new BoxJointCalculationFragment();
 
@@ -0,0 +1,260 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, histograms and timers of the calculation and the link to the jig, dumped as text for
+ * a look in the app or offline.
+ *
+ * Metrics are looked up by name once and kept in a field, recording is then lock and allocation
+ * free from any thread. Histograms keep power of two buckets, so percentiles are only good to a
+ * factor of two, min, max and mean are exact.
+ */
+public final class Metrics {
+    private static final Metrics sInstance = new Metrics();
+
+    public static Metrics getInstance() {
+        return sInstance;
+    }
+
+    public static final class Counter {
+        private final LongAdder mCount = new LongAdder();
+
+        public void increment() {
+            mCount.increment();
+        }
+
+        public void add(long amount) {
+            mCount.add(amount);
+        }
+
+        public long get() {
+            return mCount.sum();
+        }
+
+        void reset() {
+            mCount.reset();
+        }
+    }
+
+    public static class Histogram {
+        // bucket i holds values of bit length i, 0 and negative values go to bucket 0
+        private static final int BUCKETS = 64;
+
+        private final String mUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder mCount = new LongAdder();
+        private final LongAdder mSum = new LongAdder();
+        private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram(String unit) {
+            mUnit = unit;
+        }
+
+        public void record(long value) {
+            mBuckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+            mCount.increment();
+            mSum.add(value);
+            long min;
+            while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+                // raced with another record
+            }
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // raced with another record
+            }
+        }
+
+        public long getCount() {
+            return mCount.sum();
+        }
+
+        public long getSum() {
+            return mSum.sum();
+        }
+
+        /**
+         * @return 0 if nothing was recorded.
+         */
+        public long getMin() {
+            return getCount() == 0 ? 0 : mMin.get();
+        }
+
+        public long getMax() {
+            return getCount() == 0 ? 0 : mMax.get();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * @return an upper bound of the {@code percentile} (0 - 100) of the recorded values, at
+         * most twice the actual value and never more than the max.
+         */
+        public long getPercentile(double percentile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                count += mBuckets.get(i);
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mBuckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    long upper = i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, getMax());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * A recorded value as shown in the dump.
+         */
+        String format(double value) {
+            return format(value, mUnit);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                mBuckets.set(i, 0);
+            }
+            mCount.reset();
+            mSum.reset();
+            mMin.set(Long.MAX_VALUE);
+            mMax.set(Long.MIN_VALUE);
+        }
+
+        static String format(double value, String unit) {
+            return value == Math.rint(value)
+                    ? (long) value + unit
+                    : String.format(Locale.US, "%.1f%s", value, unit);
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds.
+     */
+    public static final class Timer extends Histogram {
+        Timer() {
+            super("ns");
+        }
+
+        /**
+         * @return the start time to hand to {@link #stop}.
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the time since {@code start}.
+         *
+         * @return the time recorded in nanoseconds.
+         */
+        public long stop(long start) {
+            long elapsed = System.nanoTime() - start;
+            record(elapsed);
+            return elapsed;
+        }
+
+        @Override
+        String format(double nanos) {
+            if (nanos >= 1e9) {
+                return String.format(Locale.US, "%.2fs", nanos / 1e9);
+            } else if (nanos >= 1e6) {
+                return String.format(Locale.US, "%.2fms", nanos / 1e6);
+            }
+            return String.format(Locale.US, "%.1fus", nanos / 1e3);
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private volatile long mResetNanos = System.nanoTime();
+
+    Metrics() {
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            mCounters.putIfAbsent(name, new Counter());
+            counter = mCounters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * @param unit shown after the values in the dump, e.g. "B".
+     */
+    public Histogram histogram(String name, String unit) {
+        return register(name, new Histogram(unit));
+    }
+
+    public Timer timer(String name) {
+        return (Timer) register(name, new Timer());
+    }
+
+    private Histogram register(String name, Histogram histogram) {
+        Histogram existing = mHistograms.putIfAbsent(name, histogram);
+        if (existing == null) {
+            return histogram;
+        } else if (existing.getClass() != histogram.getClass()) {
+            throw new IllegalArgumentException(name + " is already a " + existing.getClass());
+        }
+        return existing;
+    }
+
+    /**
+     * Clears every metric, rates in the dump are from now on.
+     */
+    public void reset() {
+        for (Counter counter : mCounters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        mResetNanos = System.nanoTime();
+    }
+
+    /**
+     * One line per metric sorted by name: counters with their rate since the last reset,
+     * histograms and timers with count, min, mean, p50, p90, p99 and max.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        double seconds = Math.max(System.nanoTime() - mResetNanos, 1) / 1e9;
+        sb.append("since reset: ").append(String.format(Locale.US, "%.1fs", seconds)).append('\n');
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            long count = entry.getValue().get();
+            sb.append(entry.getKey()).append(": ").append(count)
+                    .append(String.format(Locale.US, " (%.1f/s)", count / seconds)).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            sb.append(entry.getKey()).append(": n=").append(histogram.getCount());
+            if (histogram.getCount() > 0) {
+                sb.append(" min=").append(histogram.format(histogram.getMin()))
+                        .append(" mean=").append(histogram.format(histogram.getMean()))
+                        .append(" p50=").append(histogram.format(histogram.getPercentile(50)))
+                        .append(" p90=").append(histogram.format(histogram.getPercentile(90)))
+                        .append(" p99=").append(histogram.format(histogram.getPercentile(99)))
+                        .append(" max=").append(histogram.format(histogram.getMax()));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
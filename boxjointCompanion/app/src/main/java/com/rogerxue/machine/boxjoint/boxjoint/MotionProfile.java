@@ -0,0 +1,192 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.Arrays;
+
+/**
+ * Step timing of the jig for trapezoidal moves: a move starts at a speed the motor can't stall
+ * at, accelerates up to the cruise speed and decelerates the same way into its end. Moves too
+ * short to reach the cruise speed turn around half way.
+ *
+ * The jig has no time to work the ramp out per step, so the app plans it as a table of entries,
+ * each a number of steps and the half period (the time between the edges of a step pulse) they
+ * take, sent in a {@link MoveFrameCodec#TYPE_PROFILE} frame. Step i of a move of n steps is
+ * timed by the entry holding step min(i, n - 1 - i) of the ramp, the last entry is the cruise
+ * speed and holds any step past the ramp. Entries are evenly spaced in speed, so the motor never
+ * jumps by more than 1 / {@link #MAX_ENTRIES} of the speed gained on the ramp, and each is run
+ * at the speed it starts with, so the ramp is never steeper than the acceleration asked for.
+ */
+public final class MotionProfile {
+    /** Entries the jig has room for. */
+    public static final int MAX_ENTRIES = 48;
+    public static final int DEFAULT_CRUISE_DELAY_MICROS = 25;
+    /** In steps / s^2. */
+    public static final int DEFAULT_ACCELERATION = 40000;
+    // entries are unsigned int on the jig
+    private static final int MAX_VALUE = 0xFFFF;
+
+    private final int[] steps;
+    private final int[] delays;
+
+    /**
+     * @param steps steps of each entry, all but the last at least 1. The last is the cruise
+     * speed, its steps aren't used.
+     * @param delays half periods of the entries in microseconds.
+     */
+    public MotionProfile(int[] steps, int[] delays) {
+        if (steps.length != delays.length || steps.length == 0 || steps.length > MAX_ENTRIES) {
+            throw new IllegalArgumentException("1 to " + MAX_ENTRIES + " entries expected");
+        }
+        for (int i = 0; i < steps.length; ++i) {
+            if ((steps[i] < 1 && i < steps.length - 1) || steps[i] > MAX_VALUE
+                    || delays[i] < 1 || delays[i] > MAX_VALUE) {
+                throw new IllegalArgumentException("bad entry " + i);
+            }
+        }
+        this.steps = steps.clone();
+        this.delays = delays.clone();
+        this.steps[steps.length - 1] = 0;
+    }
+
+    /**
+     * Every step at {@code delay}, like the jig without a profile.
+     */
+    public static MotionProfile constant(int delay) {
+        return new MotionProfile(new int[] {0}, new int[] {delay});
+    }
+
+    /**
+     * Plans the ramp from {@code startDelay} to {@code cruiseDelay}.
+     *
+     * @param startDelay half period the motor starts from, in microseconds, e.g. the SPD the jig
+     * runs well at.
+     * @param cruiseDelay half period at full speed, in microseconds, the profile is constant at
+     * {@code startDelay} if it's not shorter.
+     * @param acceleration in steps / s^2.
+     */
+    public static MotionProfile trapezoid(int startDelay, int cruiseDelay, int acceleration) {
+        if (cruiseDelay >= startDelay || acceleration <= 0) {
+            return constant(startDelay);
+        }
+        double startSpeed = 1e6 / (2.0 * startDelay);
+        double cruiseSpeed = 1e6 / (2.0 * cruiseDelay);
+        double twiceAcceleration = 2.0 * acceleration;
+        long rampSteps = (long) Math.ceil(
+                (cruiseSpeed * cruiseSpeed - startSpeed * startSpeed) / twiceAcceleration);
+        int ramps = (int) Math.min(MAX_ENTRIES - 1, rampSteps);
+        int[] steps = new int[ramps + 1];
+        int[] delays = new int[ramps + 1];
+        int entries = 0;
+        long begin = 0;
+        for (int i = 0; i < ramps; ++i) {
+            double speed = startSpeed + (cruiseSpeed - startSpeed) * i / ramps;
+            double next = startSpeed + (cruiseSpeed - startSpeed) * (i + 1) / ramps;
+            // rounded at the boundaries, so the entries add up to the ramp
+            long end = i == ramps - 1 ? rampSteps : Math.round(
+                    (next * next - startSpeed * startSpeed) / twiceAcceleration);
+            if (end <= begin) {
+                continue;
+            }
+            steps[entries] = (int) Math.min(MAX_VALUE, end - begin);
+            delays[entries] = Math.min(startDelay, (int) Math.ceil(1e6 / (2 * speed)));
+            ++entries;
+            begin = end;
+        }
+        steps[entries] = 0;
+        delays[entries] = cruiseDelay;
+        ++entries;
+        return new MotionProfile(
+                Arrays.copyOf(steps, entries), Arrays.copyOf(delays, entries));
+    }
+
+    public int size() {
+        return steps.length;
+    }
+
+    public int getSteps(int entry) {
+        return steps[entry];
+    }
+
+    public int getDelay(int entry) {
+        return delays[entry];
+    }
+
+    public int getStartDelay() {
+        return delays[0];
+    }
+
+    public int getCruiseDelay() {
+        return delays[delays.length - 1];
+    }
+
+    /**
+     * Steps to reach the cruise speed.
+     */
+    public long getRampSteps() {
+        long total = 0;
+        for (int i = 0; i < steps.length - 1; ++i) {
+            total += steps[i];
+        }
+        return total;
+    }
+
+    /**
+     * Half period of step {@code step} of a move of {@code moveSteps} steps, in microseconds.
+     */
+    public int getDelay(long step, long moveSteps) {
+        long along = Math.min(step, moveSteps - 1 - step);
+        for (int i = 0; i < steps.length - 1; ++i) {
+            if (along < steps[i]) {
+                return delays[i];
+            }
+            along -= steps[i];
+        }
+        return getCruiseDelay();
+    }
+
+    /**
+     * Time a move of {@code moveSteps} steps takes, in microseconds.
+     */
+    public long getMoveMicros(long moveSteps) {
+        if (moveSteps <= 0) {
+            return 0;
+        }
+        // up the ramp for the first half, down it again for the second
+        return 2 * (rampMicros((moveSteps + 1) / 2) + rampMicros(moveSteps / 2));
+    }
+
+    /**
+     * Half periods of the first {@code count} steps of the ramp.
+     */
+    private long rampMicros(long count) {
+        long total = 0;
+        for (int i = 0; i < steps.length - 1 && count > 0; ++i) {
+            long taken = Math.min(count, steps[i]);
+            total += taken * delays[i];
+            count -= taken;
+        }
+        return total + count * getCruiseDelay();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MotionProfile)) {
+            return false;
+        }
+        MotionProfile other = (MotionProfile) o;
+        return Arrays.equals(steps, other.steps) && Arrays.equals(delays, other.delays);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(steps) + Arrays.hashCode(delays);
+    }
+
+    @Override
+    public String toString() {
+        return "MotionProfile{" + getStartDelay() + "us to " + getCruiseDelay() + "us in "
+                + getRampSteps() + " steps, " + size() + " entries}";
+    }
+}
@@ -3,19 +3,48 @@ package com.rogerxue.machine.boxjoint.boxjoint;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  * All units in 1/1000 of an inch A.K.A 1 thou
+ *
+ * Not thread safe.
  */
 public class MoveCalculator {
     private static final String TAG = "MoveCalculator";
+    // number of decomposed gaps kept, a power of 2
+    private static final int GAP_CACHE_SIZE = 64;
+    private static final int GAP_CACHE_SHIFT = 32 - Integer.numberOfTrailingZeros(GAP_CACHE_SIZE);
+    private static final Metrics.Timer CALCULATE_TIME = Metrics.getInstance().timer("calculate");
+    private static final Metrics.Counter CALCULATE_ERRORS =
+            Metrics.getInstance().counter("calculate.errors");
+
     // from 0 to 1, 0 is the finest, 1 is the coarsest
     private Double smoothness = 0.5;
     private Integer kerf = 100;
     private Integer tolerance = 2;
     private Integer stockWidth;
+    private GapClearing gapClearing = GapClearing.FIXED_STEP;
+    @Nullable
+    private String lastError;
+
+    /**
+     * How the passes of a gap are laid out. Both take the fewest passes the step-over of
+     * {@code kerf * smoothness} allows.
+     */
+    public enum GapClearing {
+        /** Full steps, whatever is left over is the last pass, often a sliver of a few thou. */
+        FIXED_STEP,
+        /** The same passes spread evenly, they differ by 1 thou at most. */
+        EVEN,
+    }
+
+    // Passes of a gap by gap width, valid for the current kerf, tolerance and smoothness.
+    // Direct mapped, a gap evicts whatever gap hashes to the same slot.
+    private final int[] gapCacheKeys = new int[GAP_CACHE_SIZE];
+    private final int[][] gapCacheSegments = new int[GAP_CACHE_SIZE][];
+    // passes of each gap of the pattern being calculated, by index, from countMoves to fillMoves
+    private int[][] segments = new int[0][];
 
     public Double getSmoothness() {
         return smoothness;
@@ -34,25 +63,56 @@ public class MoveCalculator {
     }
 
     public MoveCalculator setKerf(@Nullable Integer kerf) {
+        if (!equals(this.kerf, kerf)) {
+            clearGapCache();
+        }
         this.kerf = kerf;
         return this;
     }
 
     public MoveCalculator setTolerance(@Nullable Integer tolerance) {
+        if (!equals(this.tolerance, tolerance)) {
+            clearGapCache();
+        }
         this.tolerance = tolerance;
         return this;
     }
 
     public MoveCalculator setSmoothness(@Nullable Double smoothness) {
+        if (!equals(this.smoothness, smoothness)) {
+            clearGapCache();
+        }
         this.smoothness = smoothness;
         return this;
     }
 
+    public GapClearing getGapClearing() {
+        return gapClearing;
+    }
+
+    public MoveCalculator setGapClearing(GapClearing gapClearing) {
+        if (this.gapClearing != gapClearing) {
+            clearGapCache();
+        }
+        this.gapClearing = gapClearing;
+        return this;
+    }
+
     public MoveCalculator setStockWidth(@Nullable Integer stockWidth) {
         this.stockWidth = stockWidth;
         return this;
     }
 
+    private static boolean equals(@Nullable Object a, @Nullable Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void clearGapCache() {
+        for (int i = 0; i < GAP_CACHE_SIZE; ++i) {
+            gapCacheSegments[i] = null;
+        }
+    }
+
     /**
      * calculates the moves
      */
@@ -60,123 +120,374 @@ public class MoveCalculator {
     public List<Integer> calculate(@Nullable List<Integer> pattern, boolean fingerFirst) {
         if (pattern == null) {
             Log.d(TAG, "pattern is null");
+            lastError = "pattern is null";
             return null;
         }
+        int[] values = toArray(pattern);
+        MovePlan plan = calculate(values, values.length, fingerFirst);
+        return plan != null ? plan.asList() : null;
+    }
+
+    static int[] toArray(List<Integer> pattern) {
+        int[] values = new int[pattern.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = pattern.get(i);
+        }
+        return values;
+    }
+
+    /**
+     * calculates the moves of the first {@code length} entries of {@code pattern}.
+     */
+    @Nullable
+    public MovePlan calculate(int[] pattern, int length, boolean fingerFirst) {
+        MovePlan plan = new MovePlan();
+        return calculateInto(pattern, length, fingerFirst, plan) ? plan : null;
+    }
+
+    /**
+     * Same as {@link #calculate(int[], int, boolean)}, but writes into {@code plan}, which only
+     * allocates when its backing array has to grow.
+     *
+     * @return false if any error, the plan is left empty.
+     */
+    public boolean calculateInto(int[] pattern, int length, boolean fingerFirst, MovePlan plan) {
+        long start = CALCULATE_TIME.start();
+        plan.clear();
+        int count = countMoves(pattern, length, fingerFirst);
+        if (count < 0) {
+            CALCULATE_ERRORS.increment();
+            return false;
+        }
+        plan.ensureCapacity(count);
+        fillMoves(pattern, length, fingerFirst, plan.array(), count);
+        plan.setSize(count);
+        CALCULATE_TIME.stop(start);
+        return true;
+    }
+
+    /**
+     * Same as {@link #calculate(int[], int, boolean)}, but writes into {@code moves}.
+     *
+     * @return the number of moves written, -1 if any error or {@code moves} is too small.
+     */
+    public int calculateInto(int[] pattern, int length, boolean fingerFirst, int[] moves) {
+        long start = CALCULATE_TIME.start();
+        int count = countMoves(pattern, length, fingerFirst);
+        if (count < 0) {
+            CALCULATE_ERRORS.increment();
+            return -1;
+        }
+        if (count > moves.length) {
+            CALCULATE_ERRORS.increment();
+            return fail("need room for " + count + " moves, got " + moves.length);
+        }
+        fillMoves(pattern, length, fingerFirst, moves, count);
+        CALCULATE_TIME.stop(start);
+        return count;
+    }
+
+    /**
+     * Calculates the gap first and the finger first plan of a joint, the two boards that mate,
+     * in one go: the pattern is validated and each width decomposed once for both. Fails for
+     * both or neither, as both take the same widths.
+     *
+     * @return false if any error, both plans are left empty.
+     */
+    public boolean calculateBothInto(
+            int[] pattern, int length, MovePlan gapFirst, MovePlan fingerFirst) {
+        long start = CALCULATE_TIME.start();
+        if (!calculateBoth(pattern, length, gapFirst, fingerFirst)) {
+            CALCULATE_ERRORS.increment();
+            return false;
+        }
+        CALCULATE_TIME.stop(start);
+        return true;
+    }
+
+    /**
+     * Same as {@link #calculateBothInto}, but leaves the calculate metrics alone, for
+     * {@link PatternSearch} which calculates thousands of candidates on every core and times
+     * itself: counted with the plans of edits, they'd drown them.
+     */
+    boolean calculateBoth(int[] pattern, int length, MovePlan gapFirst, MovePlan fingerFirst) {
+        gapFirst.clear();
+        fingerFirst.clear();
+        lastError = null;
+        if (!checkSetup(length)) {
+            return false;
+        }
+        int[][] segments = segments(length);
+        // every width is a gap to one of the boards
+        long gapFirstPerIteration = 0;
+        long fingerFirstPerIteration = 0;
+        long width = 0;
+        for (int i = 0; i < length; ++i) {
+            if (pattern[i] < kerf + tolerance) {
+                fail((i % 2 == 0 ? "gap" : "finger") + " too thin: " + pattern[i]);
+                return false;
+            }
+            segments[i] = decomposeGap(pattern[i]);
+            if (i % 2 == 0) {
+                gapFirstPerIteration += segments[i].length;
+                fingerFirstPerIteration += 1;
+            } else {
+                gapFirstPerIteration += 1;
+                fingerFirstPerIteration += segments[i].length;
+            }
+            width += pattern[i];
+        }
+        if (width <= 0) {
+            fail("Pattern has no width.");
+            return false;
+        }
+        long gapFirstCount = gapFirstPerIteration * iterations(pattern, width, false);
+        long fingerFirstCount = fingerFirstPerIteration * iterations(pattern, width, true);
+        if (Math.max(gapFirstCount, fingerFirstCount) > Integer.MAX_VALUE) {
+            fail("too many moves: " + Math.max(gapFirstCount, fingerFirstCount));
+            return false;
+        }
+        gapFirst.ensureCapacity((int) gapFirstCount);
+        fillMoves(pattern, length, false, gapFirst.array(), (int) gapFirstCount);
+        gapFirst.setSize((int) gapFirstCount);
+        fingerFirst.ensureCapacity((int) fingerFirstCount);
+        fillMoves(pattern, length, true, fingerFirst.array(), (int) fingerFirstCount);
+        fingerFirst.setSize((int) fingerFirstCount);
+        return true;
+    }
+
+    /**
+     * Validates the pattern against the current setup and counts the moves it takes, without
+     * generating them.
+     *
+     * @return the exact number of moves, -1 if any error.
+     */
+    public int countMoves(int[] pattern, int length, boolean fingerFirst) {
+        lastError = null;
+        if (!checkSetup(length)) {
+            return -1;
+        }
+        int[][] segments = segments(length);
+        int movesPerIteration = 0;
+        long width = 0;
+        for (int i = 0; i < length; ++i) {
+            // gap first reads the pattern as (gap, finger), finger first as (finger, gap)
+            boolean isFinger = (i % 2 == 0) == fingerFirst;
+            if (pattern[i] < kerf + tolerance) {
+                return fail((isFinger ? "finger" : "gap") + " too thin: " + pattern[i]);
+            }
+            if (isFinger) {
+                movesPerIteration += 1;
+            } else {
+                segments[i] = decomposeGap(pattern[i]);
+                movesPerIteration += segments[i].length;
+            }
+            width += pattern[i];
+        }
+        if (width <= 0) {
+            return fail("Pattern has no width.");
+        }
+        long count = movesPerIteration * iterations(pattern, width, fingerFirst);
+        if (count > Integer.MAX_VALUE) {
+            return fail("too many moves: " + count);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Checks what doesn't depend on the widths of the pattern.
+     */
+    private boolean checkSetup(int length) {
         if (kerf == null || tolerance == null || smoothness == null || stockWidth == null) {
-            Log.w(TAG, "not setup yet: " + kerf + tolerance + smoothness + stockWidth);
-            return null;
+            fail("not setup yet: " + kerf + tolerance + smoothness + stockWidth);
+            return false;
         }
         // pattern has to be even number
-        if (pattern.size() % 2 != 0) {
-            Log.w(TAG, "Pattern is not even number.");
-            return null;
+        if (length % 2 != 0) {
+            fail("Pattern is not even number.");
+            return false;
         }
-        List<Integer> moves = new ArrayList<>();
-        boolean first = true;
-        for (int totalMoves = 0; totalMoves < stockWidth; /*increment done in loop*/) {
-            int travel = addMovesForOneIteration(pattern, moves, first, fingerFirst);
-            if (travel < 0) {
-                return null;
-            } else {
-                totalMoves += travel;
+        if (length == 0) {
+            fail("Pattern is empty.");
+            return false;
+        }
+        if (getStep() <= 0) {
+            fail("smoothness too fine for kerf: " + smoothness);
+            return false;
+        }
+        return true;
+    }
+
+    private int[][] segments(int length) {
+        if (segments.length < length) {
+            segments = new int[Math.max(length, 2 * segments.length)][];
+        }
+        return segments;
+    }
+
+    private int fail(String error) {
+        Log.w(TAG, error);
+        lastError = error;
+        return -1;
+    }
+
+    /**
+     * Why the last calculation failed, null if it didn't.
+     */
+    @Nullable
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Number of pattern iterations it takes to cover the stock, in closed form.
+     */
+    private long iterations(int[] pattern, long width, boolean fingerFirst) {
+        if (stockWidth <= 0) {
+            return 0;
+        }
+        // the first finger of finger first doesn't travel, see addMovesForOneIteration
+        long firstWidth = fingerFirst ? width - pattern[0] : width;
+        if (stockWidth <= firstWidth) {
+            return 1;
+        }
+        return 1 + (stockWidth - firstWidth + width - 1) / width;
+    }
+
+    private int getStep() {
+        return (int) (kerf * smoothness);
+    }
+
+    /**
+     * The passes to cut this gap, from cache if possible. The returned array must not be
+     * modified.
+     */
+    private int[] decomposeGap(int gap) {
+        int slot = (gap * 0x9E3779B9) >>> GAP_CACHE_SHIFT;
+        int[] segment = gapCacheSegments[slot];
+        if (segment != null && gapCacheKeys[slot] == gap) {
+            return segment;
+        }
+        segment = new int[gapPasses(gap)];
+        if (gapClearing == GapClearing.EVEN) {
+            spreadEvenly(gap + tolerance - kerf, segment);
+        } else {
+            int cutWidth = kerf;
+            int possibleMove = getStep();
+            int i = 0;
+            while (true) {
+                if (cutWidth + possibleMove < gap + tolerance) {
+                    segment[i++] = possibleMove;
+                    cutWidth += possibleMove;
+                } else {
+                    // the normal increment will exceed the gap.
+                    // that means this is the final cut, break the loop;
+                    segment[i] = gap + tolerance - cutWidth;
+                    break;
+                }
             }
-            first = false;
         }
-        return moves;
+        gapCacheKeys[slot] = gap;
+        gapCacheSegments[slot] = segment;
+        return segment;
+    }
+
+    /**
+     * Splits {@code remaining} into {@code segment.length} moves differing by 1 at most, larger
+     * ones first. None exceeds the step as the count comes from {@link #gapPasses}.
+     */
+    private static void spreadEvenly(int remaining, int[] segment) {
+        int passes = segment.length;
+        int move = remaining / passes;
+        int larger = remaining % passes;
+        for (int i = 0; i < passes; ++i) {
+            segment[i] = i < larger ? move + 1 : move;
+        }
+    }
+
+    /**
+     * Number of moves it takes to cut this gap.
+     */
+    private int gapPasses(int gap) {
+        int remaining = gap + tolerance - kerf;
+        if (remaining <= 0) {
+            return 1;
+        }
+        int step = getStep();
+        return (remaining + step - 1) / step;
+    }
+
+    /**
+     * Generates the {@code count} moves counted by {@link #countMoves}, the pattern must be
+     * validated already and its gaps in {@link #segments}.
+     *
+     * Every iteration after the first produces the same moves, so only the first and one steady
+     * iteration are generated, the rest is tiled from the steady one.
+     */
+    private void fillMoves(int[] pattern, int length, boolean fingerFirst, int[] moves, int count) {
+        if (count == 0) {
+            return;
+        }
+        int position = addMovesForOneIteration(pattern, length, moves, 0, true, fingerFirst);
+        int blockStart = 0;
+        if (fingerFirst && position < count) {
+            // the first iteration of finger first is special, generate a steady one to tile
+            blockStart = position;
+            position = addMovesForOneIteration(
+                    pattern, length, moves, position, false, fingerFirst);
+        }
+        while (position < count) {
+            // doubles the tiled area each time, it's always whole iterations
+            int tile = Math.min(position - blockStart, count - position);
+            System.arraycopy(moves, blockStart, moves, position, tile);
+            position += tile;
+        }
     }
 
     /**
-     * @return the total width of this iteration, -1 if any error.
+     * @return the position in moves after this iteration.
      */
     private int addMovesForOneIteration(
-            List<Integer> pattern, 
-            List<Integer> moves,
+            int[] pattern,
+            int length,
+            int[] moves,
+            int position,
             boolean first,
             boolean fingerFirst) {
-        int totalMove = 0;
         int i = 0;
         if (fingerFirst) {
             if (first) {
                 // Right side of blade line up with right side of stock,
                 // so first cut is special.
-                // if finger is too thin, we can't cut the gap + tolerance for it
-                int finger = pattern.get(i++);
-                if (finger < kerf + tolerance) {
-                    Log.w(TAG, "finger too thin: " + finger);
-                    return -1;
-                }
-                moves.add(finger - tolerance);
-
-                int gap = cutGap(pattern.get(i++), moves);
-                if (gap < 0) {
-                    return -1;
-                }
-                totalMove += gap;
+                moves[position++] = pattern[i++] - tolerance;
+                position = cutGap(i++, moves, position);
             }
-            for (/* already initialized */; i < pattern.size(); i += 2) {
+            for (/* already initialized */; i < length; i += 2) {
                 // for the finger
-                int finger = cutFinger(pattern.get(i), moves);
-                if (finger < 0) {
-                    return -1;
-                }
-                totalMove += finger;
-                
+                position = cutFinger(pattern[i], moves, position);
                 // for the gap
-                int gap = cutGap(pattern.get(i + 1), moves);
-                if (gap < 0) {
-                    return -1;
-                }
-                totalMove += gap;
+                position = cutGap(i + 1, moves, position);
             }
         } else {
-            for (/* already initialized */; i < pattern.size(); i += 2) {
+            for (/* already initialized */; i < length; i += 2) {
                 // for the gap
-                int gap = cutGap(pattern.get(i), moves);
-                if (gap < 0) {
-                    return -1;
-                }
-                totalMove += gap;
-    
+                position = cutGap(i, moves, position);
                 // for the finger
-                int finger = cutFinger(pattern.get(i + 1), moves);
-                if (finger < 0) {
-                    return -1;
-                }
-                totalMove += finger;
+                position = cutFinger(pattern[i + 1], moves, position);
             }
         }
-        return totalMove;
+        return position;
     }
-    
-    private int cutGap(int gap, List<Integer> moves) {
-        if (gap < kerf + tolerance) {
-            Log.w(TAG, "gap too thin: " + gap);
-            return -1;
-        }
-        int cutWidth = kerf;
-        while (true) {
-            int possibleMove = (int) (kerf * smoothness);
-            if (cutWidth + possibleMove < gap + tolerance) {
-                moves.add(possibleMove);
-                cutWidth += possibleMove;
-            } else {
-                // the normal increment will exceed the gap.
-                // that means this is the final cut, break the loop;
-                moves.add(gap + tolerance - cutWidth);
-                break;
-            }
-        }
-        return gap;
+
+    private int cutGap(int index, int[] moves, int position) {
+        int[] segment = segments[index];
+        System.arraycopy(segment, 0, moves, position, segment.length);
+        return position + segment.length;
     }
-    
-    private int cutFinger(int finger, List<Integer> moves) {
-        // if finger is too thin, we can't cut the gap + tolerance for it
-        if (finger < kerf + tolerance) {
-            Log.w(TAG, "finger too thin: " + finger);
-            return -1;
-        }
+
+    private int cutFinger(int finger, int[] moves, int position) {
         // finger width is thinner by a tolerance
-        moves.add(kerf + finger - tolerance);
-        return finger;
+        moves[position++] = kerf + finger - tolerance;
+        return position;
     }
 }
@@ -0,0 +1,449 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Binary framing of move plans for the jig, the ASCII comma separated format is still
+ * understood by the firmware.
+ *
+ * A frame is:
+ * <pre>
+ *   SYNC (0xA5) | seq | type | payload length (varint) | payload | CRC-16 (big endian)
+ * </pre>
+ * The CRC (CCITT, poly 0x1021, init 0xFFFF) covers everything after SYNC up to the CRC.
+ * Payloads are varints, moves zigzag encoded:
+ * <ul>
+ *   <li>{@link #TYPE_MOVES}: count, moves. Replaces the moves on the jig.
+ *   <li>{@link #TYPE_STREAM_BEGIN}: total. Starts a streamed plan of total moves.
+ *   <li>{@link #TYPE_STREAM_MOVES}: start index, count, moves. Next window of the streamed plan.
+ *   <li>{@link #TYPE_PROFILE}: count, then steps and half period of each entry of a
+ *   {@link MotionProfile}. Times the moves of plans from then on, a count of 0 goes back to the
+ *   speed pot.
+ * </ul>
+ *
+ * The firmware answers every frame with an "ACK seq" or "NAK seq" line. While streaming it
+ * sends "CREDIT limit" whenever it has room for moves up to (excluding) index limit,
+ * "RESUME received" when it ran out of moves and has only received that many, and "REWIND" when
+ * it needs the plan again from the start. In either protocol it sends "MOVE index" as it starts
+ * executing a move.
+ */
+public final class MoveFrameCodec {
+    public static final byte SYNC = (byte) 0xA5;
+    public static final int TYPE_MOVES = 1;
+    public static final int TYPE_STREAM_BEGIN = 2;
+    public static final int TYPE_STREAM_MOVES = 3;
+    public static final int TYPE_PROFILE = 4;
+    /** Returned by {@link #decodeMoves} when the frame is malformed or corrupted. */
+    public static final int INVALID = -1;
+
+    private static final String ACK = "ACK ";
+    private static final String NAK = "NAK ";
+    private static final String CREDIT = "CREDIT ";
+    private static final String RESUME = "RESUME ";
+    private static final String REWIND = "REWIND";
+    private static final String MOVE = "MOVE ";
+    // SYNC, seq, type, length varint, CRC
+    private static final int MAX_HEADER_SIZE = 3 + 5 + 2;
+    private static final int MAX_VARINT_SIZE = 5;
+
+    private MoveFrameCodec() {
+    }
+
+    /**
+     * Reply of the firmware to a frame.
+     */
+    public static class Reply {
+        public final boolean ack;
+        public final int seq;
+
+        Reply(boolean ack, int seq) {
+            this.ack = ack;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Hands out the 8 bit sequence numbers of the frames sent over a link, one counter for
+     * every kind of frame, so no two frames in flight share a seq and a reply finds its frame.
+     */
+    public static final class SeqCounter {
+        private int mNext;
+
+        public SeqCounter(int first) {
+            mNext = first & 0xFF;
+        }
+
+        public int next() {
+            int seq = mNext;
+            mNext = (mNext + 1) & 0xFF;
+            return seq;
+        }
+
+        /**
+         * The seq {@link #next()} hands out next.
+         */
+        public int peek() {
+            return mNext;
+        }
+    }
+
+    /**
+     * A decoded frame, reusable across {@link #decode} calls.
+     */
+    public static class Frame {
+        public int seq;
+        public int type;
+        // stream start index of TYPE_STREAM_MOVES
+        public int start;
+        // total of TYPE_STREAM_BEGIN
+        public int total;
+        public int count;
+        public final int[] moves;
+        // entries of TYPE_PROFILE, count of them
+        public final int[] rampSteps = new int[MotionProfile.MAX_ENTRIES];
+        public final int[] rampDelays = new int[MotionProfile.MAX_ENTRIES];
+
+        public Frame(int maxMoves) {
+            moves = new int[maxMoves];
+        }
+    }
+
+    /**
+     * Upper bound of the encoded size of a frame holding {@code count} moves.
+     */
+    public static int maxFrameSize(int count) {
+        return MAX_HEADER_SIZE + MAX_VARINT_SIZE * (count + 2);
+    }
+
+    public static byte[] encodeMoves(int seq, int[] moves, int offset, int count) {
+        byte[] frame = new byte[maxFrameSize(count)];
+        return trim(frame, encodeMoves(seq, moves, offset, count, frame, 0));
+    }
+
+    /**
+     * Encodes {@code count} moves starting at {@code offset} into {@code out}, which needs
+     * {@link #maxFrameSize} bytes of room.
+     *
+     * @return the frame length.
+     */
+    public static int encodeMoves(
+            int seq, int[] moves, int offset, int count, byte[] out, int outOffset) {
+        return encode(seq, TYPE_MOVES, -1, moves, offset, count, out, outOffset);
+    }
+
+    public static byte[] encodeStreamBegin(int seq, int total) {
+        byte[] frame = new byte[maxFrameSize(0)];
+        return trim(frame, encode(seq, TYPE_STREAM_BEGIN, total, null, 0, -1, frame, 0));
+    }
+
+    /**
+     * Encodes the window of a streamed plan that starts at stream index {@code offset},
+     * {@code moves} holds the whole plan.
+     */
+    public static byte[] encodeStreamMoves(int seq, int[] moves, int offset, int count) {
+        byte[] frame = new byte[maxFrameSize(count)];
+        return trim(frame, encode(seq, TYPE_STREAM_MOVES, offset, moves, offset, count, frame, 0));
+    }
+
+    /**
+     * Encodes the step timing for the moves of the next plans, null to time them by the speed
+     * pot again.
+     */
+    public static byte[] encodeProfile(int seq, @Nullable MotionProfile profile) {
+        int count = profile == null ? 0 : profile.size();
+        int payloadSize = varintSize(count);
+        for (int i = 0; i < count; ++i) {
+            payloadSize += varintSize(profile.getSteps(i)) + varintSize(profile.getDelay(i));
+        }
+        byte[] frame = new byte[MAX_HEADER_SIZE + payloadSize];
+        int position = 0;
+        frame[position++] = SYNC;
+        frame[position++] = (byte) seq;
+        frame[position++] = (byte) TYPE_PROFILE;
+        position = writeVarint(payloadSize, frame, position);
+        position = writeVarint(count, frame, position);
+        for (int i = 0; i < count; ++i) {
+            position = writeVarint(profile.getSteps(i), frame, position);
+            position = writeVarint(profile.getDelay(i), frame, position);
+        }
+        int crc = crc16(frame, 1, position - 1);
+        frame[position++] = (byte) (crc >>> 8);
+        frame[position++] = (byte) crc;
+        return trim(frame, position);
+    }
+
+    private static byte[] trim(byte[] frame, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(frame, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * @param header the varint before count, not written if negative.
+     * @param count number of moves, neither count nor moves is written if negative.
+     */
+    private static int encode(int seq, int type, int header,
+            int[] moves, int offset, int count, byte[] out, int outOffset) {
+        int payloadSize = header >= 0 ? varintSize(header) : 0;
+        if (count >= 0) {
+            payloadSize += varintSize(count);
+            for (int i = offset; i < offset + count; ++i) {
+                payloadSize += varintSize(zigzag(moves[i]));
+            }
+        }
+        int position = outOffset;
+        out[position++] = SYNC;
+        out[position++] = (byte) seq;
+        out[position++] = (byte) type;
+        position = writeVarint(payloadSize, out, position);
+        if (header >= 0) {
+            position = writeVarint(header, out, position);
+        }
+        if (count >= 0) {
+            position = writeVarint(count, out, position);
+            for (int i = offset; i < offset + count; ++i) {
+                position = writeVarint(zigzag(moves[i]), out, position);
+            }
+        }
+        int crc = crc16(out, outOffset + 1, position - outOffset - 1);
+        out[position++] = (byte) (crc >>> 8);
+        out[position++] = (byte) crc;
+        return position - outOffset;
+    }
+
+    /**
+     * Decodes a {@link #TYPE_MOVES} frame into {@code moves}.
+     *
+     * @return the number of moves, {@link #INVALID} if the frame is malformed, fails the CRC
+     * or has more moves than {@code moves} can hold.
+     */
+    public static int decodeMoves(byte[] frame, int offset, int length, int[] moves) {
+        Frame decoded = new Frame(moves.length);
+        if (!decode(frame, offset, length, decoded) || decoded.type != TYPE_MOVES) {
+            return INVALID;
+        }
+        System.arraycopy(decoded.moves, 0, moves, 0, decoded.count);
+        return decoded.count;
+    }
+
+    /**
+     * Decodes a frame of any known type into {@code out}.
+     *
+     * @return false if the frame is malformed, fails the CRC or has more moves than
+     * {@code out} can hold.
+     */
+    public static boolean decode(byte[] frame, int offset, int length, Frame out) {
+        int end = offset + length;
+        if (length < MAX_HEADER_SIZE - MAX_VARINT_SIZE + 1 || frame[offset] != SYNC) {
+            return false;
+        }
+        int[] position = {offset + 3};
+        long payloadSize = readVarint(frame, position, end);
+        if (payloadSize < 0 || position[0] + payloadSize + 2 != end) {
+            return false;
+        }
+        int crc = ((frame[end - 2] & 0xFF) << 8) | (frame[end - 1] & 0xFF);
+        if (crc != crc16(frame, offset + 1, end - offset - 3)) {
+            return false;
+        }
+        out.seq = frame[offset + 1] & 0xFF;
+        out.type = frame[offset + 2];
+        out.start = 0;
+        out.total = 0;
+        out.count = 0;
+        end -= 2;
+        switch (out.type) {
+            case TYPE_STREAM_BEGIN:
+                long total = readVarint(frame, position, end);
+                if (total < 0 || total > Integer.MAX_VALUE) {
+                    return false;
+                }
+                out.total = (int) total;
+                return position[0] == end;
+            case TYPE_STREAM_MOVES:
+                long start = readVarint(frame, position, end);
+                if (start < 0 || start > Integer.MAX_VALUE) {
+                    return false;
+                }
+                out.start = (int) start;
+                // fall through to the moves
+            case TYPE_MOVES:
+                long count = readVarint(frame, position, end);
+                if (count < 0 || count > out.moves.length) {
+                    return false;
+                }
+                for (int i = 0; i < count; ++i) {
+                    long move = readVarint(frame, position, end);
+                    if (move < 0) {
+                        return false;
+                    }
+                    out.moves[i] = unzigzag((int) move);
+                }
+                out.count = (int) count;
+                return position[0] == end;
+            case TYPE_PROFILE:
+                long entries = readVarint(frame, position, end);
+                if (entries < 0 || entries > MotionProfile.MAX_ENTRIES) {
+                    return false;
+                }
+                for (int i = 0; i < entries; ++i) {
+                    long steps = readVarint(frame, position, end);
+                    long delay = readVarint(frame, position, end);
+                    if (steps < 0 || delay < 0 || steps > 0xFFFF || delay > 0xFFFF) {
+                        return false;
+                    }
+                    out.rampSteps[i] = (int) steps;
+                    out.rampDelays[i] = (int) delay;
+                }
+                out.count = (int) entries;
+                return position[0] == end;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return null if the line isn't a frame reply.
+     */
+    @Nullable
+    public static Reply parseReply(CharSequence line) {
+        boolean ack = startsWith(line, ACK);
+        if (!ack && !startsWith(line, NAK)) {
+            return null;
+        }
+        int length = trimmedLength(line);
+        int seq = 0;
+        int i = ACK.length();
+        for (; i < length && Character.isDigit(line.charAt(i)) && seq <= 0xFF; ++i) {
+            seq = seq * 10 + line.charAt(i) - '0';
+        }
+        if (i == ACK.length() || i != length || seq > 0xFF) {
+            return null;
+        }
+        return new Reply(ack, seq);
+    }
+
+    /**
+     * @return the limit of a "CREDIT limit" line, -1 if the line isn't one.
+     */
+    public static int parseCredit(CharSequence line) {
+        return parseNumber(line, CREDIT);
+    }
+
+    /**
+     * @return the moves received of a "RESUME received" line, -1 if the line isn't one.
+     */
+    public static int parseResume(CharSequence line) {
+        return parseNumber(line, RESUME);
+    }
+
+    /**
+     * @return the index of a "MOVE index" line, -1 if the line isn't one.
+     */
+    public static int parseMove(CharSequence line) {
+        return parseNumber(line, MOVE);
+    }
+
+    private static int parseNumber(CharSequence line, String prefix) {
+        int length = trimmedLength(line);
+        if (!startsWith(line, prefix) || length == prefix.length()) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = prefix.length(); i < length; ++i) {
+            char c = line.charAt(i);
+            if (!Character.isDigit(c) || number > Integer.MAX_VALUE / 10) {
+                return -1;
+            }
+            number = number * 10 + c - '0';
+        }
+        return number > Integer.MAX_VALUE ? -1 : (int) number;
+    }
+
+    public static boolean isRewind(CharSequence line) {
+        return trimmedLength(line) == REWIND.length() && startsWith(line, REWIND);
+    }
+
+    /**
+     * Length without the trailing '\r' of Serial.println.
+     */
+    private static int trimmedLength(CharSequence line) {
+        int length = line.length();
+        while (length > 0 && line.charAt(length - 1) == '\r') {
+            --length;
+        }
+        return length;
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    static int writeVarint(int value, byte[] out, int position) {
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Reads an unsigned varint at {@code position[0]}, advancing it.
+     *
+     * @return -1 if the varint runs past {@code end} or is longer than 5 bytes.
+     */
+    static long readVarint(byte[] in, int[] position, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            if (position[0] >= end) {
+                return -1;
+            }
+            byte b = in[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value & 0xFFFFFFFFL;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE, same as crc16Update in boxjoint.ino.
+     */
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; ++i) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+}
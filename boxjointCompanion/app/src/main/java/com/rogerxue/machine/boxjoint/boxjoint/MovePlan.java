@@ -0,0 +1,103 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sequence of jig moves in thou, backed by a primitive int array.
+ *
+ * A plan can be reused across calculations; the backing array only grows.
+ */
+public final class MovePlan {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] moves;
+    private int size;
+
+    public MovePlan() {
+        moves = EMPTY;
+    }
+
+    public MovePlan(int capacity) {
+        moves = capacity == 0 ? EMPTY : new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+        return moves[index];
+    }
+
+    /**
+     * The backing array, only the first {@link #size()} entries are valid.
+     */
+    public int[] array() {
+        return moves;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(moves, size);
+    }
+
+    /**
+     * Read only view of the moves, nothing is copied or boxed up front.
+     */
+    public List<Integer> asList() {
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                return MovePlan.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Makes sure the plan can hold {@code capacity} moves without growing.
+     */
+    void ensureCapacity(int capacity) {
+        if (moves.length < capacity) {
+            moves = Arrays.copyOf(moves, capacity);
+        }
+    }
+
+    /**
+     * Marks the first {@code size} entries of the backing array as valid.
+     */
+    void setSize(int size) {
+        if (size < 0 || size > moves.length) {
+            throw new IndexOutOfBoundsException("size: " + size + ", capacity: " + moves.length);
+        }
+        this.size = size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size * 4);
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(moves[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.graphics.Color;
+import android.support.annotation.Nullable;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Shows the moves of a {@link MovePlan}, one row per move, highlighting the move the jig is on.
+ *
+ * Rows are bound straight from the plan as they scroll into view, so a plan of any length costs
+ * the same to show and the text of a row is formatted into a char buffer kept by its holder.
+ */
+public class MovePlanAdapter extends RecyclerView.Adapter<MovePlanAdapter.ViewHolder> {
+    // "-2147483648: -2147483648"
+    private static final int MAX_ROW_LENGTH = 24;
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+        final char[] buffer = new char[MAX_ROW_LENGTH];
+
+        ViewHolder(TextView text) {
+            super(text);
+            this.text = text;
+        }
+    }
+
+    @Nullable
+    private MovePlan mPlan;
+    private int mCurrentMove = RecyclerView.NO_POSITION;
+
+    public MovePlanAdapter() {
+        setHasStableIds(true);
+    }
+
+    /**
+     * Shows {@code plan}, which must not change while shown, clears the current move.
+     */
+    public void setPlan(@Nullable MovePlan plan) {
+        mPlan = plan;
+        mCurrentMove = RecyclerView.NO_POSITION;
+        notifyDataSetChanged();
+    }
+
+    @Nullable
+    public MovePlan getPlan() {
+        return mPlan;
+    }
+
+    /**
+     * Highlights move {@code index}, only the rows that change are rebound.
+     */
+    public void setCurrentMove(int index) {
+        if (index == mCurrentMove) {
+            return;
+        }
+        int previous = mCurrentMove;
+        mCurrentMove = currentMove(index, getItemCount());
+        if (previous != RecyclerView.NO_POSITION) {
+            notifyItemChanged(previous);
+        }
+        if (mCurrentMove != RecyclerView.NO_POSITION) {
+            notifyItemChanged(mCurrentMove);
+        }
+    }
+
+    public int getCurrentMove() {
+        return mCurrentMove;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        TextView text = (TextView) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.move_item, parent, false);
+        return new ViewHolder(text);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        int length = formatRow(holder.buffer, position, mPlan.get(position));
+        holder.text.setText(holder.buffer, 0, length);
+        holder.text.setBackgroundColor(
+                position == mCurrentMove ? Color.YELLOW : Color.TRANSPARENT);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mPlan == null ? 0 : mPlan.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * @return {@code index} if it's a move of a plan of {@code moveCount} moves, otherwise
+     * {@link RecyclerView#NO_POSITION}.
+     */
+    static int currentMove(int index, int moveCount) {
+        return index >= 0 && index < moveCount ? index : RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * Writes "index: move" into {@code buffer}.
+     *
+     * @return the number of chars written.
+     */
+    static int formatRow(char[] buffer, int index, int move) {
+        int length = formatInt(buffer, 0, index);
+        buffer[length++] = ':';
+        buffer[length++] = ' ';
+        return formatInt(buffer, length, move);
+    }
+
+    private static int formatInt(char[] buffer, int offset, int value) {
+        // negative, so MIN_VALUE doesn't overflow
+        int remaining = value < 0 ? value : -value;
+        if (value < 0) {
+            buffer[offset++] = '-';
+        }
+        int digits = 1;
+        for (int i = remaining / 10; i != 0; i /= 10) {
+            ++digits;
+        }
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; --i) {
+            buffer[i] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+        }
+        return end;
+    }
+}
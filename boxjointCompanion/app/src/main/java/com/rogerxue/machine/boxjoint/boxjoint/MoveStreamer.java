@@ -0,0 +1,195 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.util.Log;
+
+/**
+ * Streams a plan of any length to the jig in windows of binary frames, see
+ * {@link MoveFrameCodec}.
+ *
+ * Flow control is credit based: the jig sends "CREDIT limit" whenever executing moves frees room
+ * in its buffer, and the streamer sends windows of moves up to (excluding) index limit. A NAKed
+ * window is sent again from its start, "RESUME received" resends whatever got lost after the
+ * moves received, "REWIND" starts over from the first move. After the link drops and comes back
+ * the windows the jig hasn't ACKed are sent again.
+ *
+ * Not thread safe, call it from the thread the replies are handled on.
+ */
+public class MoveStreamer {
+    private static final String TAG = "MoveStreamer";
+    static final int WINDOW_MOVES = 32;
+    private static final int MAX_BEGIN_RETRANSMITS = 3;
+
+    public interface FrameSink {
+        /**
+         * @param sentMoves moves sent once this frame is written.
+         * @return false if the frame couldn't be sent.
+         */
+        boolean write(byte[] frame, int sentMoves);
+    }
+
+    private final FrameSink mSink;
+    private final int[] mMoves;
+    private final int mTotal;
+    private final MoveFrameCodec.SeqCounter mSeqs;
+    private int mBeginSeq;
+    private int mBeginRetransmits;
+    private boolean mBeginAcked;
+    // moves sent so far
+    private int mSent;
+    // moves the jig ACKed, from the first move on
+    private int mAcked;
+    // moves the jig has room for
+    private int mLimit;
+    // bumped whenever sending restarts from an earlier move, NAKs of older frames are stale
+    private int mEpoch;
+    private final int[] mFrameStart = new int[256];
+    private final int[] mFrameEpoch = new int[256];
+    private final int[] mFrameEnd = new int[256];
+
+    public MoveStreamer(FrameSink sink, MovePlan plan, int firstSeq) {
+        this(sink, plan, new MoveFrameCodec.SeqCounter(firstSeq));
+    }
+
+    /**
+     * @param seqs shared with the other frames sent over the link meanwhile.
+     */
+    public MoveStreamer(FrameSink sink, MovePlan plan, MoveFrameCodec.SeqCounter seqs) {
+        mSink = sink;
+        mMoves = plan.toArray();
+        mTotal = plan.size();
+        mSeqs = seqs;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Moves sent so far, not necessarily executed yet.
+     */
+    public int getSent() {
+        return mSent;
+    }
+
+    public boolean isComplete() {
+        return mSent >= mTotal;
+    }
+
+    /**
+     * Whether the jig ACKed every move.
+     */
+    public boolean isDelivered() {
+        return mAcked >= mTotal;
+    }
+
+    /**
+     * The next frame sequence number after the frames sent by this streamer.
+     */
+    public int getNextSeq() {
+        return mSeqs.peek();
+    }
+
+    /**
+     * Announces the plan, the moves follow when the jig grants credit.
+     */
+    public boolean start() {
+        mBeginSeq = mSeqs.next();
+        mBeginRetransmits = 0;
+        mBeginAcked = false;
+        return mSink.write(MoveFrameCodec.encodeStreamBegin(mBeginSeq, mTotal), 0);
+    }
+
+    public boolean onCredit(int limit) {
+        if (limit > mLimit) {
+            mLimit = Math.min(limit, mTotal);
+        }
+        return pump();
+    }
+
+    /**
+     * The jig ran out of moves having received {@code received}, frames after it got lost.
+     */
+    public boolean onResume(int received) {
+        if (received < mSent) {
+            Log.w(TAG, "resuming at " + received + ", sent " + mSent);
+            mEpoch++;
+            mSent = received;
+        }
+        mAcked = Math.min(received, mSent);
+        return pump();
+    }
+
+    public void onRewind() {
+        Log.d(TAG, "rewind after " + mSent + " moves");
+        mEpoch++;
+        mSent = 0;
+        mAcked = 0;
+        mLimit = 0;
+    }
+
+    /**
+     * The link dropped and is back: windows sent after the last one ACKed are sent again, the
+     * plan is announced again if the jig never ACKed it.
+     */
+    public boolean onReconnect() {
+        if (!mBeginAcked) {
+            Log.d(TAG, "stream begin not ACKed, starting over");
+            onRewind();
+            return start();
+        }
+        if (mAcked < mSent) {
+            Log.d(TAG, "resending from " + mAcked + ", sent " + mSent);
+            mEpoch++;
+            mSent = mAcked;
+        }
+        return pump();
+    }
+
+    public boolean onReply(MoveFrameCodec.Reply reply) {
+        if (reply.ack) {
+            if (!mBeginAcked && reply.seq == mBeginSeq) {
+                mBeginAcked = true;
+            } else if (mFrameStart[reply.seq] <= mAcked) {
+                // frames are ACKed in order, a window after a lost one waits for the resend
+                mAcked = Math.max(mAcked, mFrameEnd[reply.seq]);
+            }
+            return true;
+        }
+        // once ACKed, the seq of the begin frame wraps around to a window like any other
+        if (!mBeginAcked && reply.seq == mBeginSeq) {
+            if (mBeginRetransmits++ >= MAX_BEGIN_RETRANSMITS) {
+                Log.w(TAG, "stream begin NAKed, giving up");
+                return false;
+            }
+            mBeginSeq = mSeqs.next();
+            return mSink.write(MoveFrameCodec.encodeStreamBegin(mBeginSeq, mTotal), 0);
+        }
+        if (mFrameEpoch[reply.seq] != mEpoch || mFrameStart[reply.seq] >= mSent) {
+            // sent before the last restart, already covered
+            return true;
+        }
+        Log.w(TAG, "window at " + mFrameStart[reply.seq] + " NAKed, resending");
+        mEpoch++;
+        mSent = mFrameStart[reply.seq];
+        return pump();
+    }
+
+    /**
+     * Sends windows until the credit is used up.
+     */
+    private boolean pump() {
+        while (mSent < mLimit) {
+            int count = Math.min(WINDOW_MOVES, mLimit - mSent);
+            int seq = mSeqs.next();
+            mFrameStart[seq] = mSent;
+            mFrameEpoch[seq] = mEpoch;
+            mFrameEnd[seq] = mSent + count;
+            byte[] frame = MoveFrameCodec.encodeStreamMoves(seq, mMoves, mSent, count);
+            if (!mSink.write(frame, mSent + count)) {
+                return false;
+            }
+            mSent += count;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the comma separated finger pattern typed in by the user.
+ *
+ * A single pass over the characters, numbers are parsed in place without substrings or
+ * exceptions. Trailing commas are ignored, and an empty text is a single token that isn't a
+ * number, as with {@link String#split}. See {@link IncrementalPatternParser} for re-parsing
+ * while the pattern is edited.
+ */
+public class PatternParser {
+    /** Returned by {@link #parseNumber} for a token that isn't a number. */
+    static final long INVALID = Long.MIN_VALUE;
+    static final char SEPARATOR = ',';
+
+    /**
+     * Number list alternate between gap width and finger width, start with gap width.
+     * It needs to be in even numbers.
+     *
+     * @return null if any of the numbers is invalid, or the text is empty.
+     */
+    @Nullable
+    public static List<Integer> parse(String pattern) {
+        if (pattern.isEmpty()) {
+            return null;
+        }
+        List<Integer> numbers = new ArrayList<>();
+        int length = trimTrailingSeparators(pattern, pattern.length());
+        int start = 0;
+        while (start <= length && length > 0) {
+            int end = nextSeparator(pattern, start, length);
+            long number = parseNumber(pattern, start, end);
+            if (number == INVALID) {
+                return null;
+            }
+            numbers.add((int) number);
+            start = end + 1;
+        }
+        return numbers;
+    }
+
+    /**
+     * @return the length of {@code text} up to {@code length} without trailing separators.
+     */
+    static int trimTrailingSeparators(CharSequence text, int length) {
+        while (length > 0 && text.charAt(length - 1) == SEPARATOR) {
+            --length;
+        }
+        return length;
+    }
+
+    /**
+     * @return index of the next separator from {@code from}, {@code to} if none.
+     */
+    static int nextSeparator(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) != SEPARATOR) {
+            ++from;
+        }
+        return from;
+    }
+
+    /**
+     * Parses {@code text} from {@code from} to {@code to} as a decimal int with an optional sign,
+     * like {@link Integer#parseInt(String)}.
+     *
+     * @return {@link #INVALID} if it isn't one.
+     */
+    static long parseNumber(CharSequence text, int from, int to) {
+        if (from >= to) {
+            return INVALID;
+        }
+        boolean negative = false;
+        char first = text.charAt(from);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++from == to) {
+                return INVALID;
+            }
+        }
+        long value = 0;
+        for (int i = from; i < to; ++i) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                return INVALID;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? INVALID : value;
+    }
+}
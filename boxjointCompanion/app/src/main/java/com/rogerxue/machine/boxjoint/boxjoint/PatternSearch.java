@@ -0,0 +1,333 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Looks through random patterns for the ones cheapest to cut, on a fork join pool.
+ *
+ * Candidates are split in halves down to {@link #CANDIDATES_PER_TASK}, each task generates its
+ * candidates with its own {@link RandomPatternGenerator} and scores them with its own
+ * {@link MoveCalculator}, reusing its plans, and keeps its own best. The bests are merged at the
+ * end, so nothing mutable is shared. A task is seeded by the seed of the search and where its
+ * candidates start, so a search finds the same patterns on any number of cores.
+ *
+ * Set up, then {@link #search}. Not thread safe while setting up.
+ */
+public class PatternSearch {
+    // small enough to balance over cores, large enough for the gap cache of a calculator
+    static final int CANDIDATES_PER_TASK = 64;
+    private static final Metrics.Timer SEARCH_TIME = Metrics.getInstance().timer("search");
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * What makes a pattern cheap, for both boards of the joint: the gap first one and the finger
+     * first one.
+     */
+    public enum Objective {
+        /** Fewest moves, each one a pass of the saw. */
+        PASSES,
+        /** Least distance the jig travels. */
+        TRAVERSE,
+        /** Shortest time on the jig, see {@link CycleTimeEstimator}. */
+        TIME,
+    }
+
+    /**
+     * A pattern found, with what it costs.
+     */
+    public static final class Candidate {
+        private final int[] pattern;
+        /** Of the objective searched for, lower is better. */
+        public final long score;
+        public final int passes;
+        /** In thou. */
+        public final long traverse;
+        public final long micros;
+
+        Candidate(int[] pattern, long score, int passes, long traverse, long micros) {
+            this.pattern = pattern;
+            this.score = score;
+            this.passes = passes;
+            this.traverse = traverse;
+            this.micros = micros;
+        }
+
+        public int[] getPattern() {
+            return pattern.clone();
+        }
+
+        @Override
+        public String toString() {
+            return passes + " passes, traverse " + traverse + ", " + micros / 1000 + "ms: "
+                    + Arrays.toString(pattern);
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private CutSettings mSettings = new CutSettings(100, 2, 0.5);
+    private int mStockWidth;
+    private int mMinWidth = 1;
+    private int mMaxWidth = 1;
+    private int mMinPairs = 1;
+    private int mMaxPairs = 1;
+    private boolean mExactFit;
+    private Objective mObjective = Objective.PASSES;
+    private CycleTimeEstimator mEstimator =
+            new CycleTimeEstimator(CycleTimeEstimator.MIN_STEP_DELAY_MICROS);
+
+    public PatternSearch() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public PatternSearch(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    public PatternSearch setSettings(CutSettings settings, int stockWidth) {
+        mSettings = settings;
+        mStockWidth = stockWidth;
+        return this;
+    }
+
+    /**
+     * Widths of fingers and gaps, never narrower than kerf + tolerance.
+     */
+    public PatternSearch setWidths(int minWidth, int maxWidth) {
+        mMinWidth = minWidth;
+        mMaxWidth = maxWidth;
+        return this;
+    }
+
+    /**
+     * Number of (gap, finger) pairs, both inclusive.
+     */
+    public PatternSearch setPairs(int minPairs, int maxPairs) {
+        mMinPairs = minPairs;
+        mMaxPairs = maxPairs;
+        return this;
+    }
+
+    /**
+     * Only patterns adding up to the stock width.
+     */
+    public PatternSearch setExactFit(boolean exactFit) {
+        mExactFit = exactFit;
+        return this;
+    }
+
+    public PatternSearch setObjective(Objective objective) {
+        mObjective = objective;
+        return this;
+    }
+
+    /**
+     * Times the plans for {@link Objective#TIME}.
+     */
+    public PatternSearch setEstimator(CycleTimeEstimator estimator) {
+        mEstimator = estimator;
+        return this;
+    }
+
+    /**
+     * Scores {@code candidates} random patterns, blocking until done.
+     *
+     * @return the best {@code top} of them, best first. Empty if no pattern is possible, e.g.
+     * no number of pairs adds up to the stock width.
+     */
+    public List<Candidate> search(int candidates, int top, long seed) {
+        long start = SEARCH_TIME.start();
+        Query query = new Query(this, top, seed);
+        if (query.pairCounts.length == 0 || candidates <= 0 || top <= 0) {
+            return Collections.emptyList();
+        }
+        List<Hit> hits = mPool.invoke(new SearchTask(query, 0, candidates));
+        Collections.sort(hits, BEST_FIRST);
+        List<Candidate> result = new ArrayList<>(hits.size());
+        MoveCalculator calculator = mSettings.applyTo(new MoveCalculator(), mStockWidth);
+        MovePlan gapFirst = new MovePlan();
+        MovePlan fingerFirst = new MovePlan();
+        for (Hit hit : hits) {
+            result.add(describe(calculator, gapFirst, fingerFirst, mEstimator, hit));
+        }
+        SEARCH_TIME.stop(start);
+        return result;
+    }
+
+    /**
+     * What was set up when a search started, shared by its tasks.
+     */
+    private static final class Query {
+        final CutSettings settings;
+        final int stockWidth;
+        final int minWidth;
+        final int maxWidth;
+        final boolean exactFit;
+        final Objective objective;
+        final CycleTimeEstimator estimator;
+        final int top;
+        final long seed;
+        // pair counts a pattern is possible with
+        final int[] pairCounts;
+
+        Query(PatternSearch search, int top, long seed) {
+            settings = search.mSettings;
+            stockWidth = search.mStockWidth;
+            minWidth = Math.max(search.mMinWidth, settings.kerf + settings.tolerance);
+            maxWidth = search.mMaxWidth;
+            exactFit = search.mExactFit;
+            objective = search.mObjective;
+            estimator = search.mEstimator;
+            this.top = top;
+            this.seed = seed;
+            int[] counts = new int[Math.max(0, search.mMaxPairs - search.mMinPairs + 1)];
+            int size = 0;
+            for (int pairs = Math.max(1, search.mMinPairs); pairs <= search.mMaxPairs; ++pairs) {
+                long length = 2L * pairs;
+                if (minWidth <= maxWidth && (!exactFit
+                        || (length * minWidth <= stockWidth && length * maxWidth >= stockWidth))) {
+                    counts[size++] = pairs;
+                }
+            }
+            pairCounts = Arrays.copyOf(counts, size);
+        }
+    }
+
+    /**
+     * A candidate among the best so far, scored only.
+     */
+    private static final class Hit {
+        final int[] pattern;
+        final long score;
+        // breaks ties, so the best don't depend on how the candidates were split
+        final int index;
+
+        Hit(int[] pattern, long score, int index) {
+            this.pattern = pattern;
+            this.score = score;
+            this.index = index;
+        }
+    }
+
+    private static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit a, Hit b) {
+            return a.score != b.score
+                    ? Long.compare(a.score, b.score)
+                    : Integer.compare(a.index, b.index);
+        }
+    };
+
+    private static List<Hit> searchRange(Query query, int from, int to) {
+        MoveCalculator calculator = query.settings.applyTo(new MoveCalculator(), query.stockWidth);
+        RandomPatternGenerator generator =
+                new RandomPatternGenerator(query.seed + from * GOLDEN_GAMMA)
+                        .setWidths(query.minWidth, query.maxWidth)
+                        .setFitWidth(query.exactFit ? query.stockWidth : 0);
+        int[] pairCounts = query.pairCounts;
+        int[] pattern = new int[2 * pairCounts[pairCounts.length - 1]];
+        MovePlan gapFirst = new MovePlan();
+        MovePlan fingerFirst = new MovePlan();
+        // worst first, to drop it when a better one comes
+        PriorityQueue<Hit> best =
+                new PriorityQueue<>(query.top + 1, Collections.reverseOrder(BEST_FIRST));
+        for (int i = from; i < to; ++i) {
+            int pairs = pairCounts[i % pairCounts.length];
+            if (!generator.generateInto(pattern, pairs)) {
+                continue;
+            }
+            long score = score(calculator, gapFirst, fingerFirst, query, pattern, 2 * pairs);
+            if (score < 0) {
+                continue;
+            }
+            if (best.size() == query.top) {
+                Hit worst = best.peek();
+                if (score > worst.score || (score == worst.score && i > worst.index)) {
+                    continue;
+                }
+                best.poll();
+            }
+            best.add(new Hit(Arrays.copyOf(pattern, 2 * pairs), score, i));
+        }
+        return new ArrayList<>(best);
+    }
+
+    /**
+     * @return the objective for both boards, -1 if the calculator takes the pattern for neither.
+     */
+    private static long score(MoveCalculator calculator, MovePlan gapFirst, MovePlan fingerFirst,
+            Query query, int[] pattern, int length) {
+        if (query.objective == Objective.PASSES) {
+            // counting is enough, no need for the moves
+            int gapFirstCount = calculator.countMoves(pattern, length, false);
+            int fingerFirstCount = calculator.countMoves(pattern, length, true);
+            return gapFirstCount < 0 || fingerFirstCount < 0
+                    ? -1
+                    : gapFirstCount + fingerFirstCount;
+        }
+        if (!calculator.calculateBoth(pattern, length, gapFirst, fingerFirst)) {
+            return -1;
+        }
+        return query.objective == Objective.TIME
+                ? query.estimator.estimate(gapFirst).getTotalMicros()
+                        + query.estimator.estimate(fingerFirst).getTotalMicros()
+                : traverse(gapFirst) + traverse(fingerFirst);
+    }
+
+    private static long traverse(MovePlan plan) {
+        int[] moves = plan.array();
+        long distance = 0;
+        for (int i = 0; i < plan.size(); ++i) {
+            distance += Math.abs(moves[i]);
+        }
+        return distance;
+    }
+
+    private static Candidate describe(MoveCalculator calculator, MovePlan gapFirst,
+            MovePlan fingerFirst, CycleTimeEstimator estimator, Hit hit) {
+        // scored already, so the calculator takes it
+        calculator.calculateBoth(hit.pattern, hit.pattern.length, gapFirst, fingerFirst);
+        return new Candidate(hit.pattern, hit.score,
+                gapFirst.size() + fingerFirst.size(),
+                traverse(gapFirst) + traverse(fingerFirst),
+                estimator.estimate(gapFirst).getTotalMicros()
+                        + estimator.estimate(fingerFirst).getTotalMicros());
+    }
+
+    private static class SearchTask extends RecursiveTask<List<Hit>> {
+        private final Query mQuery;
+        private final int mFrom;
+        private final int mTo;
+
+        SearchTask(Query query, int from, int to) {
+            mQuery = query;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected List<Hit> compute() {
+            if (mTo - mFrom <= CANDIDATES_PER_TASK) {
+                return searchRange(mQuery, mFrom, mTo);
+            }
+            // split on a task boundary, so tasks start at the same candidates however split
+            int tasks = (mTo - mFrom + CANDIDATES_PER_TASK - 1) / CANDIDATES_PER_TASK;
+            int middle = mFrom + tasks / 2 * CANDIDATES_PER_TASK;
+            SearchTask right = new SearchTask(mQuery, middle, mTo);
+            right.fork();
+            List<Hit> hits = new SearchTask(mQuery, mFrom, middle).compute();
+            hits.addAll(right.join());
+            // keep the best of both
+            Collections.sort(hits, BEST_FIRST);
+            return hits.size() > mQuery.top
+                    ? new ArrayList<>(hits.subList(0, mQuery.top))
+                    : hits;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * One end of an in process link, see {@link #pair}. What one end writes the other reads.
+ *
+ * Backed by {@link PipedInputStream}, so a writer blocks while the other end's buffer is full,
+ * much like a serial port that's not drained, and each end must be read and written from
+ * threads that outlive the link.
+ */
+public class PipeTransport implements SerialTransport {
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final String mName;
+    private final PipedInputStream mInput;
+    private final PipedOutputStream mOutput = new PipedOutputStream();
+
+    private PipeTransport(String name, int bufferSize) {
+        mName = name;
+        mInput = new PipedInputStream(bufferSize);
+    }
+
+    /**
+     * @return the two connected ends.
+     */
+    public static PipeTransport[] pair() throws IOException {
+        return pair(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize bytes each end buffers before the writer blocks.
+     * @return the two connected ends.
+     */
+    public static PipeTransport[] pair(int bufferSize) throws IOException {
+        PipeTransport a = new PipeTransport("pipe-a", bufferSize);
+        PipeTransport b = new PipeTransport("pipe-b", bufferSize);
+        a.mOutput.connect(b.mInput);
+        b.mOutput.connect(a.mInput);
+        return new PipeTransport[] {a, b};
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInput;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Ends the stream of the other end, and unblocks reads of this one.
+     */
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+        mInput.close();
+    }
+}
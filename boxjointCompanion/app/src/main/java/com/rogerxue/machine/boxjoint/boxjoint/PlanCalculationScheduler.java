@@ -0,0 +1,183 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calculates the gap first and finger first plans off the UI thread.
+ *
+ * Requests made within {@link #DEBOUNCE_MS} of each other are coalesced into one, a new request
+ * supersedes the pending or running one, and only the result of the latest request is delivered
+ * back on the main thread.
+ */
+public class PlanCalculationScheduler {
+    private static final String TAG = "PlanCalculation";
+    static final long DEBOUNCE_MS = 150;
+    // from the request to the plans delivered, including the debounce
+    private static final Metrics.Timer LATENCY = Metrics.getInstance().timer("plans.latency");
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the plans of the latest request.
+         */
+        void onPlansCalculated(Result result);
+    }
+
+    public static class Result {
+        /**
+         * The gap first job the plans are for, null if a setting was missing.
+         */
+        @Nullable public final CutJob job;
+        @Nullable public final MovePlan gapFirst;
+        @Nullable public final MovePlan fingerFirst;
+        public final String gapFirstText;
+        public final String fingerFirstText;
+
+        Result(@Nullable CutJob job,
+                @Nullable MovePlan gapFirst, @Nullable String gapFirstError,
+                @Nullable MovePlan fingerFirst, @Nullable String fingerFirstError) {
+            this.job = job;
+            this.gapFirst = gapFirst;
+            this.fingerFirst = fingerFirst;
+            gapFirstText = toText(gapFirst, gapFirstError);
+            fingerFirstText = toText(fingerFirst, fingerFirstError);
+        }
+
+        private static String toText(@Nullable MovePlan plan, @Nullable String error) {
+            if (plan != null) {
+                return plan.size() + " moves";
+            }
+            return error != null ? "invalid pattern: " + error : "invalid pattern";
+        }
+    }
+
+    /**
+     * Snapshot of the settings and pattern, taken on the main thread.
+     */
+    private static class Request {
+        final Integer kerf;
+        final Integer tolerance;
+        final Double smoothness;
+        final Integer stockWidth;
+        final MoveCalculator.GapClearing gapClearing;
+        final int[] pattern;
+        final long requestedAt = LATENCY.start();
+
+        Request(MoveCalculator settings, int[] pattern) {
+            kerf = settings.getKerf();
+            tolerance = settings.getTolerance();
+            smoothness = settings.getSmoothness();
+            stockWidth = settings.getStockWidth();
+            gapClearing = settings.getGapClearing();
+            this.pattern = pattern;
+        }
+
+        @Nullable
+        CutJob toJob() {
+            if (kerf == null || tolerance == null || smoothness == null || stockWidth == null) {
+                return null;
+            }
+            return new CutJob("", new CutSettings(kerf, tolerance, smoothness, gapClearing),
+                    stockWidth, pattern, false);
+        }
+    }
+
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mGeneration = new AtomicLong();
+    // only touched on the executor thread
+    private final MoveCalculator mCalculator = new MoveCalculator();
+    // only touched on the main thread
+    private ScheduledFuture<?> mPending;
+    private Listener mListener;
+
+    public PlanCalculationScheduler(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Schedules a calculation with the current settings of {@code settings}, replacing any
+     * calculation not delivered yet. {@code pattern} is owned by the scheduler from now on.
+     */
+    public void request(MoveCalculator settings, int[] pattern) {
+        final Request request = new Request(settings, pattern);
+        final long generation = mGeneration.incrementAndGet();
+        if (mPending != null) {
+            mPending.cancel(false);
+        }
+        mPending = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final Result result = calculate(request, generation);
+                if (result == null) {
+                    Log.d(TAG, "dropped stale calculation " + generation);
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isStale(generation) && mListener != null) {
+                            LATENCY.stop(request.requestedAt);
+                            mListener.onPlansCalculated(result);
+                        }
+                    }
+                });
+            }
+        }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops any calculation not delivered yet.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        mListener = null;
+        mExecutor.shutdownNow();
+    }
+
+    private boolean isStale(long generation) {
+        return generation != mGeneration.get();
+    }
+
+    /**
+     * @return null if the request became stale half way.
+     */
+    @Nullable
+    private Result calculate(Request request, long generation) {
+        mCalculator.setKerf(request.kerf)
+                .setTolerance(request.tolerance)
+                .setSmoothness(request.smoothness)
+                .setStockWidth(request.stockWidth)
+                .setGapClearing(request.gapClearing);
+        int[] pattern = request.pattern;
+        // new plans each time, the ones delivered before are still shown
+        MovePlan gapFirst = new MovePlan();
+        MovePlan fingerFirst = new MovePlan();
+        if (!mCalculator.calculateBothInto(pattern, pattern.length, gapFirst, fingerFirst)) {
+            gapFirst = null;
+            fingerFirst = null;
+        }
+        String error = mCalculator.getLastError();
+        if (isStale(generation)) {
+            return null;
+        }
+        return new Result(request.toJob(), gapFirst, error, fingerFirst, error);
+    }
+}
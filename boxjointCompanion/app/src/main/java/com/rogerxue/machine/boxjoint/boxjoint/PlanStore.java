@@ -0,0 +1,533 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Saved jobs: the inputs of the calculation and both plans, so a job reopens without being
+ * recalculated.
+ *
+ * Records are appended to a single file, a later record of the same name replaces the earlier
+ * one and deleting appends a tombstone:
+ *
+ *   MAGIC | body length (int) | body | CRC-32 of body (int)
+ *   body: flags | saved at (long) | name length (short) | name (UTF-8) | job
+ *   job:  kerf | tolerance | smoothness (double) | gap clearing (byte) | stock width
+ *         | pattern count | pattern | gap first count + 1 | moves | finger first count + 1 | moves
+ *
+ * Numbers without a type are zigzag varints as in {@link MoveFrameCodec}, a count of 0 is a plan
+ * that couldn't be calculated. Opening the store walks the records to index the names and check
+ * their CRCs, the file is mapped and a record is decoded when it's loaded. A record cut short or
+ * torn by a crash while saving is dropped on open, with whatever follows it. Once more than half
+ * of the file is replaced records it is rewritten with just the live ones.
+ */
+public final class PlanStore implements Closeable {
+    private static final String TAG = "PlanStore";
+    private static final int MAGIC = 0x424A5031; // "BJP1"
+    private static final int FLAG_DELETED = 1;
+    // magic, body length
+    private static final int HEADER_SIZE = 8;
+    private static final int CRC_SIZE = 4;
+    // flags, saved at, name length
+    private static final int MIN_BODY_SIZE = 1 + 8 + 2;
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int MAX_NAME_LENGTH = Short.MAX_VALUE;
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+    private static final int SCAN_CHUNK = 4096;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A saved job, immutable.
+     */
+    public static final class Record {
+        public final String name;
+        public final long savedAt;
+        public final CutSettings settings;
+        public final int stockWidth;
+        @Nullable
+        public final MovePlan gapFirst;
+        @Nullable
+        public final MovePlan fingerFirst;
+        private final int[] pattern;
+
+        /**
+         * The plans must not be changed once they are in a record.
+         */
+        public Record(
+                String name,
+                long savedAt,
+                CutSettings settings,
+                int stockWidth,
+                int[] pattern,
+                @Nullable MovePlan gapFirst,
+                @Nullable MovePlan fingerFirst) {
+            this.name = name;
+            this.savedAt = savedAt;
+            this.settings = settings;
+            this.stockWidth = stockWidth;
+            this.pattern = pattern.clone();
+            this.gapFirst = gapFirst;
+            this.fingerFirst = fingerFirst;
+        }
+
+        public int[] getPattern() {
+            return pattern.clone();
+        }
+
+        public CutJob toJob(boolean fingerFirst) {
+            return new CutJob(name, settings, stockWidth, pattern, fingerFirst);
+        }
+    }
+
+    private static final class IndexEntry {
+        final long offset;
+        final int size;
+        final long savedAt;
+
+        IndexEntry(long offset, int size, long savedAt) {
+            this.offset = offset;
+            this.size = size;
+            this.savedAt = savedAt;
+        }
+    }
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    // covers the file up to its size when mapped, remapped once a load goes past it
+    private MappedByteBuffer mMapped;
+    private long mSize;
+    private long mLiveSize;
+    private final Map<String, IndexEntry> mIndex = new HashMap<>();
+
+    private PlanStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Opens the store in {@code file}, creating it if needed.
+     */
+    public static PlanStore open(File file) throws IOException {
+        PlanStore store = new PlanStore(file);
+        store.openFile();
+        return store;
+    }
+
+    private void openFile() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mSize = mChannel.size();
+        mMapped = null;
+        mIndex.clear();
+        mLiveSize = 0;
+        long valid = scan();
+        if (valid < mSize) {
+            // the tail of an interrupted save
+            mChannel.truncate(valid);
+            mSize = valid;
+            mMapped = null;
+        }
+    }
+
+    /**
+     * Indexes the records from their headers, once their CRC matches.
+     *
+     * @return the size of the file up to the first record that isn't complete or intact.
+     */
+    private long scan() throws IOException {
+        if (mSize == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = mapped();
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[SCAN_CHUNK];
+        long offset = 0;
+        while (mSize - offset >= HEADER_SIZE + MIN_BODY_SIZE + CRC_SIZE) {
+            int position = (int) offset;
+            int bodyLength = buffer.getInt(position + 4);
+            if (buffer.getInt(position) != MAGIC
+                    || bodyLength < MIN_BODY_SIZE
+                    || bodyLength > mSize - offset - HEADER_SIZE - CRC_SIZE) {
+                break;
+            }
+            int body = position + HEADER_SIZE;
+            int flags = buffer.get(body);
+            long savedAt = buffer.getLong(body + 1);
+            int nameLength = buffer.getShort(body + 9) & 0xFFFF;
+            if (nameLength > bodyLength - MIN_BODY_SIZE
+                    || !crcMatches(buffer, body, bodyLength, crc, chunk)) {
+                break;
+            }
+            String name = readName(buffer, body + MIN_BODY_SIZE, nameLength);
+            int recordSize = HEADER_SIZE + bodyLength + CRC_SIZE;
+            index(name, (flags & FLAG_DELETED) != 0
+                    ? null
+                    : new IndexEntry(offset, recordSize, savedAt));
+            offset += recordSize;
+        }
+        return offset;
+    }
+
+    private static boolean crcMatches(
+            ByteBuffer buffer, int body, int bodyLength, CRC32 crc, byte[] chunk) {
+        crc.reset();
+        ByteBuffer view = buffer.duplicate();
+        view.position(body);
+        for (int left = bodyLength; left > 0; ) {
+            int length = Math.min(left, chunk.length);
+            view.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+            left -= length;
+        }
+        return buffer.getInt(body + bodyLength) == (int) crc.getValue();
+    }
+
+    private void index(String name, @Nullable IndexEntry entry) {
+        IndexEntry replaced = entry != null ? mIndex.put(name, entry) : mIndex.remove(name);
+        if (replaced != null) {
+            mLiveSize -= replaced.size;
+        }
+        if (entry != null) {
+            mLiveSize += entry.size;
+        }
+    }
+
+    private MappedByteBuffer mapped() throws IOException {
+        if (mMapped == null || mMapped.capacity() < mSize) {
+            mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+        }
+        return mMapped;
+    }
+
+    private static String readName(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Saves {@code record}, replacing the one of the same name. Returns once it is on disk.
+     */
+    public synchronized void save(Record record) throws IOException {
+        byte[] name = record.name.getBytes(UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("name too long: " + record.name);
+        }
+        CutSettings settings = record.settings;
+        int maxBodySize = MIN_BODY_SIZE + name.length
+                + 3 * MAX_VARINT_SIZE + 8 + 1
+                + maxArraySize(record.pattern.length)
+                + maxArraySize(record.gapFirst != null ? record.gapFirst.size() : 0)
+                + maxArraySize(record.fingerFirst != null ? record.fingerFirst.size() : 0);
+        byte[] out = new byte[HEADER_SIZE + maxBodySize + CRC_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(out);
+        buffer.putInt(MAGIC).putInt(0);
+        writeBodyHeader(buffer, 0, record.savedAt, name);
+        int position = buffer.position();
+        position = writeSigned(settings.kerf, out, position);
+        position = writeSigned(settings.tolerance, out, position);
+        buffer.putDouble(position, settings.smoothness);
+        position += 8;
+        out[position++] = (byte) settings.gapClearing.ordinal();
+        position = writeSigned(record.stockWidth, out, position);
+        position = writeArray(record.pattern, record.pattern.length, out, position);
+        position = writePlan(record.gapFirst, out, position);
+        position = writePlan(record.fingerFirst, out, position);
+        append(record.name, record.savedAt, out, position, false);
+    }
+
+    /**
+     * Forgets the job {@code name}.
+     *
+     * @return false if there was no such job.
+     */
+    public synchronized boolean delete(String name) throws IOException {
+        if (!mIndex.containsKey(name)) {
+            return false;
+        }
+        byte[] nameBytes = name.getBytes(UTF_8);
+        byte[] out = new byte[HEADER_SIZE + MIN_BODY_SIZE + nameBytes.length + CRC_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(out);
+        buffer.putInt(MAGIC).putInt(0);
+        writeBodyHeader(buffer, FLAG_DELETED, System.currentTimeMillis(), nameBytes);
+        append(name, 0, out, buffer.position(), true);
+        return true;
+    }
+
+    private static void writeBodyHeader(ByteBuffer buffer, int flags, long savedAt, byte[] name) {
+        buffer.put((byte) flags).putLong(savedAt).putShort((short) name.length).put(name);
+    }
+
+    /**
+     * Fills in the length and CRC of the record in {@code out} ending at {@code bodyEnd} and
+     * appends it to the file.
+     */
+    private void append(String name, long savedAt, byte[] out, int bodyEnd, boolean deleted)
+            throws IOException {
+        int bodyLength = bodyEnd - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(out, HEADER_SIZE, bodyLength);
+        ByteBuffer buffer = ByteBuffer.wrap(out, 0, bodyEnd + CRC_SIZE);
+        buffer.putInt(4, bodyLength);
+        buffer.putInt(bodyEnd, (int) crc.getValue());
+        long offset = mSize;
+        mChannel.position(offset);
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+        mChannel.force(false);
+        int recordSize = bodyEnd + CRC_SIZE;
+        mSize += recordSize;
+        index(name, deleted ? null : new IndexEntry(offset, recordSize, savedAt));
+        if (mSize >= MIN_COMPACT_SIZE && mLiveSize < mSize / 2) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the record is on disk either way, the next save tries again
+                Log.w(TAG, "can't compact " + mFile, e);
+            }
+        }
+    }
+
+    /**
+     * @return the job {@code name}, null if there is none.
+     * @throws IOException if the record can't be read or is corrupt.
+     */
+    @Nullable
+    public synchronized Record load(String name) throws IOException {
+        IndexEntry entry = mIndex.get(name);
+        if (entry == null) {
+            return null;
+        }
+        byte[] bytes = new byte[entry.size];
+        ByteBuffer view = mapped().duplicate();
+        view.position((int) entry.offset);
+        view.get(bytes);
+        return decode(bytes);
+    }
+
+    private static Record decode(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int bodyLength = buffer.getInt(4);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_SIZE, bodyLength);
+        if (buffer.getInt(HEADER_SIZE + bodyLength) != (int) crc.getValue()) {
+            throw new IOException("corrupt record");
+        }
+        buffer.limit(HEADER_SIZE + bodyLength);
+        buffer.position(HEADER_SIZE + 1);
+        long savedAt = buffer.getLong();
+        int nameLength = buffer.getShort() & 0xFFFF;
+        String name = readName(buffer, buffer.position(), nameLength);
+        buffer.position(buffer.position() + nameLength);
+        try {
+            int kerf = readSigned(buffer);
+            int tolerance = readSigned(buffer);
+            double smoothness = buffer.getDouble();
+            MoveCalculator.GapClearing[] clearings = MoveCalculator.GapClearing.values();
+            int clearing = buffer.get();
+            if (clearing < 0 || clearing >= clearings.length) {
+                throw new IOException("unknown gap clearing: " + clearing);
+            }
+            int stockWidth = readSigned(buffer);
+            int[] pattern = readArray(buffer, readUnsigned(buffer));
+            MovePlan gapFirst = readPlan(buffer);
+            MovePlan fingerFirst = readPlan(buffer);
+            return new Record(name, savedAt,
+                    new CutSettings(kerf, tolerance, smoothness, clearings[clearing]),
+                    stockWidth, pattern, gapFirst, fingerFirst);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, or a count past the end of the record
+            throw new IOException("corrupt record", e);
+        }
+    }
+
+    /**
+     * Names of the saved jobs, the most recently saved first.
+     */
+    public synchronized List<String> getNames() {
+        List<Map.Entry<String, IndexEntry>> entries = new ArrayList<>(mIndex.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, IndexEntry>>() {
+            @Override
+            public int compare(Map.Entry<String, IndexEntry> a, Map.Entry<String, IndexEntry> b) {
+                long diff = b.getValue().savedAt - a.getValue().savedAt;
+                return diff < 0 ? -1 : diff > 0 ? 1 : a.getKey().compareTo(b.getKey());
+            }
+        });
+        List<String> names = new ArrayList<>(entries.size());
+        for (Map.Entry<String, IndexEntry> entry : entries) {
+            names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * @return the most recently saved job, null if there is none.
+     */
+    @Nullable
+    public synchronized String getLatestName() {
+        String latest = null;
+        long latestSavedAt = Long.MIN_VALUE;
+        for (Map.Entry<String, IndexEntry> entry : mIndex.entrySet()) {
+            if (entry.getValue().savedAt >= latestSavedAt) {
+                latest = entry.getKey();
+                latestSavedAt = entry.getValue().savedAt;
+            }
+        }
+        return latest;
+    }
+
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * Size of the file, including replaced records.
+     */
+    public synchronized long getFileSize() {
+        return mSize;
+    }
+
+    /**
+     * Rewrites the file with just the live records.
+     */
+    public synchronized void compact() throws IOException {
+        File compacted = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            ByteBuffer source = mapped();
+            List<IndexEntry> entries = new ArrayList<>(mIndex.values());
+            // keep the order they were saved in
+            Collections.sort(entries, new Comparator<IndexEntry>() {
+                @Override
+                public int compare(IndexEntry a, IndexEntry b) {
+                    return a.offset < b.offset ? -1 : a.offset > b.offset ? 1 : 0;
+                }
+            });
+            for (IndexEntry entry : entries) {
+                ByteBuffer record = source.duplicate();
+                record.limit((int) (entry.offset + entry.size));
+                record.position((int) entry.offset);
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+        // replaced while still open, a failed rename leaves the store as it was
+        if (!compacted.renameTo(mFile)) {
+            compacted.delete();
+            throw new IOException("can't replace " + mFile);
+        }
+        try {
+            close();
+        } finally {
+            openFile();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mMapped = null;
+        mRandomAccessFile.close();
+    }
+
+    private static int maxArraySize(int count) {
+        return MAX_VARINT_SIZE * (count + 1);
+    }
+
+    private static int writeSigned(int value, byte[] out, int position) {
+        return MoveFrameCodec.writeVarint(MoveFrameCodec.zigzag(value), out, position);
+    }
+
+    private static int writeArray(int[] values, int count, byte[] out, int position) {
+        position = MoveFrameCodec.writeVarint(count, out, position);
+        for (int i = 0; i < count; ++i) {
+            position = writeSigned(values[i], out, position);
+        }
+        return position;
+    }
+
+    private static int writePlan(@Nullable MovePlan plan, byte[] out, int position) {
+        if (plan == null) {
+            return MoveFrameCodec.writeVarint(0, out, position);
+        }
+        position = MoveFrameCodec.writeVarint(plan.size() + 1, out, position);
+        int[] moves = plan.array();
+        for (int i = 0; i < plan.size(); ++i) {
+            position = writeSigned(moves[i], out, position);
+        }
+        return position;
+    }
+
+    private static int readUnsigned(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    private static int readSigned(ByteBuffer buffer) throws IOException {
+        return MoveFrameCodec.unzigzag(readUnsigned(buffer));
+    }
+
+    private static int[] readArray(ByteBuffer buffer, int count) throws IOException {
+        checkCount(buffer, count);
+        int[] values = new int[count];
+        readInto(buffer, values, count);
+        return values;
+    }
+
+    private static void checkCount(ByteBuffer buffer, int count) throws IOException {
+        // every value takes at least a byte
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException("bad count: " + count);
+        }
+    }
+
+    private static void readInto(ByteBuffer buffer, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            values[i] = readSigned(buffer);
+        }
+    }
+
+    @Nullable
+    private static MovePlan readPlan(ByteBuffer buffer) throws IOException {
+        int count = readUnsigned(buffer) - 1;
+        if (count < 0) {
+            return null;
+        }
+        checkCount(buffer, count);
+        MovePlan plan = new MovePlan(count);
+        readInto(buffer, plan.array(), count);
+        plan.setSize(count);
+        return plan;
+    }
+}
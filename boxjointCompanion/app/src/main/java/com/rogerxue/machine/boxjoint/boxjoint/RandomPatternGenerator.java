@@ -1,20 +1,154 @@
 package com.rogerxue.machine.boxjoint.boxjoint;
 
+import android.support.annotation.Nullable;
+import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+/**
+ * Random patterns {@link MoveCalculator} takes: (gap, finger) pairs none narrower than the
+ * narrowest width the saw can cut, kerf + tolerance, and if asked adding up to the stock width
+ * exactly, so the pattern covers the board once and ends flush with it.
+ *
+ * A generator from a seed always generates the same patterns, so a pattern can be had again from
+ * {@link #getSeed()}. Not thread safe, {@link #split()} one off for each thread to generate in
+ * bulk, they share no state.
+ */
 public class RandomPatternGenerator {
+    private static final String TAG = "RandomPatternGenerator";
 
-    private static final Random random = new Random();
+    private final long seed;
+    private final SplittableRandom random;
+    private int minWidth = 1;
+    private int maxWidth = 1;
+    private int narrowest = 1;
+    // 0 for any width
+    private int fitWidth;
+    @Nullable
+    private String lastError;
 
-    public static List<Integer> generate(int minWidth, int maxWidth, int pairCount) {
-        List<Integer> result = new ArrayList<>();
-        for (int i = 0; i < pairCount; ++i) {
-            result.add(random.nextInt((maxWidth - minWidth) + 1) + minWidth);
-            result.add(random.nextInt((maxWidth - minWidth) + 1) + minWidth);
+    /**
+     * Seeded at random.
+     */
+    public RandomPatternGenerator() {
+        this(new SplittableRandom().nextLong());
+    }
+
+    public RandomPatternGenerator(long seed) {
+        this.seed = seed;
+        random = new SplittableRandom(seed);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Widths of fingers and gaps to draw from, both inclusive.
+     */
+    public RandomPatternGenerator setWidths(int minWidth, int maxWidth) {
+        this.minWidth = minWidth;
+        this.maxWidth = maxWidth;
+        return this;
+    }
+
+    /**
+     * No finger or gap is narrower, whatever the min width. kerf + tolerance for the patterns
+     * to pass {@link MoveCalculator}.
+     */
+    public RandomPatternGenerator setNarrowest(int narrowest) {
+        this.narrowest = narrowest;
+        return this;
+    }
+
+    /**
+     * Width the pattern adds up to, 0 for any.
+     */
+    public RandomPatternGenerator setFitWidth(int fitWidth) {
+        this.fitWidth = fitWidth;
+        return this;
+    }
+
+    /**
+     * A generator with the same widths, seeded from this one. Generators split in the same
+     * order from the same seed generate the same patterns.
+     */
+    public RandomPatternGenerator split() {
+        return new RandomPatternGenerator(random.nextLong())
+                .setWidths(minWidth, maxWidth)
+                .setNarrowest(narrowest)
+                .setFitWidth(fitWidth);
+    }
+
+    /**
+     * @return null if no pattern of {@code pairCount} pairs is possible, see
+     * {@link #getLastError()}.
+     */
+    @Nullable
+    public int[] generate(int pairCount) {
+        int[] pattern = new int[Math.max(0, 2 * pairCount)];
+        return generateInto(pattern, pairCount) ? pattern : null;
+    }
+
+    /**
+     * Same as {@link #generate}, but writes into the first {@code 2 * pairCount} entries of
+     * {@code pattern}.
+     *
+     * @return false if no pattern is possible, {@code pattern} is left as is.
+     */
+    public boolean generateInto(int[] pattern, int pairCount) {
+        lastError = null;
+        int length = 2 * pairCount;
+        int low = Math.max(1, Math.max(minWidth, narrowest));
+        if (pairCount <= 0) {
+            return fail("Need at least one pair.");
+        }
+        if (length > pattern.length) {
+            return fail("need room for " + length + " widths, got " + pattern.length);
+        }
+        if (low > maxWidth) {
+            return fail("Max width under " + low + ".");
+        }
+        if (fitWidth <= 0) {
+            for (int i = 0; i < length; ++i) {
+                pattern[i] = random.nextInt(low, maxWidth + 1);
+            }
+            return true;
+        }
+        if ((long) length * low > fitWidth || (long) length * maxWidth < fitWidth) {
+            return fail(pairCount + " pairs of " + low + " to " + maxWidth
+                    + " don't add up to " + fitWidth + ".");
         }
-        return result;
+        // draw each width from what leaves the rest a way to add up, then shuffle so the
+        // clamping at the end doesn't always hit the last widths
+        long remaining = fitWidth;
+        for (int i = 0; i < length; ++i) {
+            long left = length - 1 - i;
+            int from = (int) Math.max(low, remaining - left * maxWidth);
+            int to = (int) Math.min(maxWidth, remaining - left * low);
+            pattern[i] = random.nextInt(from, to + 1);
+            remaining -= pattern[i];
+        }
+        for (int i = length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int width = pattern[i];
+            pattern[i] = pattern[j];
+            pattern[j] = width;
+        }
+        return true;
+    }
+
+    private boolean fail(String error) {
+        Log.w(TAG, error);
+        lastError = error;
+        return false;
+    }
+
+    /**
+     * Why the last pattern couldn't be generated, null if it could.
+     */
+    @Nullable
+    public String getLastError() {
+        return lastError;
     }
 }
@@ -0,0 +1,52 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Serial port profile link to a paired Bluetooth device, e.g. the HC-05 of the jig.
+ */
+public class RfcommTransport implements SerialTransport {
+    private static final UUID SERIAL_UUID =
+        UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice mDevice;
+    private BluetoothSocket mSocket;
+
+    public RfcommTransport(BluetoothDevice device) {
+        mDevice = device;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mSocket = mDevice.createRfcommSocketToServiceRecord(SERIAL_UUID);
+        mSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time in the order they came, each on whichever thread of a shared pool
+ * is free, so several users of the pool each get what amounts to a thread of their own.
+ */
+final class SerialExecutor implements Executor {
+    private static final String TAG = "SerialExecutor";
+    private final Executor mPool;
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    // guarded by mTasks
+    private boolean mRunning;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    SerialExecutor(Executor pool) {
+        mPool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (mTasks) {
+            mTasks.add(task);
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        mPool.execute(mDrain);
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // the tasks after it still run
+                Log.e(TAG, "task failed", e);
+            }
+        }
+    }
+}
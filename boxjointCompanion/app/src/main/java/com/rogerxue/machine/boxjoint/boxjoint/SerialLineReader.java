@@ -0,0 +1,90 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a serial byte stream into lines, reading with blocking reads straight into a reusable
+ * ring buffer.
+ *
+ * Lines are handed over in place, nothing is allocated per line. A line that wraps around the
+ * end of the ring is copied into a scratch buffer, also reused. Lines longer than the ring are
+ * dropped.
+ *
+ * Not thread safe, meant to be driven by a single reader thread.
+ */
+public class SerialLineReader {
+    private static final String TAG = "SerialLineReader";
+    private static final byte DELIMITER = '\n';
+
+    public interface LineHandler {
+        /**
+         * Called on the reader thread with a line, without the newline. The bytes are only
+         * valid during the call.
+         */
+        void onLine(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] mRing;
+    private final byte[] mWrapped;
+    // ring index the current line starts at, and its bytes so far
+    private int mLineStart;
+    private int mLength;
+    // the current line outgrew the ring, drop it up to the next newline
+    private boolean mDiscarding;
+
+    public SerialLineReader(int maxLineLength) {
+        mRing = new byte[maxLineLength];
+        mWrapped = new byte[maxLineLength];
+    }
+
+    /**
+     * Blocks until some bytes arrive, then hands every completed line to {@code handler}.
+     *
+     * @return false at the end of the stream.
+     */
+    public boolean readOnce(InputStream in, LineHandler handler) throws IOException {
+        int capacity = mRing.length;
+        if (mLength == capacity) {
+            Log.w(TAG, "line longer than " + capacity + " bytes, dropped");
+            mDiscarding = true;
+            mLineStart = 0;
+            mLength = 0;
+        }
+        int writePosition = (mLineStart + mLength) % capacity;
+        int room = Math.min(capacity - writePosition, capacity - mLength);
+        int read = in.read(mRing, writePosition, room);
+        if (read < 0) {
+            return false;
+        }
+        int scanStart = writePosition;
+        int end = writePosition + read;
+        for (int i = writePosition; i < end; ++i) {
+            if (mRing[i] != DELIMITER) {
+                continue;
+            }
+            if (!mDiscarding) {
+                dispatch(mLength + i - scanStart, handler);
+            }
+            mDiscarding = false;
+            mLineStart = (i + 1) % capacity;
+            mLength = 0;
+            scanStart = i + 1;
+        }
+        mLength += end - scanStart;
+        return true;
+    }
+
+    private void dispatch(int length, LineHandler handler) {
+        int firstPart = mRing.length - mLineStart;
+        if (length <= firstPart) {
+            handler.onLine(mRing, mLineStart, length);
+        } else {
+            System.arraycopy(mRing, mLineStart, mWrapped, 0, firstPart);
+            System.arraycopy(mRing, 0, mWrapped, firstPart, length - firstPart);
+            handler.onLine(mWrapped, 0, length);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads lines from any number of serial links on a small shared pool, instead of a thread
+ * blocked in a read for each link.
+ *
+ * Each link is polled: bytes already {@link InputStream#available() available} are read with a
+ * {@link SerialLineReader} of its own, which doesn't block, and the link is polled again right
+ * away while it keeps talking. A quiet link is polled less and less often, down to once every
+ * {@link #MAX_POLL_INTERVAL_MS}, so idle links cost next to nothing and a busy one doesn't hold
+ * a thread from the others for more than {@link #MAX_READS_PER_POLL} reads. A link is only
+ * polled by one thread at a time, its lines arrive in order.
+ *
+ * Only a stream that fails {@link InputStream#available()} or ends while read ends the poll.
+ * A link whose stream just has nothing available once it's gone, e.g. a pipe the other end
+ * closed, reads as quiet, so users also have to tell the link lost when a write to it fails,
+ * see {@link SerialWriter.FailureListener}.
+ */
+public class SerialPoller {
+    private static final String TAG = "SerialPoller";
+    static final long MAX_POLL_INTERVAL_MS = 20;
+    static final int MAX_READS_PER_POLL = 8;
+    private static final Metrics.Counter POLLS = Metrics.getInstance().counter("serial.polls");
+
+    public interface Listener extends SerialLineReader.LineHandler {
+        /**
+         * Called on the polling thread when the stream ended or failed, not after
+         * {@link Poll#stop()}. No lines follow.
+         *
+         * @param error null at the end of the stream.
+         */
+        void onClosed(@Nullable IOException error);
+    }
+
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * @param executor polls the links, shared by all of them. Polls never block, a thread or
+     * two is plenty for a handful of links.
+     */
+    public SerialPoller(ScheduledExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts polling {@code in} for lines of up to {@code maxLineLength} bytes.
+     */
+    public Poll start(InputStream in, int maxLineLength, Listener listener) {
+        Poll poll = new Poll(in, new SerialLineReader(maxLineLength), listener);
+        poll.schedule(0);
+        return poll;
+    }
+
+    /**
+     * The polling of one link.
+     */
+    public final class Poll implements Runnable {
+        private final InputStream mInputStream;
+        private final SerialLineReader mReader;
+        private final Listener mListener;
+        private volatile boolean mStopped;
+        // only touched by the poll running
+        private long mIntervalMs;
+
+        Poll(InputStream in, SerialLineReader reader, Listener listener) {
+            mInputStream = in;
+            mReader = reader;
+            mListener = listener;
+        }
+
+        /**
+         * Stops polling. A poll in progress is waited for, so no line is handed over once this
+         * returns.
+         */
+        public void stop() {
+            mStopped = true;
+            synchronized (this) {
+                // the poll in progress, if any, is done
+            }
+        }
+
+        public boolean isStopped() {
+            return mStopped;
+        }
+
+        @Override
+        public void run() {
+            POLLS.increment();
+            int reads = 0;
+            boolean ended = false;
+            IOException error = null;
+            synchronized (this) {
+                try {
+                    while (!mStopped && reads < MAX_READS_PER_POLL
+                            && mInputStream.available() > 0) {
+                        if (!mReader.readOnce(mInputStream, mListener)) {
+                            ended = true;
+                            break;
+                        }
+                        ++reads;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                if (mStopped) {
+                    return;
+                }
+                if (ended || error != null) {
+                    mStopped = true;
+                    mListener.onClosed(error);
+                    return;
+                }
+            }
+            // back right away while there's more, slower and slower while it's quiet
+            mIntervalMs = reads > 0
+                    ? 0
+                    : Math.min(MAX_POLL_INTERVAL_MS, Math.max(1, 2 * mIntervalMs));
+            schedule(mIntervalMs);
+        }
+
+        private void schedule(long delayMs) {
+            try {
+                mExecutor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "poller shut down", e);
+                mStopped = true;
+            }
+        }
+    }
+}
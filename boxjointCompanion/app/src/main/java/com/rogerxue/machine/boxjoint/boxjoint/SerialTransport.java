@@ -0,0 +1,35 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream link to the jig.
+ *
+ * {@link RfcommTransport} is the real one, {@link InMemoryTransport}, {@link PipeTransport} and
+ * {@link TcpTransport} let the link be exercised on a plain JVM. Closing the transport unblocks
+ * reads on its input stream.
+ */
+public interface SerialTransport extends Closeable {
+    /**
+     * Connects, blocking until the link is up.
+     */
+    void open() throws IOException;
+
+    /**
+     * Only valid after {@link #open()}.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Only valid after {@link #open()}.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * For logs.
+     */
+    String getName();
+}
@@ -0,0 +1,200 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes to a serial output stream on a dedicated thread.
+ *
+ * Messages wait in a bounded queue, consecutive small messages are coalesced into a single write
+ * of up to {@link #MAX_PACKET} bytes, and every message gets a future that completes with its
+ * length once its bytes are written. A full queue means the link is saturated: {@link #write}
+ * rejects right away, {@link #writeBlocking} waits for room.
+ */
+public class SerialWriter {
+    private static final String TAG = "SerialWriter";
+    static final int QUEUE_CAPACITY = 64;
+    static final int MAX_PACKET = 512;
+    private static final Metrics.Counter BYTES_WRITTEN =
+            Metrics.getInstance().counter("serial.bytes_written");
+    private static final Metrics.Counter REJECTED =
+            Metrics.getInstance().counter("serial.writes_rejected");
+    // write and flush of a coalesced packet, bytes_written / total time is the link throughput
+    private static final Metrics.Timer WRITE_TIME = Metrics.getInstance().timer("serial.write");
+    private static final Metrics.Histogram WRITE_SIZE =
+            Metrics.getInstance().histogram("serial.write_size", "B");
+
+    public interface FailureListener {
+        /**
+         * Called on the writer thread when a write failed, e.g. the link went away. The writer
+         * is stopped by then.
+         */
+        void onWriteFailed(IOException error);
+    }
+
+    private static class Message {
+        final byte[] bytes;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        Message(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final OutputStream mOutputStream;
+    private final BlockingQueue<Message> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // only touched on the writer thread
+    private final byte[] mPacket = new byte[MAX_PACKET];
+    private final List<Message> mBatch = new ArrayList<>();
+    private final Thread mThread;
+    @Nullable
+    private final FailureListener mFailureListener;
+    private volatile boolean mStopped;
+
+    public SerialWriter(OutputStream outputStream, String name) {
+        this(outputStream, name, null);
+    }
+
+    public SerialWriter(OutputStream outputStream, String name,
+            @Nullable FailureListener failureListener) {
+        mOutputStream = outputStream;
+        mFailureListener = failureListener;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, name);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Queues {@code bytes} without blocking. The future fails with a
+     * {@link RejectedExecutionException} if the queue is full, or an {@link IOException} if the
+     * write fails.
+     */
+    public CompletableFuture<Integer> write(byte[] bytes) {
+        Message message = new Message(bytes);
+        if (mStopped) {
+            message.future.completeExceptionally(new IOException("writer stopped"));
+        } else if (!mQueue.offer(message)) {
+            REJECTED.increment();
+            message.future.completeExceptionally(
+                    new RejectedExecutionException("write queue full"));
+        } else {
+            failIfStopped();
+        }
+        return message.future;
+    }
+
+    /**
+     * Queues {@code bytes}, waiting while the queue is full. Not for the UI thread.
+     */
+    public CompletableFuture<Integer> writeBlocking(byte[] bytes) throws InterruptedException {
+        Message message = new Message(bytes);
+        if (mStopped) {
+            message.future.completeExceptionally(new IOException("writer stopped"));
+        } else {
+            mQueue.put(message);
+            failIfStopped();
+        }
+        return message.future;
+    }
+
+    /**
+     * Number of messages waiting to be written.
+     */
+    public int getQueued() {
+        return mQueue.size();
+    }
+
+    /**
+     * Stops the writer thread, messages not written yet fail.
+     */
+    public void stop() {
+        mStopped = true;
+        mThread.interrupt();
+        failQueued(new IOException("writer stopped"));
+    }
+
+    private void writeLoop() {
+        try {
+            while (!mStopped) {
+                Message first = mQueue.take();
+                mBatch.add(first);
+                int length = first.bytes.length;
+                Message next;
+                while ((next = mQueue.peek()) != null
+                        && length + next.bytes.length <= MAX_PACKET) {
+                    mBatch.add(mQueue.poll());
+                    length += next.bytes.length;
+                }
+                writeBatch(length);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            Log.w(TAG, "write failed", e);
+            mStopped = true;
+            for (Message message : mBatch) {
+                message.future.completeExceptionally(e);
+            }
+            failQueued(e);
+            if (mFailureListener != null) {
+                mFailureListener.onWriteFailed(e);
+            }
+        }
+        mBatch.clear();
+    }
+
+    private void writeBatch(int length) throws IOException {
+        long start = WRITE_TIME.start();
+        if (mBatch.size() == 1) {
+            mOutputStream.write(mBatch.get(0).bytes);
+        } else {
+            int position = 0;
+            for (Message message : mBatch) {
+                System.arraycopy(message.bytes, 0, mPacket, position, message.bytes.length);
+                position += message.bytes.length;
+            }
+            mOutputStream.write(mPacket, 0, length);
+        }
+        mOutputStream.flush();
+        WRITE_TIME.stop(start);
+        BYTES_WRITTEN.add(length);
+        WRITE_SIZE.record(length);
+        for (Message message : mBatch) {
+            message.future.complete(message.bytes.length);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Fails what got queued after {@link #stop()} drained the queue, right after a message is
+     * queued: stop() sets mStopped before draining, so either it or this drains the message.
+     */
+    private void failIfStopped() {
+        if (mStopped) {
+            failQueued(new IOException("writer stopped"));
+        }
+    }
+
+    private void failQueued(Exception e) {
+        Message message;
+        while ((message = mQueue.poll()) != null) {
+            message.future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Link over a TCP connection, e.g. to a jig simulator on the loopback interface, or a serial to
+ * TCP bridge.
+ */
+public class TcpTransport implements SerialTransport {
+    @Nullable
+    private final String mHost;
+    private final int mPort;
+    @Nullable
+    private final ServerSocket mServer;
+    private Socket mSocket;
+
+    /**
+     * Connects to {@code host}:{@code port} on {@link #open()}.
+     */
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mServer = null;
+    }
+
+    /**
+     * Accepts the next connection of {@code server} on {@link #open()}, for the simulator end.
+     */
+    public TcpTransport(ServerSocket server) {
+        mHost = null;
+        mPort = server.getLocalPort();
+        mServer = server;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mSocket = mServer != null ? mServer.accept() : new Socket(mHost, mPort);
+        // frames are small and latency bound, like the serial port
+        mSocket.setTcpNoDelay(true);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return (mServer != null ? "tcp-server:" : "tcp:" + mHost + ":") + mPort;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+/**
+ * Decodes the status records of the jig, lines of
+ * {@code S <position> <move> <moves> <flags> <half period>} (see sendTelemetry() of
+ * boxjoint.ino), straight from the bytes {@link SerialLineReader} hands over. The jig sends
+ * a couple with every move, so no String is made for them, and nothing is allocated.
+ */
+public final class TelemetryDecoder {
+    static final byte PREFIX = 'S';
+    private static final int FIELDS = 5;
+    // digits of an unsigned long of the jig
+    private static final int MAX_DIGITS = 10;
+
+    private TelemetryDecoder() {
+    }
+
+    /**
+     * Whether the line is meant as a status record, well formed or not. Cheaper than
+     * {@link #decode}, to tell records from the other lines.
+     */
+    public static boolean isRecord(byte[] buffer, int offset, int length) {
+        return length > 2 && buffer[offset] == PREFIX && buffer[offset + 1] == ' ';
+    }
+
+    /**
+     * Decodes the line into {@code status}, bumping its sequence.
+     *
+     * @return false if the line is not a well formed record, {@code status} is left as is.
+     */
+    public static boolean decode(byte[] buffer, int offset, int length, JigStatus status) {
+        int end = offset + length;
+        while (end > offset && buffer[end - 1] == '\r') {
+            --end;
+        }
+        if (!isRecord(buffer, offset, end - offset)) {
+            return false;
+        }
+        long position = 0;
+        long move = 0;
+        long moveCount = 0;
+        long flags = 0;
+        long halfPeriod = 0;
+        int i = offset + 2;
+        for (int field = 0; field < FIELDS; ++field) {
+            if (field > 0) {
+                if (i == end || buffer[i] != ' ') {
+                    return false;
+                }
+                ++i;
+            }
+            // only the position goes negative, before homing
+            boolean negative = field == 0 && i < end && buffer[i] == '-';
+            if (negative) {
+                ++i;
+            }
+            int start = i;
+            long value = 0;
+            while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+                if (i - start == MAX_DIGITS) {
+                    return false;
+                }
+                value = value * 10 + (buffer[i] - '0');
+                ++i;
+            }
+            if (i == start) {
+                return false;
+            }
+            switch (field) {
+                case 0:
+                    position = negative ? -value : value;
+                    break;
+                case 1:
+                    move = value;
+                    break;
+                case 2:
+                    moveCount = value;
+                    break;
+                case 3:
+                    flags = value;
+                    break;
+                default:
+                    halfPeriod = value;
+            }
+        }
+        if (i != end || flags > Integer.MAX_VALUE || halfPeriod > Integer.MAX_VALUE) {
+            return false;
+        }
+        status.position = position;
+        status.move = move;
+        status.moveCount = moveCount;
+        status.flags = (int) flags;
+        status.halfPeriod = (int) halfPeriod;
+        status.reported = true;
+        status.sequence++;
+        return true;
+    }
+}
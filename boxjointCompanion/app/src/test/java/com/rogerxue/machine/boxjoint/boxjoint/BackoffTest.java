@@ -0,0 +1,25 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void doublesUpToMax() throws Exception {
+        Backoff backoff = new Backoff(250, 30000, new Random(1));
+        long ceiling = 250;
+        for (int i = 0; i < 40; ++i) {
+            long delay = backoff.nextDelayMs();
+            assertTrue(delay + " attempt " + i, delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(ceiling * 2, 30000);
+        }
+        assertEquals(40, backoff.getAttempts());
+
+        backoff.reset();
+        assertTrue(backoff.nextDelayMs() <= 250);
+    }
+}
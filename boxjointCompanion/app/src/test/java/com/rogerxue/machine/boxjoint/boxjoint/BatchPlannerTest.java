@@ -0,0 +1,65 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class BatchPlannerTest {
+    private static final CutSettings SETTINGS = new CutSettings(100, 2, 0.5);
+
+    @Test
+    public void reportsErrorsPerJob() throws Exception {
+        CutJob drawer = new CutJob("drawer", SETTINGS, 600, new int[] {250, 250}, false);
+        List<CutJob> jobs = Arrays.asList(
+                drawer,
+                drawer.mate("drawer front"),
+                new CutJob("too thin", SETTINGS, 600, new int[] {250, 90}, false),
+                new CutJob("odd", SETTINGS, 600, new int[] {250}, false));
+
+        CutList cutList = new BatchPlanner().plan(jobs);
+        assertEquals(2, cutList.getErrors());
+        assertEquals(20, cutList.getTotalMoves());
+        List<CutList.Entry> entries = cutList.getEntries();
+        assertEquals("50,50,50,2,348,50,50,50,2,348", entries.get(0).plan.toString());
+        assertEquals("248,50,50,50,2,348,50,50,50,2", entries.get(1).plan.toString());
+        assertNull(entries.get(2).plan);
+        assertEquals("finger too thin: 90", entries.get(2).error);
+        assertEquals("Pattern is not even number.", entries.get(3).error);
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        Random random = new Random(14);
+        CutSettings[] settings = {
+                SETTINGS,
+                new CutSettings(125, 3, 0.3, MoveCalculator.GapClearing.EVEN),
+        };
+        List<CutJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            int[] pattern = new int[2 + 2 * random.nextInt(4)];
+            for (int j = 0; j < pattern.length; ++j) {
+                pattern[j] = 110 + random.nextInt(400);
+            }
+            jobs.add(new CutJob("job " + i, settings[i % 2], 1000 + random.nextInt(20000),
+                    pattern, random.nextBoolean()));
+        }
+
+        CutList parallel = new BatchPlanner(new ForkJoinPool(4)).plan(jobs);
+        CutList sequential = BatchPlanner.planSequentially(jobs);
+        assertEquals(sequential.getTotalMoves(), parallel.getTotalMoves());
+        assertEquals(sequential.getErrors(), parallel.getErrors());
+        for (int i = 0; i < jobs.size(); ++i) {
+            CutList.Entry expected = sequential.getEntries().get(i);
+            CutList.Entry actual = parallel.getEntries().get(i);
+            assertSame(jobs.get(i), actual.job);
+            assertEquals(String.valueOf(expected.plan), String.valueOf(actual.plan));
+            assertEquals(expected.error, actual.error);
+        }
+    }
+}
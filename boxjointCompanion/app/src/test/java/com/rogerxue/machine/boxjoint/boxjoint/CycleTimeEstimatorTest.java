@@ -0,0 +1,40 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CycleTimeEstimatorTest {
+
+    @Test
+    public void stepsAndDwell() throws Exception {
+        CycleTimeEstimator estimator = new CycleTimeEstimator(100);
+        // 50 thou is 1400 steps and dwells, 348 thou is 9744 steps
+        CycleTimeEstimator.Estimate estimate =
+                estimator.estimate(new int[] {50, 348, 50}, 0, 3);
+        assertEquals(3, estimate.moves);
+        assertEquals((1400 + 9744 + 1400) * 200L, estimate.traverseMicros);
+        assertEquals(2 * CycleTimeEstimator.SMALL_MOVE_DWELL_MICROS, estimate.dwellMicros);
+        assertEquals(estimate.traverseMicros + estimate.dwellMicros, estimate.getTotalMicros());
+    }
+
+    @Test
+    public void profileTimesMoves() throws Exception {
+        MotionProfile profile = MotionProfile.trapezoid(100, 25, 40000);
+        CycleTimeEstimator estimator = new CycleTimeEstimator(profile);
+        CycleTimeEstimator.Estimate estimate =
+                estimator.estimate(new int[] {50, 348, 50}, 0, 3);
+        assertEquals(2 * profile.getMoveMicros(1400) + profile.getMoveMicros(9744),
+                estimate.traverseMicros);
+        assertTrue(estimate.traverseMicros < (1400 + 9744 + 1400) * 200L);
+        assertEquals(100, estimator.getStepDelay());
+    }
+
+    @Test
+    public void potMapsLikeArduino() throws Exception {
+        assertEquals(45, CycleTimeEstimator.stepDelayForPot(0));
+        assertEquals(222, CycleTimeEstimator.stepDelayForPot(512));
+        assertEquals(400, CycleTimeEstimator.stepDelayForPot(1023));
+        assertEquals(400, new CycleTimeEstimator(1000).getStepDelay());
+    }
+}
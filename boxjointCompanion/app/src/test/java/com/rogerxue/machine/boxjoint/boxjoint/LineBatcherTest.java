@@ -0,0 +1,51 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class LineBatcherTest {
+    private final List<Runnable> mPosted = new ArrayList<>();
+    private final List<List<String>> mBatches = new ArrayList<>();
+    private final LineBatcher mBatcher = new LineBatcher(
+            new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mPosted.add(command);
+                }
+            },
+            new LineBatcher.Sink() {
+                @Override
+                public void onLines(List<String> lines) {
+                    mBatches.add(new ArrayList<>(lines));
+                }
+            });
+
+    @Test
+    public void postsOnceForLinesReceivedBeforeDispatch() throws Exception {
+        mBatcher.add("ACK 1");
+        mBatcher.add("CREDIT 32");
+        mBatcher.add("3 downloaded");
+        assertEquals(1, mPosted.size());
+
+        mPosted.remove(0).run();
+        assertEquals(1, mBatches.size());
+        assertEquals(Arrays.asList("ACK 1", "CREDIT 32", "3 downloaded"), mBatches.get(0));
+    }
+
+    @Test
+    public void schedulesAgainAfterDrain() throws Exception {
+        mBatcher.add("a");
+        mPosted.remove(0).run();
+        mBatcher.add("b");
+        mBatcher.add("c");
+        assertEquals(1, mPosted.size());
+        mPosted.remove(0).run();
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b", "c")), mBatches);
+    }
+}
@@ -0,0 +1,56 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void histogram() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("size", "B");
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+        // 50 falls in the 32 - 63 bucket
+        assertEquals(63, histogram.getPercentile(50));
+        // capped by the max rather than the 64 - 127 bucket
+        assertEquals(100, histogram.getPercentile(99));
+        assertSame(histogram, metrics.histogram("size", "B"));
+    }
+
+    @Test
+    public void dumpAndReset() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("lines").add(3);
+        Metrics.Timer timer = metrics.timer("calculate");
+        timer.record(1500);
+        timer.record(2500000);
+        String dump = metrics.dump();
+        assertTrue(dump, dump.contains("\nlines: 3 ("));
+        assertTrue(dump, dump.contains("\ncalculate: n=2 min=1.5us mean=1.25ms"));
+        assertTrue(dump, dump.contains(" max=2.50ms\n"));
+
+        metrics.reset();
+        assertEquals(0, metrics.counter("lines").get());
+        assertEquals(0, timer.getCount());
+        assertTrue(metrics.dump().contains("\ncalculate: n=0\n"));
+    }
+
+    @Test
+    public void nameHasOneType() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.histogram("upload", "B");
+        try {
+            metrics.timer("upload");
+            fail("upload is a histogram");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
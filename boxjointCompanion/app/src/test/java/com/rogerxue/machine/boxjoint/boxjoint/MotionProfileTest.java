@@ -0,0 +1,59 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MotionProfileTest {
+
+    @Test
+    public void rampsFromStartToCruise() throws Exception {
+        MotionProfile profile = MotionProfile.trapezoid(222, 25, 40000);
+        assertEquals(MotionProfile.MAX_ENTRIES, profile.size());
+        assertEquals(222, profile.getStartDelay());
+        assertEquals(25, profile.getCruiseDelay());
+        // (20000^2 - 2252^2) / (2 * 40000) steps to go from 222us to 25us
+        assertEquals(4937, profile.getRampSteps());
+        for (int i = 1; i < profile.size(); ++i) {
+            assertTrue(profile.getDelay(i) <= profile.getDelay(i - 1));
+        }
+        // a long move is mostly cruise
+        assertEquals(25, profile.getDelay(10000, 20000));
+        assertEquals(222, profile.getDelay(19999, 20000));
+    }
+
+    @Test
+    public void moveTimeAddsUpSteps() throws Exception {
+        MotionProfile profile = MotionProfile.trapezoid(222, 25, 40000);
+        for (long steps : new long[] {0, 1, 2, 3, 101, 4937 * 2, 4937 * 2 + 1, 32760}) {
+            long micros = 0;
+            for (long i = 0; i < steps; ++i) {
+                micros += 2 * profile.getDelay(i, steps);
+            }
+            assertEquals(micros, profile.getMoveMicros(steps));
+        }
+        assertTrue(profile.getMoveMicros(32760) * 5 < 2L * 222 * 32760);
+    }
+
+    @Test
+    public void constantWithoutRamp() throws Exception {
+        MotionProfile profile = MotionProfile.trapezoid(45, 100, 40000);
+        assertEquals(MotionProfile.constant(45), profile);
+        assertEquals(1, profile.size());
+        assertEquals(2 * 45 * 1000L, profile.getMoveMicros(1000));
+    }
+
+    @Test
+    public void rejectsEntriesTheJigCantRun() throws Exception {
+        try {
+            new MotionProfile(new int[] {0, 0}, new int[] {100, 50});
+            fail("ramp entry without steps");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new MotionProfile(new int[] {0}, new int[] {70000});
+            fail("delay over unsigned int");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
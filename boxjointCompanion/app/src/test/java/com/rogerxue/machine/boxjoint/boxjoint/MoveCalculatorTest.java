@@ -0,0 +1,163 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MoveCalculatorTest {
+    private final MoveCalculator mCalculator =
+            new MoveCalculator().setKerf(100).setTolerance(2).setSmoothness(0.5).setStockWidth(600);
+
+    @Test
+    public void gapFirst() throws Exception {
+        assertEquals(
+                Arrays.asList(50, 50, 50, 2, 348, 50, 50, 50, 2, 348),
+                mCalculator.calculate(Arrays.asList(250, 250), false));
+    }
+
+    @Test
+    public void fingerFirst() throws Exception {
+        assertEquals(
+                Arrays.asList(248, 50, 50, 50, 2, 348, 50, 50, 50, 2),
+                mCalculator.calculate(Arrays.asList(250, 250), true));
+    }
+
+    @Test
+    public void invalidPattern() throws Exception {
+        assertNull(mCalculator.calculate(Arrays.asList(250, 250, 250), false));
+        assertNull(mCalculator.calculate(Arrays.asList(250, 90), false));
+        assertNull(mCalculator.calculate(new ArrayList<Integer>(), false));
+    }
+
+    @Test
+    public void evenGapClearing() throws Exception {
+        mCalculator.calculate(Arrays.asList(250, 250), false);
+        mCalculator.setGapClearing(MoveCalculator.GapClearing.EVEN);
+        // same number of passes as 50, 50, 50, 2 without the sliver
+        assertEquals(
+                Arrays.asList(38, 38, 38, 38, 348, 38, 38, 38, 38, 348),
+                mCalculator.calculate(Arrays.asList(250, 250), false));
+        assertEquals(
+                Arrays.asList(248, 36, 35, 35, 200, 38),
+                mCalculator.setStockWidth(300).calculate(Arrays.asList(250, 204, 102, 250), true)
+                        .subList(0, 6));
+    }
+
+    @Test
+    public void calculateIntoReusesPlan() throws Exception {
+        MovePlan plan = new MovePlan(64);
+        int[] array = plan.array();
+        assertTrue(mCalculator.calculateInto(new int[] {250, 250}, 2, false, plan));
+        assertEquals(10, plan.size());
+        assertSame(array, plan.array());
+
+        int[] moves = new int[10];
+        assertEquals(10, mCalculator.calculateInto(new int[] {250, 250}, 2, true, moves));
+        assertArrayEquals(new int[] {248, 50, 50, 50, 2, 348, 50, 50, 50, 2}, moves);
+        assertEquals(-1, mCalculator.calculateInto(new int[] {250, 250}, 2, true, new int[9]));
+    }
+
+    @Test
+    public void settingsChangeInvalidatesCachedGaps() throws Exception {
+        mCalculator.calculate(Arrays.asList(250, 250), false);
+        mCalculator.setKerf(110);
+        assertEquals(
+                Arrays.asList(55, 55, 32, 358, 55, 55, 32, 358),
+                mCalculator.calculate(Arrays.asList(250, 250), false));
+        mCalculator.setSmoothness(0.9);
+        assertEquals(
+                Arrays.asList(99, 43, 358, 99, 43, 358),
+                mCalculator.calculate(Arrays.asList(250, 250), false));
+    }
+
+    @Test
+    public void calculateBothMatchesSeparatePlans() throws Exception {
+        Random random = new Random(7);
+        MovePlan gapFirst = new MovePlan();
+        MovePlan fingerFirst = new MovePlan();
+        for (int run = 0; run < 200; ++run) {
+            int[] pattern = new int[2 * (1 + random.nextInt(4))];
+            for (int i = 0; i < pattern.length; ++i) {
+                pattern[i] = 102 + random.nextInt(400);
+            }
+            mCalculator.setStockWidth(random.nextInt(6000)).setGapClearing(random.nextBoolean()
+                    ? MoveCalculator.GapClearing.EVEN
+                    : MoveCalculator.GapClearing.FIXED_STEP);
+            assertTrue(mCalculator.calculateBothInto(
+                    pattern, pattern.length, gapFirst, fingerFirst));
+            assertArrayEquals(
+                    mCalculator.calculate(pattern, pattern.length, false).toArray(),
+                    gapFirst.toArray());
+            assertArrayEquals(
+                    mCalculator.calculate(pattern, pattern.length, true).toArray(),
+                    fingerFirst.toArray());
+        }
+        assertFalse(mCalculator.calculateBothInto(new int[] {250, 90}, 2, gapFirst, fingerFirst));
+        assertEquals("finger too thin: 90", mCalculator.getLastError());
+        assertTrue(gapFirst.isEmpty() && fingerFirst.isEmpty());
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        Random random = new Random(42);
+        for (int run = 0; run < 500; ++run) {
+            int kerf = 60 + random.nextInt(80);
+            int tolerance = random.nextInt(5);
+            double smoothness = 0.1 + random.nextInt(9) / 10.0;
+            int stockWidth = random.nextInt(6000);
+            int[] pattern = new int[2 * (1 + random.nextInt(4))];
+            for (int i = 0; i < pattern.length; ++i) {
+                pattern[i] = kerf + tolerance + random.nextInt(400);
+            }
+            mCalculator.setKerf(kerf).setTolerance(tolerance)
+                    .setSmoothness(smoothness).setStockWidth(stockWidth);
+            for (boolean fingerFirst : new boolean[] {false, true}) {
+                MovePlan plan = mCalculator.calculate(pattern, pattern.length, fingerFirst);
+                assertArrayEquals(
+                        reference(pattern, kerf, tolerance, smoothness, stockWidth, fingerFirst),
+                        plan.toArray());
+            }
+        }
+    }
+
+    /**
+     * The original list based loop, move by move.
+     */
+    private static int[] reference(int[] pattern, int kerf, int tolerance, double smoothness,
+            int stockWidth, boolean fingerFirst) {
+        List<Integer> moves = new ArrayList<>();
+        boolean first = true;
+        for (int total = 0; total < stockWidth; ) {
+            for (int i = 0; i < pattern.length; ++i) {
+                boolean isFinger = (i % 2 == 0) == fingerFirst;
+                if (first && fingerFirst && i == 0) {
+                    moves.add(pattern[i] - tolerance);
+                    continue;
+                }
+                total += pattern[i];
+                if (isFinger) {
+                    moves.add(kerf + pattern[i] - tolerance);
+                } else {
+                    int cutWidth = kerf;
+                    int step = (int) (kerf * smoothness);
+                    while (cutWidth + step < pattern[i] + tolerance) {
+                        moves.add(step);
+                        cutWidth += step;
+                    }
+                    moves.add(pattern[i] + tolerance - cutWidth);
+                }
+            }
+            first = false;
+        }
+        int[] result = new int[moves.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = moves.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MoveFrameCodecTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        int[] moves = {248, 50, 50, 2, 348, -7, 0, 100000};
+        byte[] frame = MoveFrameCodec.encodeMoves(7, moves, 0, moves.length);
+        int[] decoded = new int[moves.length];
+        assertEquals(moves.length, MoveFrameCodec.decodeMoves(frame, 0, frame.length, decoded));
+        assertArrayEquals(moves, decoded);
+        assertEquals(7, frame[1]);
+    }
+
+    @Test
+    public void smallerThanAscii() throws Exception {
+        int[] moves = {50, 50, 50, 2, 348, 50, 50, 50, 2, 348};
+        byte[] frame = MoveFrameCodec.encodeMoves(0, moves, 0, moves.length);
+        String ascii = "50,50,50,2,348,50,50,50,2,348,\n";
+        assertTrue(frame.length < ascii.length() * 2 / 3);
+    }
+
+    @Test
+    public void detectsCorruption() throws Exception {
+        int[] moves = {248, 50, 50, 2, 348};
+        byte[] frame = MoveFrameCodec.encodeMoves(1, moves, 0, moves.length);
+        int[] decoded = new int[moves.length];
+        for (int i = 1; i < frame.length; ++i) {
+            frame[i] ^= 0x10;
+            assertEquals(MoveFrameCodec.INVALID,
+                    MoveFrameCodec.decodeMoves(frame, 0, frame.length, decoded));
+            frame[i] ^= 0x10;
+        }
+        assertEquals(MoveFrameCodec.INVALID,
+                MoveFrameCodec.decodeMoves(frame, 0, frame.length - 1, decoded));
+        assertEquals(MoveFrameCodec.INVALID,
+                MoveFrameCodec.decodeMoves(frame, 0, frame.length, new int[4]));
+    }
+
+    @Test
+    public void profileFrame() throws Exception {
+        MotionProfile profile = MotionProfile.trapezoid(222, 25, 40000);
+        byte[] encoded = MoveFrameCodec.encodeProfile(3, profile);
+        MoveFrameCodec.Frame frame = new MoveFrameCodec.Frame(0);
+        assertTrue(MoveFrameCodec.decode(encoded, 0, encoded.length, frame));
+        assertEquals(MoveFrameCodec.TYPE_PROFILE, frame.type);
+        assertEquals(profile.size(), frame.count);
+        for (int i = 0; i < frame.count; ++i) {
+            assertEquals(profile.getSteps(i), frame.rampSteps[i]);
+            assertEquals(profile.getDelay(i), frame.rampDelays[i]);
+        }
+
+        byte[] cleared = MoveFrameCodec.encodeProfile(4, null);
+        assertTrue(MoveFrameCodec.decode(cleared, 0, cleared.length, frame));
+        assertEquals(0, frame.count);
+    }
+
+    @Test
+    public void crcCheckValue() throws Exception {
+        assertEquals(0x29B1, MoveFrameCodec.crc16("123456789".getBytes("US-ASCII"), 0, 9));
+    }
+
+    @Test
+    public void streamFrames() throws Exception {
+        MoveFrameCodec.Frame frame = new MoveFrameCodec.Frame(4);
+        byte[] begin = MoveFrameCodec.encodeStreamBegin(9, 100000);
+        assertTrue(MoveFrameCodec.decode(begin, 0, begin.length, frame));
+        assertEquals(MoveFrameCodec.TYPE_STREAM_BEGIN, frame.type);
+        assertEquals(9, frame.seq);
+        assertEquals(100000, frame.total);
+
+        int[] moves = {1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] window = MoveFrameCodec.encodeStreamMoves(200, moves, 4, 4);
+        assertTrue(MoveFrameCodec.decode(window, 0, window.length, frame));
+        assertEquals(MoveFrameCodec.TYPE_STREAM_MOVES, frame.type);
+        assertEquals(200, frame.seq);
+        assertEquals(4, frame.start);
+        assertEquals(4, frame.count);
+        assertArrayEquals(new int[] {5, 6, 7, 8}, frame.moves);
+    }
+
+    @Test
+    public void parseFlowControl() throws Exception {
+        assertEquals(232, MoveFrameCodec.parseCredit("CREDIT 232\r"));
+        assertEquals(-1, MoveFrameCodec.parseCredit("CREDIT "));
+        assertEquals(-1, MoveFrameCodec.parseCredit("CREDIT 99999999999"));
+        assertEquals(64, MoveFrameCodec.parseResume("RESUME 64"));
+        assertTrue(MoveFrameCodec.isRewind("REWIND\r"));
+        assertFalse(MoveFrameCodec.isRewind("REWINDS"));
+        assertEquals(201, MoveFrameCodec.parseMove("MOVE 201\r"));
+        assertEquals(-1, MoveFrameCodec.parseMove("MOVES 2"));
+    }
+
+    @Test
+    public void parseReply() throws Exception {
+        MoveFrameCodec.Reply reply = MoveFrameCodec.parseReply("ACK 12");
+        assertTrue(reply.ack);
+        assertEquals(12, reply.seq);
+        reply = MoveFrameCodec.parseReply("NAK 3");
+        assertFalse(reply.ack);
+        assertEquals(3, reply.seq);
+        assertNull(MoveFrameCodec.parseReply("ACK"));
+        assertNull(MoveFrameCodec.parseReply("12 downloaded"));
+    }
+}
@@ -0,0 +1,31 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MovePlanAdapterTest {
+
+    private static String format(int index, int move) {
+        char[] buffer = new char[24];
+        return new String(buffer, 0, MovePlanAdapter.formatRow(buffer, index, move));
+    }
+
+    @Test
+    public void formatRow() throws Exception {
+        assertEquals("0: 0", format(0, 0));
+        assertEquals("12: -250", format(12, -250));
+        assertEquals("199: 1000", format(199, 1000));
+        assertEquals("2147483647: -2147483648", format(Integer.MAX_VALUE, Integer.MIN_VALUE));
+    }
+
+    // the adapter itself needs a RecyclerView to notify, only the clamping is tested here
+    @Test
+    public void currentMoveStaysInPlan() throws Exception {
+        assertEquals(0, MovePlanAdapter.currentMove(0, 2));
+        assertEquals(1, MovePlanAdapter.currentMove(1, 2));
+        assertEquals(-1, MovePlanAdapter.currentMove(2, 2));
+        assertEquals(-1, MovePlanAdapter.currentMove(-1, 2));
+        assertEquals(-1, MovePlanAdapter.currentMove(0, 0));
+    }
+}
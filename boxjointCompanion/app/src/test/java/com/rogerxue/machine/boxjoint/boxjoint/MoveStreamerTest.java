@@ -0,0 +1,183 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MoveStreamerTest {
+    private static final int JIG_CAPACITY = 200;
+
+    private final List<MoveFrameCodec.Frame> mFrames = new ArrayList<>();
+    private final MoveStreamer.FrameSink mSink = new MoveStreamer.FrameSink() {
+        @Override
+        public boolean write(byte[] frame, int sentMoves) {
+            MoveFrameCodec.Frame decoded = new MoveFrameCodec.Frame(MoveStreamer.WINDOW_MOVES);
+            assertTrue(MoveFrameCodec.decode(frame, 0, frame.length, decoded));
+            mFrames.add(decoded);
+            return true;
+        }
+    };
+
+    @Test
+    public void streamsWithinCredit() throws Exception {
+        MovePlan plan = plan(1000);
+        MoveStreamer streamer = new MoveStreamer(mSink, plan, 0);
+        assertTrue(streamer.start());
+        assertEquals(MoveFrameCodec.TYPE_STREAM_BEGIN, mFrames.get(0).type);
+        assertEquals(1000, mFrames.get(0).total);
+
+        streamer.onCredit(JIG_CAPACITY);
+        assertEquals(JIG_CAPACITY, streamer.getSent());
+        // the jig executed 64 moves
+        streamer.onCredit(64 + JIG_CAPACITY);
+        assertEquals(64 + JIG_CAPACITY, streamer.getSent());
+        streamer.onCredit(5000);
+        assertTrue(streamer.isComplete());
+
+        int next = 0;
+        for (MoveFrameCodec.Frame frame : mFrames.subList(1, mFrames.size())) {
+            assertEquals(MoveFrameCodec.TYPE_STREAM_MOVES, frame.type);
+            assertEquals(next, frame.start);
+            for (int i = 0; i < frame.count; ++i) {
+                assertEquals(plan.get(next++), frame.moves[i]);
+            }
+        }
+        assertEquals(1000, next);
+    }
+
+    @Test
+    public void resendsNakedWindow() throws Exception {
+        MoveStreamer streamer = new MoveStreamer(mSink, plan(1000), 0);
+        streamer.start();
+        streamer.onCredit(JIG_CAPACITY);
+        MoveFrameCodec.Frame second = mFrames.get(2);
+        MoveFrameCodec.Frame third = mFrames.get(3);
+        int sent = mFrames.size();
+
+        streamer.onReply(MoveFrameCodec.parseReply("NAK " + second.seq));
+        assertEquals(second.start, mFrames.get(sent).start);
+        assertEquals(JIG_CAPACITY, streamer.getSent());
+        // later windows were NAKed as out of order, already resent
+        sent = mFrames.size();
+        streamer.onReply(MoveFrameCodec.parseReply("NAK " + third.seq));
+        assertEquals(sent, mFrames.size());
+    }
+
+    @Test
+    public void resumeAndRewind() throws Exception {
+        MoveStreamer streamer = new MoveStreamer(mSink, plan(1000), 0);
+        streamer.start();
+        streamer.onCredit(JIG_CAPACITY);
+        int sent = mFrames.size();
+        streamer.onResume(JIG_CAPACITY - MoveStreamer.WINDOW_MOVES);
+        assertEquals(JIG_CAPACITY - MoveStreamer.WINDOW_MOVES, mFrames.get(sent).start);
+
+        streamer.onRewind();
+        assertEquals(0, streamer.getSent());
+        sent = mFrames.size();
+        streamer.onCredit(JIG_CAPACITY);
+        assertEquals(0, mFrames.get(sent).start);
+        assertEquals(JIG_CAPACITY, streamer.getSent());
+    }
+
+    @Test
+    public void reconnectResendsUnacked() throws Exception {
+        MoveStreamer streamer = new MoveStreamer(mSink, plan(100), 0);
+        streamer.start();
+        // the link dropped before the jig saw the plan
+        streamer.onReconnect();
+        assertEquals(MoveFrameCodec.TYPE_STREAM_BEGIN, mFrames.get(1).type);
+        streamer.onReply(MoveFrameCodec.parseReply("ACK " + mFrames.get(1).seq));
+
+        streamer.onCredit(100);
+        MoveFrameCodec.Frame first = mFrames.get(2);
+        streamer.onReply(MoveFrameCodec.parseReply("ACK " + first.seq));
+        assertTrue(streamer.isComplete());
+        assertFalse(streamer.isDelivered());
+        // ACKs of the later windows got lost with the link
+        int sent = mFrames.size();
+        streamer.onReconnect();
+        assertEquals(first.start + first.count, mFrames.get(sent).start);
+        assertEquals(100, streamer.getSent());
+        for (MoveFrameCodec.Frame frame : mFrames.subList(sent, mFrames.size())) {
+            streamer.onReply(MoveFrameCodec.parseReply("ACK " + frame.seq));
+        }
+        assertTrue(streamer.isDelivered());
+        sent = mFrames.size();
+        streamer.onReconnect();
+        assertEquals(sent, mFrames.size());
+    }
+
+    @Test
+    public void drawsSeqsFromSharedCounter() throws Exception {
+        MoveFrameCodec.SeqCounter seqs = new MoveFrameCodec.SeqCounter(250);
+        MoveStreamer streamer = new MoveStreamer(mSink, plan(1000), seqs);
+        streamer.start();
+        streamer.onCredit(JIG_CAPACITY);
+        // a frame sent after the windows, e.g. the next upload, takes the seq after them
+        int next = seqs.next();
+        for (MoveFrameCodec.Frame frame : mFrames) {
+            assertTrue(frame.seq != next);
+        }
+        assertEquals((250 + mFrames.size()) & 0xFF, next);
+        assertEquals((next + 1) & 0xFF, streamer.getNextSeq());
+    }
+
+    @Test
+    public void resendsNakedWindowAfterSeqWrapped() throws Exception {
+        MoveStreamer streamer = new MoveStreamer(mSink, plan(300 * MoveStreamer.WINDOW_MOVES), 0);
+        streamer.start();
+        streamer.onReply(MoveFrameCodec.parseReply("ACK " + mFrames.get(0).seq));
+        streamer.onCredit(300 * MoveStreamer.WINDOW_MOVES);
+        // the 256th window takes the seq of the stream begin again
+        MoveFrameCodec.Frame wrapped = mFrames.get(256);
+        assertEquals(mFrames.get(0).seq, wrapped.seq);
+        int sent = mFrames.size();
+
+        streamer.onReply(MoveFrameCodec.parseReply("NAK " + wrapped.seq));
+        MoveFrameCodec.Frame resent = mFrames.get(sent);
+        assertEquals(MoveFrameCodec.TYPE_STREAM_MOVES, resent.type);
+        assertEquals(wrapped.start, resent.start);
+    }
+
+    @Test
+    public void deliversAndResumesLongPlan() throws Exception {
+        int total = 300 * MoveStreamer.WINDOW_MOVES;
+        MoveStreamer streamer = new MoveStreamer(mSink, plan(total), 0);
+        streamer.start();
+        streamer.onReply(MoveFrameCodec.parseReply("ACK " + mFrames.get(0).seq));
+        streamer.onCredit(JIG_CAPACITY);
+        // ACKs past the window that took the seq of the stream begin, then the link dropped
+        for (int i = 1; i < 262; ++i) {
+            ackAndExecute(streamer, mFrames.get(i));
+        }
+        assertFalse(streamer.isDelivered());
+        int sent = mFrames.size();
+        streamer.onReconnect();
+        assertEquals(mFrames.get(262).start, mFrames.get(sent).start);
+
+        for (int i = sent; i < mFrames.size(); ++i) {
+            ackAndExecute(streamer, mFrames.get(i));
+        }
+        assertEquals(total, streamer.getSent());
+        assertTrue(streamer.isDelivered());
+    }
+
+    // the jig ACKs the window and, executing it, makes room for another
+    private static void ackAndExecute(MoveStreamer streamer, MoveFrameCodec.Frame frame) {
+        streamer.onReply(MoveFrameCodec.parseReply("ACK " + frame.seq));
+        streamer.onCredit(frame.start + frame.count + JIG_CAPACITY);
+    }
+
+    private static MovePlan plan(int size) {
+        MovePlan plan = new MovePlan(size);
+        for (int i = 0; i < size; ++i) {
+            plan.array()[i] = i % 400;
+        }
+        plan.setSize(size);
+        return plan;
+    }
+}
@@ -0,0 +1,71 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PatternParserTest {
+
+    @Test
+    public void parse() throws Exception {
+        assertEquals(Arrays.asList(250, -3, 102), PatternParser.parse("250,-3,+102,"));
+        assertNull(PatternParser.parse(""));
+        assertEquals(Collections.<Integer>emptyList(), PatternParser.parse(",,"));
+        assertNull(PatternParser.parse("250,,250"));
+        assertNull(PatternParser.parse("250, 250"));
+        assertNull(PatternParser.parse("2147483648"));
+        assertEquals(Arrays.asList(Integer.MIN_VALUE), PatternParser.parse("-2147483648"));
+    }
+
+    @Test
+    public void reportsOffsetOfBadToken() throws Exception {
+        IncrementalPatternParser parser = new IncrementalPatternParser();
+        parser.reset("250,250,12x,250");
+        assertFalse(parser.isValid());
+        assertEquals(8, parser.getErrorOffset());
+
+        parser.reset("250,250,");
+        assertTrue(parser.isValid());
+        assertArrayEquals(new int[] {250, 250}, parser.toArray());
+
+        parser.reset("");
+        assertFalse(parser.isValid());
+        assertEquals(0, parser.getErrorOffset());
+        parser.reset(",");
+        assertTrue(parser.isValid());
+        assertEquals(0, parser.size());
+    }
+
+    @Test
+    public void incrementalMatchesFullParse() throws Exception {
+        Random random = new Random(15);
+        String alphabet = "0123456789,,,x-";
+        IncrementalPatternParser parser = new IncrementalPatternParser();
+        StringBuilder text = new StringBuilder();
+        for (int edit = 0; edit < 5000; ++edit) {
+            int start = random.nextInt(text.length() + 1);
+            int before = random.nextInt(Math.min(4, text.length() - start) + 1);
+            StringBuilder inserted = new StringBuilder();
+            for (int i = random.nextInt(edit % 7 == 0 ? 20 : 3); i > 0; --i) {
+                inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            text.replace(start, start + before, inserted.toString());
+            parser.onTextChanged(text, start, before, inserted.length());
+
+            IncrementalPatternParser full = new IncrementalPatternParser();
+            full.reset(text);
+            assertEquals(text.toString(), full.isValid(), parser.isValid());
+            assertEquals(text.toString(), full.getErrorOffset(), parser.getErrorOffset());
+            if (parser.isValid()) {
+                assertArrayEquals(text.toString(), full.toArray(), parser.toArray());
+                assertEquals(PatternParser.parse(text.toString()).size(), parser.size());
+            } else {
+                assertNull(PatternParser.parse(text.toString()));
+            }
+        }
+    }
+}
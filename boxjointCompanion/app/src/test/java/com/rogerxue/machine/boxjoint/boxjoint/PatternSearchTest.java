@@ -0,0 +1,79 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class PatternSearchTest {
+
+    private static PatternSearch search(ForkJoinPool pool) {
+        return new PatternSearch(pool)
+                .setSettings(new CutSettings(100, 2, 0.5), 3000)
+                .setWidths(50, 500)
+                .setPairs(2, 6);
+    }
+
+    @Test
+    public void sameBestOnAnyPool() throws Exception {
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool quad = new ForkJoinPool(4);
+        List<PatternSearch.Candidate> a = search(single).search(1000, 5, 11);
+        List<PatternSearch.Candidate> b = search(quad).search(1000, 5, 11);
+        single.shutdown();
+        quad.shutdown();
+        assertEquals(5, a.size());
+        for (int i = 0; i < a.size(); ++i) {
+            assertArrayEquals(a.get(i).getPattern(), b.get(i).getPattern());
+            assertEquals(a.get(i).score, b.get(i).score);
+        }
+    }
+
+    @Test
+    public void leavesCalculateMetricsAlone() throws Exception {
+        Metrics.Timer calculate = Metrics.getInstance().timer("calculate");
+        Metrics.Counter errors = Metrics.getInstance().counter("calculate.errors");
+        long calculated = calculate.getCount();
+        long failed = errors.get();
+        assertEquals(5, search(ForkJoinPool.commonPool()).search(1000, 5, 3).size());
+        assertEquals(calculated, calculate.getCount());
+        assertEquals(failed, errors.get());
+    }
+
+    @Test
+    public void bestFirstAndValid() throws Exception {
+        List<PatternSearch.Candidate> found = search(ForkJoinPool.commonPool())
+                .setObjective(PatternSearch.Objective.TRAVERSE)
+                .search(500, 10, 5);
+        MoveCalculator calculator = new MoveCalculator().setStockWidth(3000);
+        for (int i = 0; i < found.size(); ++i) {
+            PatternSearch.Candidate candidate = found.get(i);
+            int[] pattern = candidate.getPattern();
+            assertEquals(candidate.traverse, candidate.score);
+            assertTrue(calculator.countMoves(pattern, pattern.length, false) > 0);
+            if (i > 0) {
+                assertTrue(found.get(i - 1).score <= candidate.score);
+            }
+        }
+    }
+
+    @Test
+    public void exactFitOnly() throws Exception {
+        List<PatternSearch.Candidate> found = search(ForkJoinPool.commonPool())
+                .setExactFit(true)
+                .search(300, 3, 1);
+        assertEquals(3, found.size());
+        for (PatternSearch.Candidate candidate : found) {
+            int width = 0;
+            for (int w : candidate.getPattern()) {
+                width += w;
+            }
+            assertEquals(3000, width);
+        }
+        // 2 pairs of at most 500 can't cover 3000
+        assertTrue(search(ForkJoinPool.commonPool()).setPairs(1, 1).setExactFit(true)
+                .search(100, 3, 1).isEmpty());
+    }
+}
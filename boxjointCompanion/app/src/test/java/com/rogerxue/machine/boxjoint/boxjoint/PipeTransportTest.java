@@ -0,0 +1,35 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class PipeTransportTest {
+
+    @Test
+    public void endsReadWhatTheOtherWrites() throws Exception {
+        PipeTransport[] ends = PipeTransport.pair();
+        ends[0].open();
+        ends[1].open();
+        ends[0].getOutputStream().write("1,2,3\n".getBytes());
+        ends[1].getOutputStream().write("ACK 1\n".getBytes());
+
+        byte[] buffer = new byte[16];
+        int length = ends[1].getInputStream().read(buffer);
+        assertEquals("1,2,3\n", new String(buffer, 0, length));
+        length = ends[0].getInputStream().read(buffer);
+        assertEquals("ACK 1\n", new String(buffer, 0, length));
+    }
+
+    @Test
+    public void closeEndsTheOtherStream() throws Exception {
+        PipeTransport[] ends = PipeTransport.pair();
+        ends[0].getOutputStream().write(7);
+        ends[0].close();
+        InputStream in = ends[1].getInputStream();
+        assertEquals(7, in.read());
+        assertEquals(-1, in.read());
+    }
+}
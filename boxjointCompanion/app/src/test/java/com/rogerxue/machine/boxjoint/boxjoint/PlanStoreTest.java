@@ -0,0 +1,143 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PlanStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final CutSettings SETTINGS =
+            new CutSettings(100, 2, 0.5, MoveCalculator.GapClearing.EVEN);
+
+    private static PlanStore.Record record(String name, long savedAt, int[] pattern) {
+        CutJob job = new CutJob(name, SETTINGS, 3000, pattern, false);
+        MoveCalculator calculator = new MoveCalculator();
+        return new PlanStore.Record(name, savedAt, SETTINGS, 3000, pattern,
+                job.calculate(calculator), job.mate(name).calculate(calculator));
+    }
+
+    private static void assertRecord(PlanStore.Record expected, PlanStore.Record actual) {
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.savedAt, actual.savedAt);
+        assertEquals(expected.settings.toString(), actual.settings.toString());
+        assertEquals(expected.stockWidth, actual.stockWidth);
+        assertArrayEquals(expected.getPattern(), actual.getPattern());
+        assertEquals(String.valueOf(expected.gapFirst), String.valueOf(actual.gapFirst));
+        assertEquals(String.valueOf(expected.fingerFirst), String.valueOf(actual.fingerFirst));
+    }
+
+    @Test
+    public void savesAndReopens() throws Exception {
+        File file = new File(folder.getRoot(), "plans");
+        PlanStore.Record drawer = record("drawer", 1000, new int[] {250, 500, 250});
+        PlanStore.Record lid = record("lid", 2000, new int[] {-1});
+        PlanStore store = PlanStore.open(file);
+        store.save(drawer);
+        store.save(lid);
+        assertRecord(drawer, store.load("drawer"));
+        store.close();
+
+        store = PlanStore.open(file);
+        assertEquals(Arrays.asList("lid", "drawer"), store.getNames());
+        assertEquals("lid", store.getLatestName());
+        assertRecord(drawer, store.load("drawer"));
+        // the pattern is invalid, neither plan was calculated
+        assertNull(store.load("lid").gapFirst);
+        assertNull(store.load("box"));
+        store.close();
+    }
+
+    @Test
+    public void replacesAndDeletes() throws Exception {
+        File file = new File(folder.getRoot(), "plans");
+        PlanStore store = PlanStore.open(file);
+        store.save(record("drawer", 1000, new int[] {250, 500, 250}));
+        PlanStore.Record replaced = record("drawer", 3000, new int[] {500, 500});
+        store.save(replaced);
+        store.save(record("lid", 2000, new int[] {250}));
+        assertTrue(store.delete("lid"));
+        assertFalse(store.delete("lid"));
+        store.close();
+
+        store = PlanStore.open(file);
+        assertEquals(Arrays.asList("drawer"), store.getNames());
+        assertRecord(replaced, store.load("drawer"));
+        long size = store.getFileSize();
+        store.compact();
+        assertTrue(store.getFileSize() < size);
+        assertRecord(replaced, store.load("drawer"));
+        store.close();
+    }
+
+    @Test
+    public void dropsInterruptedSave() throws Exception {
+        File file = new File(folder.getRoot(), "plans");
+        PlanStore store = PlanStore.open(file);
+        PlanStore.Record drawer = record("drawer", 1000, new int[] {250, 500, 250});
+        store.save(drawer);
+        long size = store.getFileSize();
+        store.save(record("lid", 2000, new int[] {250}));
+        store.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        store = PlanStore.open(file);
+        assertEquals(Arrays.asList("drawer"), store.getNames());
+        assertEquals(size, store.getFileSize());
+        assertRecord(drawer, store.load("drawer"));
+        store.close();
+    }
+
+    @Test
+    public void savesWhenCompactionFails() throws Exception {
+        File file = new File(folder.getRoot(), "plans");
+        // in the way of the compacted file
+        assertTrue(new File(folder.getRoot(), "plans.tmp").mkdir());
+        PlanStore store = PlanStore.open(file);
+        PlanStore.Record drawer = null;
+        // well past the size compaction starts at
+        for (int i = 0; store.getFileSize() < 256 * 1024; ++i) {
+            drawer = record("drawer", i, new int[] {250, 500, 250});
+            store.save(drawer);
+        }
+        assertRecord(drawer, store.load("drawer"));
+        store.close();
+
+        store = PlanStore.open(file);
+        assertRecord(drawer, store.load("drawer"));
+        store.close();
+    }
+
+    @Test
+    public void dropsTornRecord() throws Exception {
+        File file = new File(folder.getRoot(), "plans");
+        PlanStore store = PlanStore.open(file);
+        PlanStore.Record drawer = record("drawer", 1000, new int[] {250, 500, 250});
+        store.save(drawer);
+        long size = store.getFileSize();
+        store.save(record("lid", 2000, new int[] {250}));
+        store.close();
+        // the length made it to disk, part of the body didn't
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 6);
+        raf.write(0x55);
+        raf.close();
+
+        store = PlanStore.open(file);
+        assertEquals(Arrays.asList("drawer"), store.getNames());
+        assertNull(store.load("lid"));
+        assertEquals(size, store.getFileSize());
+        assertRecord(drawer, store.load("drawer"));
+        store.close();
+    }
+}
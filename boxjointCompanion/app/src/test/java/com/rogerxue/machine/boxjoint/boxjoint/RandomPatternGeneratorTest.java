@@ -0,0 +1,52 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RandomPatternGeneratorTest {
+
+    @Test
+    public void sameSeedSamePatterns() throws Exception {
+        RandomPatternGenerator a = new RandomPatternGenerator(7).setWidths(100, 500);
+        RandomPatternGenerator b = new RandomPatternGenerator(7).setWidths(100, 500);
+        assertArrayEquals(a.generate(8), b.generate(8));
+        assertArrayEquals(a.split().generate(8), b.split().generate(8));
+        assertEquals(7, a.getSeed());
+    }
+
+    @Test
+    public void patternsPassCalculator() throws Exception {
+        MoveCalculator calculator = new MoveCalculator().setStockWidth(3000);
+        RandomPatternGenerator generator = new RandomPatternGenerator(1)
+                .setWidths(50, 300)
+                .setNarrowest(calculator.getKerf() + calculator.getTolerance());
+        for (int i = 0; i < 1000; ++i) {
+            int[] pattern = generator.generate(4);
+            for (int width : pattern) {
+                assertTrue(width >= 102 && width <= 300);
+            }
+            assertTrue(calculator.countMoves(pattern, pattern.length, false) > 0);
+        }
+    }
+
+    @Test
+    public void fitsStockExactly() throws Exception {
+        RandomPatternGenerator generator = new RandomPatternGenerator(3)
+                .setWidths(102, 500)
+                .setFitWidth(3000);
+        int[] pattern = new int[8];
+        for (int i = 0; i < 1000; ++i) {
+            assertTrue(generator.generateInto(pattern, 4));
+            int width = 0;
+            for (int w : pattern) {
+                assertTrue(w >= 102 && w <= 500);
+                width += w;
+            }
+            assertEquals(3000, width);
+        }
+        // 8 widths of at most 500 are at most 4000
+        assertNull(generator.setFitWidth(4001).generate(4));
+        assertNotNull(generator.getLastError());
+    }
+}
@@ -0,0 +1,54 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SerialLineReaderTest {
+    private final List<String> mLines = new ArrayList<>();
+    private final SerialLineReader.LineHandler mHandler = new SerialLineReader.LineHandler() {
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            mLines.add(new String(buffer, offset, length));
+        }
+    };
+
+    @Test
+    public void splitsLinesAcrossReadsAndWraps() throws Exception {
+        SerialLineReader reader = new SerialLineReader(16);
+        InputStream in = chunked("ACK 1\nCREDIT 232\n12 downloaded\nREWIND\n", 3);
+        while (reader.readOnce(in, mHandler)) {
+            // keep reading
+        }
+        assertEquals(Arrays.asList("ACK 1", "CREDIT 232", "12 downloaded", "REWIND"), mLines);
+    }
+
+    @Test
+    public void dropsOverlongLines() throws Exception {
+        SerialLineReader reader = new SerialLineReader(8);
+        InputStream in = chunked("short\nthis line is far too long\nok\n", 5);
+        while (reader.readOnce(in, mHandler)) {
+            // keep reading
+        }
+        assertEquals(Arrays.asList("short", "ok"), mLines);
+    }
+
+    /**
+     * Returns at most {@code chunk} bytes per read, like a serial link would.
+     */
+    private static InputStream chunked(String data, final int chunk) {
+        return new ByteArrayInputStream(data.getBytes()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+}
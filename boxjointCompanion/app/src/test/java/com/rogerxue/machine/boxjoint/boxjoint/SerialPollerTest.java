@@ -0,0 +1,138 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SerialPollerTest {
+    // one thread for all the links
+    private final ScheduledExecutorService mExecutor = Executors.newScheduledThreadPool(1);
+    private final SerialPoller mPoller = new SerialPoller(mExecutor);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void readsSeveralLinksOnOneThread() throws Exception {
+        int jigs = 4;
+        List<PipeTransport[]> links = new ArrayList<>();
+        List<Lines> lines = new ArrayList<>();
+        for (int i = 0; i < jigs; ++i) {
+            PipeTransport[] link = PipeTransport.pair();
+            links.add(link);
+            Lines received = new Lines();
+            lines.add(received);
+            mPoller.start(link[0].getInputStream(), 64, received);
+        }
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < jigs; ++i) {
+                OutputStream out = links.get(i)[1].getOutputStream();
+                out.write(("ACK " + i + "." + round + "\n").getBytes());
+                out.flush();
+            }
+        }
+        for (int i = 0; i < jigs; ++i) {
+            Lines received = lines.get(i);
+            for (int round = 0; round < 3; ++round) {
+                assertEquals("ACK " + i + "." + round, received.take());
+            }
+        }
+    }
+
+    @Test
+    public void noLinesAfterStop() throws Exception {
+        PipeTransport[] link = PipeTransport.pair();
+        Lines received = new Lines();
+        SerialPoller.Poll poll = mPoller.start(link[0].getInputStream(), 64, received);
+        OutputStream out = link[1].getOutputStream();
+        out.write("CREDIT 10\n".getBytes());
+        out.flush();
+        assertEquals("CREDIT 10", received.take());
+
+        poll.stop();
+        out.write("CREDIT 20\n".getBytes());
+        out.flush();
+        assertNull(received.lines.poll(3 * SerialPoller.MAX_POLL_INTERVAL_MS,
+                TimeUnit.MILLISECONDS));
+        assertTrue(poll.isStopped());
+    }
+
+    @Test
+    public void failedReadEndsThePoll() throws Exception {
+        Lines received = new Lines();
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("link lost");
+            }
+
+            @Override
+            public int available() throws IOException {
+                throw new IOException("link lost");
+            }
+        };
+        SerialPoller.Poll poll = mPoller.start(broken, 64, received);
+        assertEquals("closed: link lost", received.take());
+        assertTrue(poll.isStopped());
+    }
+
+    @Test
+    public void quietLinkReadAlongBusyOne() throws Exception {
+        PipeTransport[] busy = PipeTransport.pair(4096);
+        PipeTransport[] quiet = PipeTransport.pair();
+        Lines busyLines = new Lines();
+        Lines quietLines = new Lines();
+        mPoller.start(busy[0].getInputStream(), 64, busyLines);
+        mPoller.start(quiet[0].getInputStream(), 64, quietLines);
+        byte[] chatter = new byte[4000];
+        Arrays.fill(chatter, (byte) 'x');
+        for (int i = 63; i < chatter.length; i += 64) {
+            chatter[i] = '\n';
+        }
+        busy[1].getOutputStream().write(chatter);
+        quiet[1].getOutputStream().write("ACK 7\n".getBytes());
+        assertEquals("ACK 7", quietLines.take());
+        List<String> busyReceived = new ArrayList<>();
+        for (int i = 0; i < chatter.length / 64; ++i) {
+            busyReceived.add(busyLines.take());
+        }
+        assertEquals(Collections.nCopies(chatter.length / 64, new String(chatter, 0, 63)),
+                busyReceived);
+    }
+
+    private static class Lines implements SerialPoller.Listener {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            lines.add(new String(buffer, offset, length));
+        }
+
+        @Override
+        public void onClosed(IOException error) {
+            lines.add("closed: " + (error != null ? error.getMessage() : "end"));
+        }
+
+        String take() throws InterruptedException {
+            String line = lines.poll(2, TimeUnit.SECONDS);
+            assertNotNull(line);
+            return line;
+        }
+    }
+}
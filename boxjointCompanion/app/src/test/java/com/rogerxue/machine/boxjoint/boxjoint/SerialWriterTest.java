@@ -0,0 +1,148 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SerialWriterTest {
+
+    /**
+     * Holds the first write until released, so later messages pile up in the queue.
+     */
+    private static class GatedStream extends OutputStream {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final CountDownLatch gate = new CountDownLatch(1);
+        int writes;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            ++writes;
+            written.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void coalescesQueuedMessages() throws Exception {
+        GatedStream out = new GatedStream();
+        SerialWriter writer = new SerialWriter(out, "test-writer");
+        writer.start();
+        CompletableFuture<Integer> first = writer.write("1,".getBytes());
+        // let the writer thread take the first message and block on the gate
+        Thread.sleep(50);
+        writer.write("2,".getBytes());
+        CompletableFuture<Integer> last = writer.write("33\n".getBytes());
+        out.gate.countDown();
+
+        assertEquals(2, (int) first.get(1, TimeUnit.SECONDS));
+        assertEquals(3, (int) last.get(1, TimeUnit.SECONDS));
+        assertEquals("1,2,33\n", out.written.toString());
+        assertEquals(2, out.writes);
+        writer.stop();
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        GatedStream out = new GatedStream();
+        SerialWriter writer = new SerialWriter(out, "test-writer");
+        // not started, nothing drains the queue
+        for (int i = 0; i < SerialWriter.QUEUE_CAPACITY; ++i) {
+            assertFalse(writer.write(new byte[] {1}).isCompletedExceptionally());
+        }
+        CompletableFuture<Integer> rejected = writer.write(new byte[] {1});
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(SerialWriter.QUEUE_CAPACITY, writer.getQueued());
+
+        writer.stop();
+        assertEquals(0, writer.getQueued());
+        try {
+            writer.write(new byte[] {1}).get();
+            fail("writer is stopped");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void writesRacingStopComplete() throws Exception {
+        for (int round = 0; round < 20; ++round) {
+            // not started, only stop() and the writes themselves complete the futures
+            final SerialWriter writer = new SerialWriter(new GatedStream(), "test-writer");
+            final List<CompletableFuture<Integer>> futures =
+                    Collections.synchronizedList(new ArrayList<CompletableFuture<Integer>>());
+            final CountDownLatch writing = new CountDownLatch(4);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writing.countDown();
+                        for (int j = 0; j < 500; ++j) {
+                            futures.add(writer.write(new byte[] {1}));
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            writing.await();
+            writer.stop();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (CompletableFuture<Integer> future : futures) {
+                assertTrue(future.isCompletedExceptionally());
+            }
+        }
+    }
+
+    @Test
+    public void farEndClosingReportsTheLinkLost() throws Exception {
+        PipeTransport[] link = PipeTransport.pair();
+        final BlockingQueue<IOException> failures = new LinkedBlockingQueue<>();
+        SerialWriter writer = new SerialWriter(link[0].getOutputStream(), "test-writer",
+                new SerialWriter.FailureListener() {
+                    @Override
+                    public void onWriteFailed(IOException error) {
+                        failures.add(error);
+                    }
+                });
+        writer.start();
+        assertEquals(6, (int) writer.write("ACK 1\n".getBytes()).get(1, TimeUnit.SECONDS));
+
+        // the jig is gone, nothing tells until the next write
+        link[1].close();
+        CompletableFuture<Integer> lost = writer.write("ACK 2\n".getBytes());
+        assertNotNull(failures.poll(1, TimeUnit.SECONDS));
+        try {
+            lost.get(1, TimeUnit.SECONDS);
+            fail("write to a closed link succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(writer.write("ACK 3\n".getBytes()).isCompletedExceptionally());
+        writer.stop();
+    }
+}
@@ -0,0 +1,95 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TelemetryDecoderTest {
+    private final JigStatus mStatus = new JigStatus();
+
+    @Test
+    public void decodesRecord() {
+        assertTrue(decode("S 5600 3 180 5 25\r"));
+        assertEquals(5600, mStatus.getPositionSteps());
+        assertEquals(5600 / CycleTimeEstimator.STEP_PER_THOU, mStatus.getPositionThou());
+        assertEquals(3, mStatus.getMove());
+        assertEquals(180, mStatus.getMoveCount());
+        assertTrue(mStatus.isHomed());
+        assertFalse(mStatus.isTripped());
+        assertTrue(mStatus.isMoving());
+        assertEquals(25, mStatus.getHalfPeriodMicros());
+        assertEquals(1, mStatus.getSequence());
+
+        assertTrue(decode("S -28 0 0 2 45"));
+        assertEquals(-28, mStatus.getPositionSteps());
+        assertFalse(mStatus.isHomed());
+        assertTrue(mStatus.isTripped());
+        assertFalse(mStatus.isMoving());
+        assertEquals(2, mStatus.getSequence());
+    }
+
+    @Test
+    public void leavesStatusOnBadRecords() {
+        assertTrue(decode("S 10 1 2 1 25"));
+        String[] bad = {
+                "ACK 3",
+                "S",
+                "S ",
+                "S 10 1 2 1",
+                "S 10 1 2 1 25 7",
+                "S 10  1 2 1 25",
+                "S 10 -1 2 1 25",
+                "S 10 1 2 1 2x",
+                "S 12345678901 1 2 1 25",
+                "MOVE 4",
+        };
+        for (String line : bad) {
+            assertFalse(line, decode(line));
+        }
+        assertEquals(10, mStatus.getPositionSteps());
+        assertEquals(1, mStatus.getSequence());
+    }
+
+    @Test
+    public void decodesInPlace() {
+        byte[] buffer = "xxS 1 2 3 0 45\ryy".getBytes();
+        assertTrue(TelemetryDecoder.isRecord(buffer, 2, 13));
+        assertTrue(TelemetryDecoder.decode(buffer, 2, 13, mStatus));
+        assertEquals(3, mStatus.getMoveCount());
+        assertEquals(45, mStatus.getHalfPeriodMicros());
+        assertFalse(TelemetryDecoder.isRecord(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void copiesStatus() {
+        assertTrue(decode("S 280 7 9 1 25"));
+        JigStatus copy = new JigStatus();
+        copy.set(mStatus);
+        assertTrue(decode("S 560 8 9 1 25"));
+        assertEquals(280, copy.getPositionSteps());
+        assertEquals(7, copy.getMove());
+        assertEquals(1, copy.getSequence());
+        assertEquals("POS:10 move 7/9 at 25us", copy.toString());
+    }
+
+    @Test
+    public void clearForgetsRecord() {
+        assertFalse(mStatus.isReported());
+        assertTrue(decode("S 280 7 9 5 25"));
+        assertTrue(mStatus.isReported());
+        mStatus.clear();
+        assertFalse(mStatus.isReported());
+        assertFalse(mStatus.isMoving());
+        assertEquals(0, mStatus.getPositionSteps());
+        assertEquals(2, mStatus.getSequence());
+        // a record after the clear is new, even to one who saw the record before it
+        assertTrue(decode("S 280 7 9 5 25"));
+        assertTrue(mStatus.isReported());
+        assertEquals(3, mStatus.getSequence());
+    }
+
+    private boolean decode(String line) {
+        byte[] bytes = line.getBytes();
+        return TelemetryDecoder.decode(bytes, 0, bytes.length, mStatus);
+    }
+}
@@ -0,0 +1,54 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planning a project of joints on the common fork join pool against a single thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchPlannerBenchmark {
+    private static final int TOLERANCE = 2;
+
+    @Param({"16", "256"})
+    public int jobs;
+
+    private final BatchPlanner mPlanner = new BatchPlanner();
+    private List<CutJob> mJobs;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(jobs);
+        CutSettings settings = new CutSettings(100, TOLERANCE, 0.5);
+        mJobs = new ArrayList<>();
+        for (int i = 0; i < jobs; ++i) {
+            int[] pattern = MoveCalculatorBenchmark.randomPattern(
+                    random, 100 + TOLERANCE, 500, 1 + random.nextInt(8));
+            mJobs.add(new CutJob("board " + i, settings, 3000 + random.nextInt(45000), pattern,
+                    random.nextBoolean()));
+        }
+    }
+
+    @Benchmark
+    public CutList parallel() {
+        return mPlanner.plan(mJobs);
+    }
+
+    @Benchmark
+    public CutList sequential() {
+        return BatchPlanner.planSequentially(mJobs);
+    }
+}
@@ -0,0 +1,193 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a plan to {@link JigSimulator} and waits until all of its moves ran, over a pipe or
+ * TCP loopback, as ASCII, a single frame or a streamed plan.
+ *
+ * The simulator doesn't sleep, so the score is the host side cost of the protocol stack. The
+ * modelled jig time per plan, serial and motion, is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JigLinkBenchmark {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int KERF = 100;
+    private static final int TOLERANCE = 2;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Param({"pipe", "tcp"})
+    public String transport;
+
+    // ascii and frame fit in the jig, stream is about twice what it holds
+    @Param({"ascii", "frame", "stream"})
+    public String upload;
+
+    private JigSimulator mSimulator;
+    private SerialTransport mHost;
+    private SerialWriter mWriter;
+    private Thread mSimulatorThread;
+    private Thread mReaderThread;
+    private ServerSocket mServer;
+    private MovePlan mPlan;
+    private int mSeq;
+    // guarded by this
+    private MoveStreamer mStreamer;
+    private long mPlans;
+    private long mStartSerialMicros;
+    private long mStartMotionMicros;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MoveCalculator calculator = new MoveCalculator()
+                .setKerf(KERF).setTolerance(TOLERANCE).setSmoothness(0.5)
+                .setStockWidth("stream".equals(upload) ? 40000 : 3000);
+        int[] pattern = MoveCalculatorBenchmark.randomPattern(
+                new Random(4), KERF + TOLERANCE, KERF + 400, 4);
+        mPlan = calculator.calculate(pattern, pattern.length, false);
+        if (!"stream".equals(upload) && mPlan.size() > JigSimulator.MAX_MOVES) {
+            throw new IllegalStateException("plan too long for " + upload + ": " + mPlan.size());
+        }
+
+        SerialTransport jig;
+        if ("pipe".equals(transport)) {
+            PipeTransport[] ends = PipeTransport.pair(4096);
+            mHost = ends[0];
+            jig = ends[1];
+        } else {
+            mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            mHost = new TcpTransport("127.0.0.1", mServer.getLocalPort());
+            jig = new TcpTransport(mServer);
+        }
+        mSimulator = new JigSimulator(jig);
+        mSimulator.setAutoExecute(true);
+        mSimulator.home();
+        mSimulatorThread = new Thread(mSimulator, "jig-simulator");
+        mSimulatorThread.start();
+
+        mHost.open();
+        mWriter = new SerialWriter(mHost.getOutputStream(), "host-writer");
+        mWriter.start();
+        final InputStream in = mHost.getInputStream();
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies(in);
+            }
+        }, "host-reader");
+        mReaderThread.start();
+        mStartSerialMicros = mSimulator.getSerialMicros();
+        mStartMotionMicros = mSimulator.getMotionMicros();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (mPlans > 0) {
+            System.out.println(String.format(
+                    "%s/%s: %d moves, modelled jig time per plan %.1f s serial, %.1f s motion",
+                    transport, upload, mPlan.size(),
+                    (mSimulator.getSerialMicros() - mStartSerialMicros) / 1e6 / mPlans,
+                    (mSimulator.getMotionMicros() - mStartMotionMicros) / 1e6 / mPlans));
+        }
+        // serial.write and serial.bytes_written of the host side
+        System.out.print(Metrics.getInstance().dump());
+        Metrics.getInstance().reset();
+        mWriter.stop();
+        mHost.close();
+        mSimulatorThread.join(TIMEOUT_MS);
+        mReaderThread.join(TIMEOUT_MS);
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Benchmark
+    public long uploadAndExecute() throws Exception {
+        long target = mSimulator.getExecutedMoves() + mPlan.size();
+        if ("ascii".equals(upload)) {
+            mWriter.write((mPlan.toString() + "\n").getBytes(ASCII));
+        } else if ("frame".equals(upload)) {
+            mSeq = (mSeq + 1) & 0xFF;
+            mWriter.write(MoveFrameCodec.encodeMoves(mSeq, mPlan.array(), 0, mPlan.size()));
+        } else {
+            synchronized (this) {
+                mStreamer = new MoveStreamer(new MoveStreamer.FrameSink() {
+                    @Override
+                    public boolean write(byte[] frame, int sentMoves) {
+                        return !mWriter.write(frame).isCompletedExceptionally();
+                    }
+                }, mPlan, (mSeq + 1) & 0xFF);
+                mStreamer.start();
+            }
+        }
+        if (!mSimulator.awaitExecutedMoves(target, TIMEOUT_MS)) {
+            throw new IllegalStateException("jig stalled: " + mSimulator.getStatus());
+        }
+        synchronized (this) {
+            if (mStreamer != null) {
+                mSeq = mStreamer.getNextSeq();
+                mStreamer = null;
+            }
+        }
+        ++mPlans;
+        return mSimulator.getPosition();
+    }
+
+    private void readReplies(InputStream in) {
+        SerialLineReader reader = new SerialLineReader(256);
+        final JigStatus status = new JigStatus();
+        SerialLineReader.LineHandler handler = new SerialLineReader.LineHandler() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                // like the app, status records don't become Strings
+                if (!TelemetryDecoder.decode(buffer, offset, length, status)) {
+                    onReply(new String(buffer, offset, length, ASCII));
+                }
+            }
+        };
+        try {
+            while (reader.readOnce(in, handler)) {
+                // blocks until the simulator replies
+            }
+        } catch (IOException e) {
+            // closed by tearDown
+        }
+    }
+
+    private synchronized void onReply(String line) {
+        if (mStreamer == null) {
+            return;
+        }
+        int credit = MoveFrameCodec.parseCredit(line);
+        int resume = MoveFrameCodec.parseResume(line);
+        MoveFrameCodec.Reply reply = MoveFrameCodec.parseReply(line);
+        if (credit >= 0) {
+            mStreamer.onCredit(credit);
+        } else if (resume >= 0) {
+            mStreamer.onResume(resume);
+        } else if (MoveFrameCodec.isRewind(line)) {
+            mStreamer.onRewind();
+        } else if (reply != null) {
+            mStreamer.onReply(reply);
+        }
+    }
+}
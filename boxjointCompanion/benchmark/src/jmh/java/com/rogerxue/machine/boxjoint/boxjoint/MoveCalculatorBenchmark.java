@@ -0,0 +1,94 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Move calculation across stock widths, pattern lengths, kerf and smoothness.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MoveCalculatorBenchmark {
+    private static final int TOLERANCE = 2;
+
+    @Param({"3000", "12000", "48000"})
+    public int stockWidth;
+
+    @Param({"1", "4", "16"})
+    public int pairs;
+
+    @Param({"90", "125"})
+    public int kerf;
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double smoothness;
+
+    private final MoveCalculator mCalculator = new MoveCalculator();
+    private final MovePlan mPlan = new MovePlan();
+    private final MovePlan mFingerFirstPlan = new MovePlan();
+    private int[] mPattern;
+    private List<Integer> mPatternList;
+
+    @Setup
+    public void setUp() {
+        mCalculator.setKerf(kerf).setTolerance(TOLERANCE)
+                .setSmoothness(smoothness).setStockWidth(stockWidth);
+        mPattern = randomPattern(new Random(pairs), kerf + TOLERANCE, kerf + 400, pairs);
+        mPatternList = new ArrayList<>();
+        for (int width : mPattern) {
+            mPatternList.add(width);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> calculateList() {
+        return mCalculator.calculate(mPatternList, false);
+    }
+
+    @Benchmark
+    public MovePlan calculatePlan() {
+        return mCalculator.calculate(mPattern, mPattern.length, true);
+    }
+
+    @Benchmark
+    public MovePlan calculateIntoPlan() {
+        mCalculator.calculateInto(mPattern, mPattern.length, false, mPlan);
+        return mPlan;
+    }
+
+    /**
+     * Both plans of a joint one after the other, what an edit of the pattern used to cost.
+     */
+    @Benchmark
+    public MovePlan calculateBothSeparately() {
+        mCalculator.calculateInto(mPattern, mPattern.length, false, mPlan);
+        mCalculator.calculateInto(mPattern, mPattern.length, true, mFingerFirstPlan);
+        return mFingerFirstPlan;
+    }
+
+    @Benchmark
+    public MovePlan calculateBoth() {
+        mCalculator.calculateBothInto(mPattern, mPattern.length, mPlan, mFingerFirstPlan);
+        return mFingerFirstPlan;
+    }
+
+    static int[] randomPattern(Random random, int minWidth, int maxWidth, int pairs) {
+        int[] pattern = new int[pairs * 2];
+        for (int i = 0; i < pattern.length; ++i) {
+            pattern[i] = minWidth + random.nextInt(maxWidth - minWidth + 1);
+        }
+        return pattern;
+    }
+}
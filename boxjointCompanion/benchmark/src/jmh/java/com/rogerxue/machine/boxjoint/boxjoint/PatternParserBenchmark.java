@@ -0,0 +1,70 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the typed in finger pattern, valid and with a bad token at the end, and re-parsing
+ * after a one digit edit in the middle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PatternParserBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int pairs;
+
+    private String mPattern;
+    private String mInvalidPattern;
+    private final IncrementalPatternParser mIncremental = new IncrementalPatternParser();
+    private StringBuilder mEdited;
+    private int mEditAt;
+
+    @Setup
+    public void setUp() {
+        int[] pattern = MoveCalculatorBenchmark.randomPattern(new Random(pairs), 102, 500, pairs);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pattern.length; ++i) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(pattern[i]);
+        }
+        mPattern = sb.toString();
+        mInvalidPattern = mPattern + ",12x";
+        mEdited = new StringBuilder(mPattern);
+        mIncremental.reset(mEdited);
+        // first digit of a number in the middle, of the first one with a single pair
+        mEditAt = mPattern.indexOf(',', mPattern.length() / 2) + 1;
+    }
+
+    @Benchmark
+    public List<Integer> parse() {
+        return PatternParser.parse(mPattern);
+    }
+
+    @Benchmark
+    public List<Integer> parseInvalid() {
+        return PatternParser.parse(mInvalidPattern);
+    }
+
+    @Benchmark
+    public int reparseEdit() {
+        // 1 to 4 and back, the number stays valid
+        char digit = mEdited.charAt(mEditAt);
+        mEdited.setCharAt(mEditAt, digit == '1' ? '4' : '1');
+        mIncremental.onTextChanged(mEdited, mEditAt, 1, 1);
+        return mIncremental.size();
+    }
+}
@@ -0,0 +1,61 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A search of the size the app runs, on one core and on all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PatternSearchBenchmark {
+    private static final int CANDIDATES = 4096;
+
+    @Param({"PASSES", "TIME"})
+    public PatternSearch.Objective objective;
+
+    private ForkJoinPool single;
+    private PatternSearch sequential;
+    private PatternSearch parallel;
+
+    @Setup
+    public void setUp() {
+        single = new ForkJoinPool(1);
+        sequential = setUp(new PatternSearch(single));
+        parallel = setUp(new PatternSearch());
+    }
+
+    private PatternSearch setUp(PatternSearch search) {
+        return search.setSettings(new CutSettings(100, 2, 0.5), 12000)
+                .setWidths(102, 500)
+                .setPairs(4, 24)
+                .setObjective(objective);
+    }
+
+    @TearDown
+    public void tearDown() {
+        single.shutdown();
+    }
+
+    @Benchmark
+    public List<PatternSearch.Candidate> searchSingleCore() {
+        return sequential.search(CANDIDATES, 10, 42);
+    }
+
+    @Benchmark
+    public List<PatternSearch.Candidate> searchAllCores() {
+        return parallel.search(CANDIDATES, 10, 42);
+    }
+}
@@ -0,0 +1,80 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reopening a saved job against calculating its plans again, and opening a store of
+ * {@code jobs} saved jobs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PlanStoreBenchmark {
+    private static final int TOLERANCE = 2;
+
+    @Param({"16", "256"})
+    public int jobs;
+
+    private File mFile;
+    private PlanStore mStore;
+    private CutJob mJob;
+    private String mName;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(jobs);
+        CutSettings settings = new CutSettings(100, TOLERANCE, 0.5);
+        MoveCalculator calculator = new MoveCalculator();
+        mFile = File.createTempFile("plans", ".bin");
+        mStore = PlanStore.open(mFile);
+        for (int i = 0; i < jobs; ++i) {
+            int[] pattern = MoveCalculatorBenchmark.randomPattern(
+                    random, 100 + TOLERANCE, 500, 1 + random.nextInt(16));
+            CutJob job = new CutJob("board " + i, settings, 48000, pattern, false);
+            mStore.save(new PlanStore.Record(job.name, i, settings, job.stockWidth, pattern,
+                    job.calculate(calculator), job.mate(job.name).calculate(calculator)));
+            mJob = job;
+        }
+        mName = mJob.name;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mStore.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public PlanStore.Record load() throws IOException {
+        return mStore.load(mName);
+    }
+
+    @Benchmark
+    public MovePlan recalculate() {
+        // a fresh calculator, as after a cold start
+        MoveCalculator calculator = new MoveCalculator();
+        mJob.calculate(calculator);
+        return mJob.mate(mName).calculate(calculator);
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        PlanStore store = PlanStore.open(mFile);
+        int size = store.size();
+        store.close();
+        return size;
+    }
+}
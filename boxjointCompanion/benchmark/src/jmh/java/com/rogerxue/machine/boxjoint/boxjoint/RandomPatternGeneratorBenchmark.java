@@ -0,0 +1,57 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random pattern generation, single threaded and with a generator split off per thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RandomPatternGeneratorBenchmark {
+    private static final RandomPatternGenerator ROOT =
+            new RandomPatternGenerator(42).setWidths(102, 500).setNarrowest(102);
+
+    @Param({"2", "8", "32"})
+    public int pairs;
+
+    private RandomPatternGenerator generator;
+    private RandomPatternGenerator fitting;
+    private int[] pattern;
+
+    @Setup
+    public void setUp() {
+        synchronized (ROOT) {
+            generator = ROOT.split();
+        }
+        // a board of average widths
+        fitting = generator.split().setFitWidth(pairs * 2 * 301);
+        pattern = new int[pairs * 2];
+    }
+
+    @Benchmark
+    public int[] generate() {
+        return generator.generate(pairs);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int[] generateSplit() {
+        return generator.generate(pairs);
+    }
+
+    @Benchmark
+    public boolean generateExactFitInto() {
+        return fitting.generateInto(pattern, pairs);
+    }
+}
@@ -0,0 +1,41 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a status record of the jig in place, against making a String of it and splitting
+ * that, which is what any other line costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TelemetryDecoderBenchmark {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final byte[] mLine = "S 123456 42 180 5 25\r".getBytes(ASCII);
+    private final JigStatus mStatus = new JigStatus();
+
+    @Benchmark
+    public JigStatus decode() {
+        TelemetryDecoder.decode(mLine, 0, mLine.length, mStatus);
+        return mStatus;
+    }
+
+    @Benchmark
+    public long splitString() {
+        String[] fields = new String(mLine, 0, mLine.length, ASCII).trim().split(" ");
+        long sum = 0;
+        for (int i = 1; i < fields.length; ++i) {
+            sum += Long.parseLong(fields[i]);
+        }
+        return sum;
+    }
+}
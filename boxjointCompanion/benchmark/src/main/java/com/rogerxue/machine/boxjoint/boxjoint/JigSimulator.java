@@ -0,0 +1,507 @@
+package com.rogerxue.machine.boxjoint.boxjoint;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The serial and motion behaviour of boxjoint.ino on a plain JVM, serving one
+ * {@link SerialTransport}.
+ *
+ * Downloads follow the sketch: ASCII comma separated moves, and binary frames answered with
+ * ACK / NAK, streamed plans with CREDIT / RESUME / REWIND into a ring of {@link #MAX_MOVES},
+ * MOVE as each move starts, and a status record (see {@link TelemetryDecoder}) as a move
+ * starts and wherever the sketch updates its LCD.
+ * Time is modelled rather than spent: every byte on the link costs a character time at
+ * {@link #BAUD}, every move {@code |thou| * STEP_PER_THOU} steps of two {@code stepDelay} each,
+ * or as timed by the {@link MotionProfile} the app sent, plus the 300 ms the sketch waits after
+ * a move under 100 thou. The sketch does one or the other at a time, so the two add up.
+ * {@link #setTimeScale} makes the simulator also sleep the modelled time.
+ *
+ * Not modelled: the switches other than EXECUTE, the 64 byte receive buffer of the Arduino, and
+ * the timeout of a frame cut short, links here don't lose bytes. The bytes after a bad frame are
+ * skipped up to the next sync or a 200 ms pause, as the sketch does.
+ */
+public class JigSimulator implements Runnable {
+    public static final int BAUD = 9600;
+    // 8N1, 10 bits a character
+    public static final long BYTE_MICROS = 10 * 1000000L / BAUD;
+    // integer division, like the sketch
+    public static final int STEP_PER_THOU = 200 * 8 * 18 / 1000;
+    public static final int MAX_MOVES = 200;
+    public static final int CREDIT_BATCH = 32;
+    // range of the speed pot
+    public static final int MIN_STEP_DELAY_MICROS = 45;
+    public static final int MAX_STEP_DELAY_MICROS = 400;
+    private static final int SMALL_MOVE = 100;
+    private static final long SMALL_MOVE_DELAY_MICROS = 300 * 1000L;
+    private static final long FRAME_TIMEOUT_MS = 200;
+    // largest frame of MAX_MOVES moves
+    private static final int MAX_FRAME_SIZE = MoveFrameCodec.maxFrameSize(MAX_MOVES);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SerialTransport mTransport;
+    private InputStream mInput;
+    private OutputStream mOutput;
+    private final byte[] mFrameBuffer = new byte[MAX_FRAME_SIZE];
+    private final MoveFrameCodec.Frame mFrame = new MoveFrameCodec.Frame(MAX_MOVES);
+
+    // state of the sketch, see boxjoint.ino
+    private final int[] mMoves = new int[MAX_MOVES];
+    private long mMoveCount;
+    private long mReceivedMoves;
+    private long mCurrentMove;
+    private boolean mStreaming;
+    private long mLastCredit;
+    private boolean mHomed;
+    private long mPosition;
+    private int mStepDelay = MIN_STEP_DELAY_MICROS;
+    @Nullable
+    private MotionProfile mProfile;
+    private String mStatus = "";
+    // after a bad frame, bytes up to the next sync are the rest of it, like resyncUntil
+    private long mResyncUntilMillis;
+
+    private boolean mAutoExecute;
+    private double mTimeScale;
+    private long mSerialMicros;
+    private long mMotionMicros;
+    private long mSleepDebtMicros;
+    private long mExecutedMoves;
+    private long mOverflowedMoves;
+
+    public JigSimulator(SerialTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Step delay set by the speed pot, in microseconds.
+     */
+    public synchronized void setStepDelay(int stepDelay) {
+        mStepDelay = Math.max(MIN_STEP_DELAY_MICROS, Math.min(MAX_STEP_DELAY_MICROS, stepDelay));
+    }
+
+    /**
+     * Keeps EXECUTE pressed: moves run as soon as they're downloaded. Set before the download,
+     * the simulator only looks at it between bytes.
+     */
+    public synchronized void setAutoExecute(boolean autoExecute) {
+        mAutoExecute = autoExecute;
+    }
+
+    /**
+     * Wall time slept per modelled time, 0 (the default) doesn't sleep at all, 1 is real time.
+     */
+    public synchronized void setTimeScale(double timeScale) {
+        mTimeScale = timeScale;
+    }
+
+    /**
+     * Opens the transport and serves it until its input ends.
+     */
+    @Override
+    public void run() {
+        try {
+            mTransport.open();
+            mInput = mTransport.getInputStream();
+            mOutput = mTransport.getOutputStream();
+            while (true) {
+                if (executeIfReady()) {
+                    // like loop() of the sketch, read serial between moves
+                    if (mInput.available() == 0) {
+                        continue;
+                    }
+                }
+                int b = mInput.read();
+                if (b < 0) {
+                    return;
+                }
+                synchronized (this) {
+                    readSerial(b);
+                }
+            }
+        } catch (IOException e) {
+            // link closed
+        } finally {
+            try {
+                mTransport.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * GO_HOME: the position is 0 from now on, a streamed plan starts over.
+     */
+    public synchronized void home() throws IOException {
+        mHomed = true;
+        mPosition = 0;
+        mCurrentMove = 0;
+        if (mStreaming && mReceivedMoves > MAX_MOVES) {
+            // the first moves are overwritten already, download them again
+            mReceivedMoves = 0;
+            mLastCredit = 0;
+            println("REWIND");
+            sendCredit(false);
+        }
+        sendStatus(false);
+        notifyAll();
+    }
+
+    /**
+     * One press of EXECUTE.
+     *
+     * @return true if a move ran.
+     */
+    public synchronized boolean execute() throws IOException {
+        if (mMoveCount == 0) {
+            mStatus = "No moves to execute.";
+        } else if (!mHomed) {
+            mStatus = "Not Homed.";
+        } else if (mCurrentMove >= mMoveCount) {
+            mStatus = "All moves done.";
+        } else if (mCurrentMove >= mReceivedMoves) {
+            mStatus = "Waiting for moves.";
+            println("RESUME " + mReceivedMoves);
+            sendCredit(true);
+        } else {
+            long index = mCurrentMove++;
+            int thisMove = mMoves[(int) (index % MAX_MOVES)];
+            println("MOVE " + index);
+            sendStatus(true);
+            move(thisMove);
+            sendStatus(false);
+            if (mStreaming) {
+                sendCredit(false);
+            }
+            if (thisMove < SMALL_MOVE) {
+                spend(SMALL_MOVE_DELAY_MICROS, false);
+            }
+            ++mExecutedMoves;
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean executeIfReady() throws IOException {
+        if (mAutoExecute && mHomed && mCurrentMove < mReceivedMoves
+                && mCurrentMove < mMoveCount) {
+            return execute();
+        }
+        return false;
+    }
+
+    /**
+     * Waits until {@link #getExecutedMoves()} reaches {@code executedMoves}.
+     *
+     * @return false if timed out.
+     */
+    public synchronized boolean awaitExecutedMoves(long executedMoves, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mExecutedMoves < executedMoves) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Moves executed since start.
+     */
+    public synchronized long getExecutedMoves() {
+        return mExecutedMoves;
+    }
+
+    /**
+     * Moves the sketch didn't make because the step count wrapped, see {@link #move}.
+     */
+    public synchronized long getOverflowedMoves() {
+        return mOverflowedMoves;
+    }
+
+    public synchronized long getMoveCount() {
+        return mMoveCount;
+    }
+
+    public synchronized long getReceivedMoves() {
+        return mReceivedMoves;
+    }
+
+    /**
+     * In steps.
+     */
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Step timing of plan moves, null if they go by the step delay.
+     */
+    @Nullable
+    public synchronized MotionProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Last message on the LCD.
+     */
+    public synchronized String getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Modelled time spent sending and receiving.
+     */
+    public synchronized long getSerialMicros() {
+        return mSerialMicros;
+    }
+
+    /**
+     * Modelled time spent moving.
+     */
+    public synchronized long getMotionMicros() {
+        return mMotionMicros;
+    }
+
+    public synchronized long getElapsedMicros() {
+        return mSerialMicros + mMotionMicros;
+    }
+
+    private void readSerial(int first) throws IOException {
+        spend(BYTE_MICROS, true);
+        if ((byte) first == MoveFrameCodec.SYNC) {
+            readFrame();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < mResyncUntilMillis) {
+            mResyncUntilMillis = now + FRAME_TIMEOUT_MS;
+            return;
+        }
+        mStatus = "Downloading....";
+        mMoveCount = 0;
+        mCurrentMove = 0;
+        mStreaming = false;
+        // ASCII plans go by SPD, like in the sketch
+        mProfile = null;
+        // the app ends the moves with a new line
+        boolean negative = false;
+        boolean digits = false;
+        int value = 0;
+        for (int b = first; b >= 0 && b != '\n'; b = readByte()) {
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + b - '0';
+                digits = true;
+            } else if (b == '-' && !digits) {
+                negative = true;
+            } else if (digits) {
+                store(negative ? -value : value);
+                negative = false;
+                digits = false;
+                value = 0;
+            }
+        }
+        if (digits) {
+            store(negative ? -value : value);
+        }
+        mStatus = mMoveCount >= MAX_MOVES
+                ? "Exceeds max moves." : mMoveCount + " downloaded";
+        mReceivedMoves = mMoveCount;
+        notifyAll();
+    }
+
+    private void store(int move) {
+        if (mMoveCount < MAX_MOVES) {
+            mMoves[(int) mMoveCount++] = move;
+        }
+    }
+
+    private void readFrame() throws IOException {
+        int length = 0;
+        mFrameBuffer[length++] = MoveFrameCodec.SYNC;
+        // seq, type, then the payload length varint
+        for (int i = 0; i < 2; ++i) {
+            mFrameBuffer[length++] = (byte) readFrameByte();
+        }
+        int type = mFrameBuffer[2];
+        long payload = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readFrameByte();
+            mFrameBuffer[length++] = (byte) b;
+            payload |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift >= 28) {
+                frameError(mFrameBuffer[1] & 0xFF, "Frame corrupted.");
+                return;
+            }
+        }
+        if (type == MoveFrameCodec.TYPE_MOVES) {
+            // replaces whatever was downloaded, even if the frame turns out bad
+            mMoveCount = 0;
+            mReceivedMoves = 0;
+            mCurrentMove = 0;
+            mStreaming = false;
+            mStatus = "Downloading....";
+        } else if (type == MoveFrameCodec.TYPE_PROFILE) {
+            // half read entries are no profile
+            mProfile = null;
+        }
+        if (length + payload + 2 > mFrameBuffer.length) {
+            frameError(mFrameBuffer[1] & 0xFF, "Exceeds max moves.");
+            return;
+        }
+        for (long i = 0; i < payload + 2; ++i) {
+            mFrameBuffer[length++] = (byte) readFrameByte();
+        }
+        if (!MoveFrameCodec.decode(mFrameBuffer, 0, length, mFrame)) {
+            frameError(mFrameBuffer[1] & 0xFF, "Frame corrupted.");
+            return;
+        }
+        switch (mFrame.type) {
+            case MoveFrameCodec.TYPE_MOVES:
+                System.arraycopy(mFrame.moves, 0, mMoves, 0, mFrame.count);
+                mMoveCount = mFrame.count;
+                mReceivedMoves = mFrame.count;
+                ack(mFrame.seq);
+                mStatus = mMoveCount + " downloaded";
+                break;
+            case MoveFrameCodec.TYPE_STREAM_BEGIN:
+                mMoveCount = mFrame.total;
+                mReceivedMoves = 0;
+                mCurrentMove = 0;
+                mStreaming = true;
+                mLastCredit = 0;
+                ack(mFrame.seq);
+                mStatus = "Streaming " + mMoveCount;
+                sendCredit(false);
+                break;
+            case MoveFrameCodec.TYPE_STREAM_MOVES:
+                long start = mFrame.start;
+                long end = start + mFrame.count;
+                if (!mStreaming || start > mReceivedMoves || end > mCurrentMove + MAX_MOVES) {
+                    frameError(mFrame.seq, "Out of order.");
+                    return;
+                }
+                for (long i = Math.max(start, mReceivedMoves); i < end; ++i) {
+                    mMoves[(int) (i % MAX_MOVES)] = mFrame.moves[(int) (i - start)];
+                }
+                mReceivedMoves = Math.max(mReceivedMoves, end);
+                ack(mFrame.seq);
+                mStatus = mReceivedMoves + "/" + mMoveCount + " downloaded";
+                break;
+            case MoveFrameCodec.TYPE_PROFILE:
+                if (mFrame.count > 0) {
+                    try {
+                        mProfile = new MotionProfile(
+                                Arrays.copyOf(mFrame.rampSteps, mFrame.count),
+                                Arrays.copyOf(mFrame.rampDelays, mFrame.count));
+                    } catch (IllegalArgumentException e) {
+                        frameError(mFrame.seq, "Bad profile.");
+                        return;
+                    }
+                }
+                ack(mFrame.seq);
+                break;
+            default:
+                frameError(mFrame.seq, "Unknown frame.");
+        }
+        notifyAll();
+    }
+
+    private int readByte() throws IOException {
+        int b = mInput.read();
+        if (b >= 0) {
+            spend(BYTE_MICROS, true);
+        }
+        return b;
+    }
+
+    private int readFrameByte() throws IOException {
+        int b = readByte();
+        if (b < 0) {
+            throw new IOException("link closed in a frame");
+        }
+        return b;
+    }
+
+    private void ack(int seq) throws IOException {
+        println("ACK " + seq);
+    }
+
+    private void frameError(int seq, String message) throws IOException {
+        // skip the rest of the frame so it isn't read as ascii moves
+        mResyncUntilMillis = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+        println("NAK " + seq);
+        mStatus = message;
+    }
+
+    // lets the app send moves up to (excluding) currentMove + MAX_MOVES, batched unless forced.
+    private void sendCredit(boolean force) throws IOException {
+        long limit = Math.min(mCurrentMove + MAX_MOVES, mMoveCount);
+        if (force || (limit > mLastCredit
+                && (limit - mLastCredit >= CREDIT_BATCH || limit == mMoveCount))) {
+            mLastCredit = limit;
+            println("CREDIT " + limit);
+        }
+    }
+
+    private void move(int thou) {
+        // int is 16 bit on the Arduino: the step count wraps for moves over 1170 thou, and the
+        // sketch then doesn't move at all
+        int steps = (short) (Math.abs(thou) * STEP_PER_THOU);
+        if (steps < 0) {
+            ++mOverflowedMoves;
+            return;
+        }
+        mPosition += thou > 0 ? steps : -steps;
+        spend(mProfile == null ? 2L * mStepDelay * steps : mProfile.getMoveMicros(steps), false);
+    }
+
+    // what the sketch sends as a move starts, or from showStatus()
+    private void sendStatus(boolean moving) throws IOException {
+        long move = moving ? mCurrentMove - 1 : mCurrentMove;
+        int flags = (mHomed ? JigStatus.FLAG_HOMED : 0) | (moving ? JigStatus.FLAG_MOVING : 0);
+        int halfPeriod = mProfile == null ? mStepDelay
+                : moving ? mProfile.getStartDelay() : mProfile.getCruiseDelay();
+        println("S " + mPosition + " " + move + " " + mMoveCount + " " + flags + " " + halfPeriod);
+    }
+
+    private void println(String line) throws IOException {
+        byte[] bytes = (line + "\r\n").getBytes(ASCII);
+        mOutput.write(bytes);
+        mOutput.flush();
+        spend(BYTE_MICROS * bytes.length, true);
+    }
+
+    private void spend(long micros, boolean serial) {
+        if (serial) {
+            mSerialMicros += micros;
+        } else {
+            mMotionMicros += micros;
+        }
+        if (mTimeScale <= 0) {
+            return;
+        }
+        mSleepDebtMicros += (long) (micros * mTimeScale);
+        if (mSleepDebtMicros >= 1000) {
+            try {
+                Thread.sleep(mSleepDebtMicros / 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSleepDebtMicros %= 1000;
+        }
+    }
+}
@@ -1,6 +1,14 @@
 // Controller for Boxjoint jig (Roger Xue)
 // 
-// - it reads comma separated int as thou of movements from serial port
+// - it reads comma separated int as thou of movements from serial port,
+//   or binary frames starting with FRAME_SYNC (see MoveFrameCodec.java)
+// - plans longer than MAX_MOVES are streamed: moves is used as a ring buffer and
+//   "CREDIT limit" asks the app for moves up to limit as moves are executed
+// - "MOVE index" tells the app which move is being executed
+// - "S position move moves flags delay" status records tell the app what the LCD shows,
+//   on every change and as a move starts, never while stepping (see TelemetryDecoder.java)
+// - moves of a plan ramp up and down by the profile the app sends (see MotionProfile.java),
+//   without one and for manual moves every step takes the SPD of the speed pot
 // - it has home and limit switch on both end
 // - when not homed or limit is triggered, moves can't be executed
 // - as soon as limit is tripped, jig will stop moving, even in a manual move state.
@@ -18,6 +26,23 @@
 
 #define MAX_MOVES 200
 
+// binary frame: SYNC | seq | type | length varint | payload | CRC-16 (big endian)
+#define FRAME_SYNC 0xA5
+#define FRAME_TYPE_MOVES 1
+#define FRAME_TYPE_STREAM_BEGIN 2
+#define FRAME_TYPE_STREAM_MOVES 3
+#define FRAME_TYPE_PROFILE 4
+// max wait for the next byte of a frame
+#define FRAME_TIMEOUT_MS 200
+// ask for more moves once this many slots are free
+#define CREDIT_BATCH 32
+// entries of the motion profile
+#define MAX_RAMP 48
+// flags of the status records
+#define TELEMETRY_HOMED 1
+#define TELEMETRY_TRIPPED 2
+#define TELEMETRY_MOVING 4
+
 #define HOME_SWITCH 2 // interrupt pin
 #define LIMIT_SWITCH 3 // interrupt pin
 
@@ -37,9 +62,16 @@
 //                    addr, en,rw,rs,d4,d5,d6,d7,bl,blpol
 LiquidCrystal_I2C lcd(0x27, 2, 1, 0, 4, 5, 6, 7, 3, POSITIVE);  // Set the LCD I2C address
 
+// move i is at moves[i % MAX_MOVES]
 unsigned int moves[MAX_MOVES];
-unsigned int moveCount(0);
-unsigned int currentMove(0);
+// moves in the plan
+unsigned long moveCount(0);
+// moves downloaded, less than moveCount while streaming
+unsigned long receivedMoves(0);
+unsigned long currentMove(0);
+bool streaming(false);
+// moves the app was allowed to send
+unsigned long lastCredit(0);
 bool leftReleasedAfterLimitTripped(false);
 bool rightReleasedAfterLimitTripped(false);
 
@@ -52,6 +84,19 @@ long position(0);
 // in ns
 int stepDelay(10);
 
+// motion profile: entry k is rampSteps[k] steps at rampDelay[k] us, the steps of a move
+// go up the entries and back down again for the end of the move. The last entry is the
+// cruise speed and holds any step past the ramp. No profile if rampCount is 0.
+unsigned int rampSteps[MAX_RAMP];
+unsigned int rampDelay[MAX_RAMP];
+unsigned int rampCount(0);
+
+// CRC and byte count of the frame being read
+unsigned int frameCrc(0xFFFF);
+unsigned int frameBytes(0);
+// after a bad frame, bytes up to the next sync are the rest of it
+unsigned long resyncUntil(0);
+
 void setup() {
   Serial.begin(9600);
 
@@ -140,6 +185,13 @@ inline void goHome() {
   }
   position = 0;
   currentMove = 0;
+  if (streaming && receivedMoves > MAX_MOVES) {
+    // the first moves are overwritten already, download them again
+    receivedMoves = 0;
+    lastCredit = 0;
+    Serial.println("REWIND");
+    sendCredit(false);
+  }
   showStatus();
 }
 
@@ -182,9 +234,25 @@ inline void executeMoves() {
     lcd.setCursor(0, 0);
     lcd.print("All moves done.");
     blinkLcd();
+  } else if (currentMove >= receivedMoves) {
+    clearLcdLine(0);
+    lcd.setCursor(0, 0);
+    lcd.print("Waiting for moves.");
+    // in case frames or the last credit got lost
+    Serial.print("RESUME ");
+    Serial.println(receivedMoves);
+    sendCredit(true);
+    blinkLcd();
   } else {
-    int thisMove = moves[currentMove++];
+    unsigned long index = currentMove++;
+    int thisMove = moves[index % MAX_MOVES];
+    // lets the app follow along
+    Serial.print("MOVE ");
+    Serial.println(index);
     move(thisMove);
+    if (streaming) {
+      sendCredit(false);
+    }
     // make sure no double trigger.
     if (thisMove < 100) {
       delay(300);
@@ -192,15 +260,51 @@ inline void executeMoves() {
   }
 }
 
+// lets the app send moves up to (excluding) currentMove + MAX_MOVES,
+// batched unless forced.
+void sendCredit(bool force) {
+  unsigned long limit = min(currentMove + MAX_MOVES, moveCount);
+  if (force || (limit > lastCredit && (limit - lastCredit >= CREDIT_BATCH || limit == moveCount))) {
+    lastCredit = limit;
+    Serial.print("CREDIT ");
+    Serial.println(limit);
+  }
+}
+
 inline void move(int thou) {
     int steps = abs(thou) * STEP_PER_THOU;
     int movedSteps(0);
+    // entry of the profile and steps taken in it, no math per step beyond this
+    unsigned int entry(0);
+    unsigned int inEntry(0);
     clearLcdLine(1);
     lcd.setCursor(0, 1);
     lcd.print("moving ");
     lcd.print(steps);
-    while (!tripped && steps > movedSteps++) {
-      moveIt(thou);
+    // formatting a record takes about as long as a step, so none is sent until the move is done
+    sendTelemetry(true, rampCount == 0 ? stepDelay : rampDelay[0]);
+    while (!tripped && steps > movedSteps) {
+      if (rampCount == 0) {
+        moveIt(thou);
+      } else {
+        stepIt(thou, rampDelay[entry]);
+        // up the ramp for the first half of the move, down for the second
+        long twice = 2L * movedSteps + 2;
+        if (twice < steps) {
+          inEntry++;
+          if (entry < rampCount - 1 && inEntry == rampSteps[entry]) {
+            entry++;
+            inEntry = 0;
+          }
+        } else if (twice > steps && (entry > 0 || inEntry > 0)) {
+          if (inEntry == 0) {
+            entry--;
+            inEntry = rampSteps[entry];
+          }
+          inEntry--;
+        }
+      }
+      movedSteps++;
     }
     if (tripped) {
       blinkLcd();
@@ -213,21 +317,38 @@ inline void move(int thou) {
 }
 
 inline void moveIt(int direction) {
+  stepIt(direction, stepDelay);
+}
+
+// one step, halfPeriod us of each pulse level
+inline void stepIt(int direction, unsigned int halfPeriod) {
   digitalWrite(DIR, direction > 0 ? HIGH : LOW);
   direction > 0 ? position++ : position--;
   digitalWrite(PUL, HIGH);
-  delayMicroseconds(stepDelay);
+  delayMicroseconds(halfPeriod);
   digitalWrite(PUL, LOW);
-  delayMicroseconds(stepDelay);
+  delayMicroseconds(halfPeriod);
 }
 
 inline void readSerial() {
   if (Serial.available()) {
+    if (Serial.peek() == FRAME_SYNC) {
+      readFrame();
+      return;
+    }
+    if (millis() < resyncUntil) {
+      Serial.read();
+      resyncUntil = millis() + FRAME_TIMEOUT_MS;
+      return;
+    }
     clearLcdLine(0);
     lcd.setCursor(0, 0);
     lcd.print("Downloading....");
     moveCount = 0;
     currentMove = 0;
+    streaming = false;
+    // ASCII plans go by the speed pot, whatever profile came with an earlier binary one
+    rampCount = 0;
     while (Serial.available() > 0 && moveCount < MAX_MOVES) {
         moves[moveCount++] = Serial.parseInt();
     }
@@ -242,9 +363,217 @@ inline void readSerial() {
       lcd.print(moveCount);
       lcd.print(" downloaded");
     }
+    receivedMoves = moveCount;
+  }
+}
+
+// Reads a binary frame, replies "ACK seq" or "NAK seq".
+// Moves of a corrupted frame are never counted as downloaded.
+void readFrame() {
+  Serial.read(); // sync
+  frameCrc = 0xFFFF;
+  int seq = readFrameByte();
+  int type = readFrameByte();
+  long length = readVarint();
+  if (seq < 0 || type < 0 || length < 0) {
+    frameError(seq, "Frame timeout.");
+    return;
+  }
+  frameBytes = 0;
+  long total(0);
+  long start(0);
+  long count(0);
+  // only new moves are stored, and only if there is room for them
+  bool accept(true);
+  if (type == FRAME_TYPE_MOVES) {
+    // replaces whatever was downloaded
+    moveCount = 0;
+    receivedMoves = 0;
+    currentMove = 0;
+    streaming = false;
+    clearLcdLine(0);
+    lcd.setCursor(0, 0);
+    lcd.print("Downloading....");
+  }
+  if (type == FRAME_TYPE_STREAM_BEGIN) {
+    total = readVarint();
+    if (total < 0) {
+      frameError(seq, "Frame timeout.");
+      return;
+    }
+  } else if (type == FRAME_TYPE_PROFILE) {
+    // half read entries are no profile, moves go by the speed pot until a good one
+    rampCount = 0;
+    count = readVarint();
+    if (count < 0) {
+      frameError(seq, "Frame timeout.");
+      return;
+    }
+    for (long i = 0; i < count; ++i) {
+      long steps = readVarint();
+      long halfPeriod = readVarint();
+      if (steps < 0 || halfPeriod < 0) {
+        frameError(seq, "Frame timeout.");
+        return;
+      }
+      // all but the cruise entry need steps, or the ramp never gets past them
+      if (i < MAX_RAMP && (steps > 0 || i == count - 1) && steps <= 0xFFFF
+          && halfPeriod > 0 && halfPeriod <= 0xFFFF) {
+        rampSteps[i] = steps;
+        rampDelay[i] = halfPeriod;
+      } else {
+        accept = false;
+      }
+    }
+  } else if (type == FRAME_TYPE_MOVES || type == FRAME_TYPE_STREAM_MOVES) {
+    if (type == FRAME_TYPE_STREAM_MOVES) {
+      start = readVarint();
+    }
+    count = readVarint();
+    if (start < 0 || count < 0) {
+      frameError(seq, "Frame timeout.");
+      return;
+    }
+    accept = (unsigned long) start <= receivedMoves
+        && (unsigned long) (start + count) <= currentMove + MAX_MOVES;
+    for (long i = 0; i < count; ++i) {
+      long move = readVarint();
+      if (move < 0) {
+        frameError(seq, "Frame timeout.");
+        return;
+      }
+      if (accept && (unsigned long) (start + i) >= receivedMoves) {
+        // zigzag decode
+        moves[(start + i) % MAX_MOVES] = (move >> 1) ^ -(move & 1);
+      }
+    }
+  }
+  // skip whatever is left of an unknown payload
+  while (frameBytes < length) {
+    if (readFrameByte() < 0) {
+      frameError(seq, "Frame timeout.");
+      return;
+    }
+  }
+  unsigned int crc = frameCrc;
+  int crcHigh = readFrameByte();
+  int crcLow = readFrameByte();
+  if (crcHigh < 0 || crcLow < 0 || ((unsigned int) crcHigh << 8 | crcLow) != crc
+      || frameBytes != length + 2) {
+    frameError(seq, "Frame corrupted.");
+    return;
+  }
+  switch (type) {
+    case FRAME_TYPE_MOVES:
+      if (count > MAX_MOVES) {
+        frameError(seq, "Exceeds max moves.");
+        return;
+      }
+      moveCount = count;
+      receivedMoves = count;
+      ack(seq);
+      clearLcdLine(0);
+      lcd.setCursor(0, 0);
+      lcd.print(moveCount);
+      lcd.print(" downloaded");
+      break;
+    case FRAME_TYPE_STREAM_BEGIN:
+      moveCount = total;
+      receivedMoves = 0;
+      currentMove = 0;
+      streaming = true;
+      lastCredit = 0;
+      ack(seq);
+      clearLcdLine(0);
+      lcd.setCursor(0, 0);
+      lcd.print("Streaming ");
+      lcd.print(moveCount);
+      sendCredit(false);
+      break;
+    case FRAME_TYPE_STREAM_MOVES:
+      if (!streaming || !accept) {
+        frameError(seq, "Out of order.");
+        return;
+      }
+      if ((unsigned long) (start + count) > receivedMoves) {
+        receivedMoves = start + count;
+      }
+      ack(seq);
+      clearLcdLine(0);
+      lcd.setCursor(0, 0);
+      lcd.print(receivedMoves);
+      lcd.print("/");
+      lcd.print(moveCount);
+      lcd.print(" downloaded");
+      break;
+    case FRAME_TYPE_PROFILE:
+      if (!accept) {
+        frameError(seq, "Bad profile.");
+        return;
+      }
+      rampCount = count;
+      ack(seq);
+      showStatus();
+      break;
+    default:
+      frameError(seq, "Unknown frame.");
+  }
+}
+
+void ack(int seq) {
+  Serial.print("ACK ");
+  Serial.println(seq);
+}
+
+void frameError(int seq, const char* message) {
+  // skip the rest of the frame so it isn't read as ascii moves
+  resyncUntil = millis() + FRAME_TIMEOUT_MS;
+  Serial.print("NAK ");
+  Serial.println(seq);
+  clearLcdLine(0);
+  lcd.setCursor(0, 0);
+  lcd.print(message);
+  blinkLcd();
+}
+
+// -1 if timed out
+int readFrameByte() {
+  unsigned long start = millis();
+  while (!Serial.available()) {
+    if (millis() - start > FRAME_TIMEOUT_MS) {
+      return -1;
+    }
   }
+  int b = Serial.read();
+  frameCrc = crc16Update(frameCrc, b);
+  frameBytes++;
+  return b;
 }
 
+// unsigned LEB128, -1 if timed out or too long
+long readVarint() {
+  unsigned long value(0);
+  for (int shift = 0; shift < 35; shift += 7) {
+    int b = readFrameByte();
+    if (b < 0) {
+      return -1;
+    }
+    value |= (unsigned long) (b & 0x7F) << shift;
+    if (!(b & 0x80)) {
+      return value & 0x7FFFFFFF;
+    }
+  }
+  return -1;
+}
+
+// CRC-16/CCITT-FALSE
+unsigned int crc16Update(unsigned int crc, byte b) {
+  crc ^= (unsigned int) b << 8;
+  for (int i = 0; i < 8; ++i) {
+    crc = crc & 0x8000 ? (crc << 1) ^ 0x1021 : crc << 1;
+  }
+  return crc;
+}
 
 inline bool moveLeftPressed() {
   bool pressed = !digitalRead(MOVE_LEFT);
@@ -283,12 +612,37 @@ inline void showStatus() {
 
   clearLcdLine(3);
   lcd.setCursor(0, 3);
-  lcd.print("SPD:");
-  lcd.print(stepDelay);
+  if (rampCount > 0) {
+    // the cruise speed of the profile
+    lcd.print("RMP:");
+    lcd.print(rampDelay[rampCount - 1]);
+  } else {
+    lcd.print("SPD:");
+    lcd.print(stepDelay);
+  }
   lcd.print(" tr:");
   lcd.print(tripped);
   lcd.print(" home:");
   lcd.print(homed);
+  sendTelemetry(false, rampCount > 0 ? rampDelay[rampCount - 1] : stepDelay);
+}
+
+// "S position move moves flags delay": position in steps, the move being executed while
+// moving, else the next one, moves in the plan, TELEMETRY_ flags and the half period of the
+// steps. Only sent between steps, a moving record as a move starts and the rest from
+// showStatus() once it's done, so the app sees no progress within a move.
+void sendTelemetry(bool moving, unsigned int halfPeriod) {
+  Serial.print("S ");
+  Serial.print(position);
+  Serial.print(' ');
+  Serial.print(moving ? currentMove - 1 : currentMove);
+  Serial.print(' ');
+  Serial.print(moveCount);
+  Serial.print(' ');
+  Serial.print((homed ? TELEMETRY_HOMED : 0) | (tripped ? TELEMETRY_TRIPPED : 0)
+      | (moving ? TELEMETRY_MOVING : 0));
+  Serial.print(' ');
+  Serial.println(halfPeriod);
 }
 
 inline void clearLcdLine(int line) {